@@ -0,0 +1,51 @@
+package org.ddpush.im.util;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 地址驻留表，同一IP(如同一NAT出口)的客户端共享一个InetAddress实例
+ * 直接映射、容量固定，冲突时替换旧地址，不会随IP变化无限增长
+ */
+public class AddressIntern {
+
+	/** 槽 */
+	private final AtomicReferenceArray<InetAddress> slots;
+	/** 下标掩码 */
+	private final int mask;
+
+	/**
+	 * 初始化
+	 * 
+	 * @param capacity
+	 *            槽数，向上取整为2的幂
+	 */
+	public AddressIntern(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		slots = new AtomicReferenceArray<InetAddress>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * 取得驻留的地址实例
+	 * 
+	 * @param addr
+	 * @return 已驻留的相同地址，否则驻留并返回addr
+	 */
+	public InetAddress intern(InetAddress addr) {
+		if (addr == null) {
+			return null;
+		}
+		int h = addr.hashCode() * 0x9E3779B9;
+		int i = (h ^ (h >>> 16)) & mask;
+		InetAddress cur = slots.get(i);
+		if (addr.equals(cur)) {
+			return cur;
+		}
+		slots.lazySet(i, addr);
+		return addr;
+	}
+}
@@ -0,0 +1,73 @@
+package org.ddpush.im.util;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C(Castagnoli)校验，Java 9以上使用java.util.zip.CRC32C(有硬件指令加速)，通过反射创建以兼容旧版本编译和运行
+ * 旧版本使用本类的查表实现，两者结果相同
+ */
+public class Crc32c implements Checksum {
+
+	/** 反转后的Castagnoli多项式 */
+	private static final int POLY = 0x82F63B78;
+	/** 单字节查表 */
+	private static final int[] TABLE = new int[256];
+	/** java.util.zip.CRC32C的构造方法，不支持为null */
+	private static final Constructor<?> JDK_CRC32C;
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i;
+			for (int k = 0; k < 8; k++) {
+				c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+			}
+			TABLE[i] = c;
+		}
+		Constructor<?> ctor = null;
+		try {
+			ctor = Class.forName("java.util.zip.CRC32C").getConstructor();
+		} catch (Throwable t) {
+			// Java 9以下没有CRC32C
+		}
+		JDK_CRC32C = ctor;
+	}
+
+	private int crc = 0xffffffff;
+
+	/**
+	 * 创建校验对象，优先使用JDK实现
+	 * 
+	 * @return
+	 */
+	public static Checksum create() {
+		if (JDK_CRC32C != null) {
+			try {
+				return (Checksum) JDK_CRC32C.newInstance();
+			} catch (Exception e) {
+				;
+			}
+		}
+		return new Crc32c();
+	}
+
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+	}
+
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		for (int i = off, end = off + len; i < end; i++) {
+			c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+		}
+		crc = c;
+	}
+
+	public long getValue() {
+		return (~crc) & 0xffffffffL;
+	}
+
+	public void reset() {
+		crc = 0xffffffff;
+	}
+}
@@ -0,0 +1,136 @@
+package org.ddpush.im.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 定长无锁多生产者多消费者环形队列，入队出队不产生任何对象分配
+ */
+public class RingQueue<E> {
+
+	/** 下标掩码，容量为2的幂 */
+	private final int mask;
+	/** 元素数组 */
+	private final AtomicReferenceArray<E> buffer;
+	/** 每个槽位的序号，用于判断槽位可写或可读 */
+	private final AtomicLongArray sequences;
+	/** 下一个入队位置 */
+	private final AtomicLong tail = new AtomicLong(0);
+	/** 下一个出队位置 */
+	private final AtomicLong head = new AtomicLong(0);
+
+	/**
+	 * 初始化，容量向上取整为2的幂
+	 * 
+	 * @param capacity
+	 */
+	public RingQueue(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.buffer = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * 入队
+	 * 
+	 * @param e
+	 * @return 队列已满时返回false
+	 */
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException("element is null");
+		}
+		long pos = tail.get();
+		int index;
+		while (true) {
+			index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+		buffer.lazySet(index, e);
+		sequences.lazySet(index, pos + 1);
+		return true;
+	}
+
+	/**
+	 * 出队
+	 * 
+	 * @return 队列为空时返回null
+	 */
+	public E poll() {
+		long pos = head.get();
+		int index;
+		while (true) {
+			index = (int) (pos & mask);
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+		E e = buffer.get(index);
+		buffer.lazySet(index, null);
+		sequences.lazySet(index, pos + mask + 1);
+		return e;
+	}
+
+	/**
+	 * 取得当前元素个数，并发下为近似值
+	 * 
+	 * @return
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		if (size < 0) {
+			return 0;
+		}
+		if (size > capacity()) {
+			return capacity();
+		}
+		return (int) size;
+	}
+
+	/**
+	 * 是否为空
+	 * 
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * 取得容量
+	 * 
+	 * @return
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
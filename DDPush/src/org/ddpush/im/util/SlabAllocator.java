@@ -0,0 +1,185 @@
+package org.ddpush.im.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * 堆外变长数据的slab分配器，块大小按2的幂分级，每级由若干直接内存slab组成，空闲块以栈回收复用
+ * 非线程安全，由调用方加锁
+ */
+public class SlabAllocator {
+
+	/** 空句柄 */
+	public static final long NONE = -1L;
+	/** 最小块16字节 */
+	private static final int MIN_SHIFT = 4;
+
+	/** 每个slab的字节数 */
+	private final int slabBytes;
+	/** 各级 */
+	private final SizeClass[] classes;
+	/** 已申请的直接内存字节数 */
+	private long reservedBytes;
+	/** 已分配出去的块字节数 */
+	private long usedBytes;
+
+	/**
+	 * 一级定长块
+	 */
+	private static final class SizeClass {
+		final int blockSize;
+		final int blocksPerSlab;
+		final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+		/** 空闲块栈，元素为slab序号*blocksPerSlab+块序号 */
+		int[] free = new int[64];
+		int freeTop;
+		/** 最后一个slab中未用过的块起点 */
+		int nextFresh;
+
+		SizeClass(int blockSize, int slabBytes) {
+			this.blockSize = blockSize;
+			this.blocksPerSlab = Math.max(1, slabBytes / blockSize);
+			this.nextFresh = blocksPerSlab;
+		}
+	}
+
+	/**
+	 * 初始化
+	 * 
+	 * @param maxBlockSize
+	 *            可分配的最大长度
+	 * @param slabBytes
+	 *            每个slab的字节数，按需申请，不归还
+	 */
+	public SlabAllocator(int maxBlockSize, int slabBytes) {
+		int n = 1;
+		while ((1 << (MIN_SHIFT + n - 1)) < maxBlockSize) {
+			n++;
+		}
+		this.slabBytes = slabBytes;
+		this.classes = new SizeClass[n];
+		for (int i = 0; i < n; i++) {
+			classes[i] = new SizeClass(1 << (MIN_SHIFT + i), slabBytes);
+		}
+	}
+
+	private static int classOf(int length) {
+		int c = 0;
+		while ((1 << (MIN_SHIFT + c)) < length) {
+			c++;
+		}
+		return c;
+	}
+
+	/**
+	 * 分配一块
+	 * 
+	 * @param length
+	 * @return 句柄，高8位为级别，低32位为块号
+	 */
+	public long allocate(int length) {
+		int c = classOf(length);
+		if (length <= 0 || c >= classes.length) {
+			throw new IllegalArgumentException("can not allocate " + length + " bytes");
+		}
+		SizeClass sc = classes[c];
+		int block;
+		if (sc.freeTop > 0) {
+			block = sc.free[--sc.freeTop];
+		} else {
+			if (sc.nextFresh == sc.blocksPerSlab) {
+				int bytes = Math.max(slabBytes, sc.blockSize);
+				sc.slabs.add(ByteBuffer.allocateDirect(bytes));
+				reservedBytes += bytes;
+				sc.nextFresh = 0;
+			}
+			block = (sc.slabs.size() - 1) * sc.blocksPerSlab + sc.nextFresh++;
+		}
+		usedBytes += sc.blockSize;
+		return ((long) c << 56) | (block & 0xffffffffL);
+	}
+
+	/**
+	 * 释放一块
+	 * 
+	 * @param handle
+	 * @return 释放的块字节数
+	 */
+	public int free(long handle) {
+		if (handle == NONE) {
+			return 0;
+		}
+		SizeClass sc = classes[(int) (handle >>> 56)];
+		if (sc.freeTop == sc.free.length) {
+			int[] grown = new int[sc.free.length * 2];
+			System.arraycopy(sc.free, 0, grown, 0, sc.freeTop);
+			sc.free = grown;
+		}
+		sc.free[sc.freeTop++] = (int) handle;
+		usedBytes -= sc.blockSize;
+		return sc.blockSize;
+	}
+
+	/**
+	 * 块能否容纳指定长度，长度不变时可原地覆盖
+	 * 
+	 * @param handle
+	 * @param length
+	 * @return
+	 */
+	public boolean fits(long handle, int length) {
+		return handle != NONE && length > 0 && classOf(length) == (int) (handle >>> 56);
+	}
+
+	/**
+	 * 写入块
+	 * 
+	 * @param handle
+	 * @param src
+	 * @param off
+	 * @param len
+	 */
+	public void write(long handle, byte[] src, int off, int len) {
+		SizeClass sc = classes[(int) (handle >>> 56)];
+		int block = (int) handle;
+		ByteBuffer slab = sc.slabs.get(block / sc.blocksPerSlab);
+		slab.clear();
+		slab.position((block % sc.blocksPerSlab) * sc.blockSize);
+		slab.put(src, off, len);
+	}
+
+	/**
+	 * 读出块
+	 * 
+	 * @param handle
+	 * @param dst
+	 * @param off
+	 * @param len
+	 */
+	public void read(long handle, byte[] dst, int off, int len) {
+		SizeClass sc = classes[(int) (handle >>> 56)];
+		int block = (int) handle;
+		ByteBuffer slab = sc.slabs.get(block / sc.blocksPerSlab);
+		slab.clear();
+		slab.position((block % sc.blocksPerSlab) * sc.blockSize);
+		slab.get(dst, off, len);
+	}
+
+	/**
+	 * 取得已申请的直接内存字节数
+	 * 
+	 * @return
+	 */
+	public long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 * 取得已分配出去的块字节数
+	 * 
+	 * @return
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+}
@@ -0,0 +1,138 @@
+package org.ddpush.im.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 线程工具类，按配置创建平台线程或虚拟线程，虚拟线程需要Java 21以上，通过反射调用以兼容旧版本编译和运行
+ */
+public class ThreadUtil {
+
+	/** 执行模式：平台线程池 */
+	public static final String MODE_POOL = "pool";
+	/** 执行模式：虚拟线程 */
+	public static final String MODE_VIRTUAL = "virtual";
+
+	/** 配置是否要求虚拟线程 */
+	private static final boolean VIRTUAL_REQUESTED = MODE_VIRTUAL.equalsIgnoreCase(PropertyUtil.getProperty("THREAD_MODE"));
+	/** 当前JVM是否支持虚拟线程 */
+	private static final boolean VIRTUAL_SUPPORTED;
+	/** Thread.ofVirtual() */
+	private static Method ofVirtual;
+	/** Thread.Builder.name(String) */
+	private static Method builderName;
+	/** Thread.Builder.name(String, long) */
+	private static Method builderNameCounter;
+	/** Thread.Builder.unstarted(Runnable) */
+	private static Method builderUnstarted;
+	/** Thread.Builder.factory() */
+	private static Method builderFactory;
+	/** Executors.newThreadPerTaskExecutor(ThreadFactory) */
+	private static Method newThreadPerTaskExecutor;
+
+	static {
+		boolean supported = false;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderNameCounter = builder.getMethod("name", String.class, long.class);
+			builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+			builderFactory = builder.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			supported = true;
+		} catch (Throwable t) {
+			// Java 21以下没有虚拟线程
+		}
+		VIRTUAL_SUPPORTED = supported;
+		if (VIRTUAL_REQUESTED == true && VIRTUAL_SUPPORTED == true) {
+			// 承载线程数，须在创建第一个虚拟线程前设定，0为CPU核数
+			Integer parallelism = PropertyUtil.getPropertyInt("VIRTUAL_THREAD_PARALLELISM");
+			if (parallelism > 0 && System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+				System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(parallelism));
+			}
+		}
+	}
+
+	private ThreadUtil() {
+
+	}
+
+	/**
+	 * 是否使用虚拟线程，配置要求且JVM支持时为true
+	 * 
+	 * @return
+	 */
+	public static boolean isVirtual() {
+		return VIRTUAL_REQUESTED && VIRTUAL_SUPPORTED;
+	}
+
+	/**
+	 * 当前JVM是否支持虚拟线程
+	 * 
+	 * @return
+	 */
+	public static boolean isVirtualSupported() {
+		return VIRTUAL_SUPPORTED;
+	}
+
+	/**
+	 * 取得实际生效的执行模式名称
+	 * 
+	 * @return
+	 */
+	public static String getModeName() {
+		if (VIRTUAL_REQUESTED == true && VIRTUAL_SUPPORTED == false) {
+			return MODE_POOL + " (virtual threads need java 21+)";
+		}
+		return isVirtual() ? MODE_VIRTUAL : MODE_POOL;
+	}
+
+	/**
+	 * 创建未启动的线程，虚拟线程模式下为虚拟线程
+	 * 
+	 * @param r
+	 * @param name
+	 * @return
+	 */
+	public static Thread newThread(Runnable r, String name) {
+		if (isVirtual() == true) {
+			return newVirtualThread(r, name);
+		}
+		return new Thread(r, name);
+	}
+
+	/**
+	 * 创建未启动的虚拟线程
+	 * 
+	 * @param r
+	 * @param name
+	 * @return
+	 */
+	public static Thread newVirtualThread(Runnable r, String name) {
+		try {
+			Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+			return (Thread) builderUnstarted.invoke(builder, r);
+		} catch (Exception e) {
+			throw new IllegalStateException("virtual threads not available", e);
+		}
+	}
+
+	/**
+	 * 创建每任务一个虚拟线程的执行器
+	 * 
+	 * @param namePrefix
+	 * @return
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+		try {
+			Object builder = builderNameCounter.invoke(ofVirtual.invoke(null), namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderFactory.invoke(builder);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+		} catch (Exception e) {
+			throw new IllegalStateException("virtual threads not available", e);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.ddpush.im.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶，用理论到达时间(GCRA)表示桶状态，取令牌只需一次CAS
+ * 理论到达时间不超前当前时间突发时长即可取得，单次消耗大于突发时长时也能按速率取得
+ */
+public class TokenBucket {
+
+	/** 每秒令牌数 */
+	private final long rate;
+	/** 允许的突发时长，纳秒，对应桶容量 */
+	private final long burstNanos;
+	/** 理论到达时间，纳秒 */
+	private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+	/**
+	 * 初始化
+	 * 
+	 * @param rate
+	 *            每秒令牌数
+	 * @param burstMillis
+	 *            允许的突发时长，毫秒，桶容量为rate*burstMillis/1000
+	 */
+	public TokenBucket(long rate, long burstMillis) {
+		if (rate < 1) {
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		}
+		this.rate = rate;
+		this.burstNanos = Math.max(burstMillis, 1) * 1000000L;
+	}
+
+	/**
+	 * 尝试取令牌
+	 * 
+	 * @param tokens
+	 * @return 取得返回0，否则返回还需等待的纳秒数，不消耗令牌
+	 */
+	public long tryAcquire(long tokens) {
+		long cost = cost(tokens);
+		while (true) {
+			long now = System.nanoTime();
+			long t = tat.get();
+			long ahead = t - now - burstNanos;
+			if (ahead > 0) {
+				return ahead;
+			}
+			if (tat.compareAndSet(t, (t - now > 0 ? t : now) + cost)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * 退还已取得的令牌
+	 * 
+	 * @param tokens
+	 */
+	public void refund(long tokens) {
+		tat.addAndGet(-cost(tokens));
+	}
+
+	/**
+	 * 取得每秒令牌数
+	 * 
+	 * @return
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	private long cost(long tokens) {
+		return tokens * 1000000000L / rate;
+	}
+}
@@ -0,0 +1,548 @@
+package org.ddpush.im.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 以16字节uuid(两个long)为键的并发开放寻址散列表，按段加锁，读操作走乐观读不加锁，查找和更新不产生对象分配
+ */
+public class UuidMap<V> {
+
+	/**
+	 * 遍历回调
+	 */
+	public interface Visitor<V> {
+		/**
+		 * 访问一个条目
+		 * 
+		 * @param msb
+		 * @param lsb
+		 * @param value
+		 * @return 返回false停止遍历
+		 */
+		boolean visit(long msb, long lsb, V value);
+	}
+
+	/**
+	 * 条件删除回调
+	 */
+	public interface Filter<V> {
+		/**
+		 * 判断条目是否删除
+		 * 
+		 * @param msb
+		 * @param lsb
+		 * @param value
+		 * @return 返回true删除
+		 */
+		boolean remove(long msb, long lsb, V value);
+	}
+
+	/** 最大负载因子 */
+	private static final float LOAD_FACTOR = 0.75f;
+	/** 段最小容量 */
+	private static final int MIN_CAPACITY = 16;
+
+	/** 段 */
+	private final Segment<V>[] segments;
+	/** 段下标移位 */
+	private final int segmentShift;
+
+	/**
+	 * 段内的表，扩容时整体替换，保证乐观读看到的键和值数组一致
+	 */
+	private static final class Table {
+		/** 键，每槽两个long */
+		final long[] keys;
+		/** 值，null为空槽 */
+		final Object[] values;
+		/** 下标掩码 */
+		final int mask;
+
+		Table(int capacity) {
+			keys = new long[capacity * 2];
+			values = new Object[capacity];
+			mask = capacity - 1;
+		}
+	}
+
+	/**
+	 * 段，线性探测，删除时后移回填，不使用墓碑
+	 */
+	private static final class Segment<V> {
+		final StampedLock lock = new StampedLock();
+		volatile Table table;
+		volatile int size;
+		int threshold;
+
+		Segment(int capacity) {
+			table = new Table(capacity);
+			threshold = (int) (capacity * LOAD_FACTOR);
+		}
+	}
+
+	/**
+	 * 初始化
+	 * 
+	 * @param segmentNum
+	 *            段数，向上取整为2的幂
+	 * @param initialCapacity
+	 *            预计条目数
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public UuidMap(int segmentNum, int initialCapacity) {
+		int ssize = 1;
+		int sbits = 0;
+		while (ssize < segmentNum) {
+			ssize <<= 1;
+			sbits++;
+		}
+		segmentShift = 32 - sbits;
+		int perSegment = tableSizeFor((int) Math.min(Integer.MAX_VALUE / 2, (long) (initialCapacity / ssize / LOAD_FACTOR) + 1));
+		segments = new Segment[ssize];
+		for (int i = 0; i < ssize; i++) {
+			segments[i] = new Segment<V>(perSegment);
+		}
+	}
+
+	/**
+	 * 散列，uuid通常已是均匀的md5，仍做一次混合以防规律的uuid
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return
+	 */
+	public static int hash(long msb, long lsb) {
+		long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Segment<V> segmentFor(int h) {
+		return segments.length == 1 ? segments[0] : segments[h >>> segmentShift];
+	}
+
+	private static int tableSizeFor(int n) {
+		int size = MIN_CAPACITY;
+		while (size < n) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * 在表中查找键所在的槽
+	 * 
+	 * @return 未找到返回-1
+	 */
+	private static int find(Table t, int h, long msb, long lsb) {
+		int mask = t.mask;
+		int i = h & mask;
+		for (int n = 0; n <= mask; n++) {
+			if (t.values[i] == null) {
+				return -1;
+			}
+			if (t.keys[i << 1] == msb && t.keys[(i << 1) + 1] == lsb) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * 取值
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long msb, long lsb) {
+		int h = hash(msb, lsb);
+		Segment<V> s = segmentFor(h);
+		long stamp = s.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			Table t = s.table;
+			int i = find(t, h, msb, lsb);
+			Object v = i < 0 ? null : t.values[i];
+			if (s.lock.validate(stamp)) {
+				return (V) v;
+			}
+		}
+		stamp = s.lock.readLock();
+		try {
+			Table t = s.table;
+			int i = find(t, h, msb, lsb);
+			return i < 0 ? null : (V) t.values[i];
+		} finally {
+			s.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * 放入
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param value
+	 * @return 原值
+	 */
+	public V put(long msb, long lsb, V value) {
+		return put(msb, lsb, value, false);
+	}
+
+	/**
+	 * 不存在时放入
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param value
+	 * @return 已存在的值，放入成功返回null
+	 */
+	public V putIfAbsent(long msb, long lsb, V value) {
+		return put(msb, lsb, value, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private V put(long msb, long lsb, V value, boolean onlyIfAbsent) {
+		if (value == null) {
+			throw new NullPointerException("value is null");
+		}
+		int h = hash(msb, lsb);
+		Segment<V> s = segmentFor(h);
+		long stamp = s.lock.writeLock();
+		try {
+			Table t = s.table;
+			int mask = t.mask;
+			int i = h & mask;
+			while (t.values[i] != null) {
+				if (t.keys[i << 1] == msb && t.keys[(i << 1) + 1] == lsb) {
+					V old = (V) t.values[i];
+					if (onlyIfAbsent == false) {
+						t.values[i] = value;
+					}
+					return old;
+				}
+				i = (i + 1) & mask;
+			}
+			t.keys[i << 1] = msb;
+			t.keys[(i << 1) + 1] = lsb;
+			t.values[i] = value;
+			if (++s.size > s.threshold) {
+				resize(s);
+			}
+			return null;
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * 删除
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 原值
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long msb, long lsb) {
+		int h = hash(msb, lsb);
+		Segment<V> s = segmentFor(h);
+		long stamp = s.lock.writeLock();
+		try {
+			Table t = s.table;
+			int i = find(t, h, msb, lsb);
+			if (i < 0) {
+				return null;
+			}
+			V old = (V) t.values[i];
+			delete(s, t, i);
+			return old;
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * 值相同时删除
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param expected
+	 * @return
+	 */
+	public boolean remove(long msb, long lsb, V expected) {
+		int h = hash(msb, lsb);
+		Segment<V> s = segmentFor(h);
+		long stamp = s.lock.writeLock();
+		try {
+			Table t = s.table;
+			int i = find(t, h, msb, lsb);
+			if (i < 0 || t.values[i] != expected) {
+				return false;
+			}
+			delete(s, t, i);
+			return true;
+		} finally {
+			s.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * 删除槽i，并把其后同一探测链上的条目前移
+	 */
+	private static void delete(Segment<?> s, Table t, int i) {
+		int mask = t.mask;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (t.values[j] == null) {
+				break;
+			}
+			int home = hash(t.keys[j << 1], t.keys[(j << 1) + 1]) & mask;
+			// home不在(i, j]之间时，j上的条目可以前移到i
+			if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+				t.keys[i << 1] = t.keys[j << 1];
+				t.keys[(i << 1) + 1] = t.keys[(j << 1) + 1];
+				t.values[i] = t.values[j];
+				i = j;
+			}
+		}
+		t.values[i] = null;
+		t.keys[i << 1] = 0;
+		t.keys[(i << 1) + 1] = 0;
+		s.size--;
+	}
+
+	/**
+	 * 段扩容为两倍，调用者持有写锁
+	 */
+	private static void resize(Segment<?> s) {
+		Table old = s.table;
+		int capacity = (old.mask + 1) << 1;
+		Table t = new Table(capacity);
+		int mask = t.mask;
+		for (int i = 0; i <= old.mask; i++) {
+			Object v = old.values[i];
+			if (v == null) {
+				continue;
+			}
+			long msb = old.keys[i << 1];
+			long lsb = old.keys[(i << 1) + 1];
+			int j = hash(msb, lsb) & mask;
+			while (t.values[j] != null) {
+				j = (j + 1) & mask;
+			}
+			t.keys[j << 1] = msb;
+			t.keys[(j << 1) + 1] = lsb;
+			t.values[j] = v;
+		}
+		s.table = t;
+		s.threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * 逐段遍历，遍历一个段时持有该段读锁，回调中不能修改本表
+	 * 
+	 * @param visitor
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<V> visitor) {
+		for (int k = 0; k < segments.length; k++) {
+			Segment<V> s = segments[k];
+			long stamp = s.lock.readLock();
+			try {
+				Table t = s.table;
+				for (int i = 0; i <= t.mask; i++) {
+					Object v = t.values[i];
+					if (v != null && visitor.visit(t.keys[i << 1], t.keys[(i << 1) + 1], (V) v) == false) {
+						return;
+					}
+				}
+			} finally {
+				s.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * 分块遍历一个段，每次只在读锁内访问约maxSlots个槽位，块在空槽处结束，
+	 * 删除时的后移回填只在簇内进行，不会把未访问的条目移到已访问的位置；段在两次调用之间扩容时从头重新遍历
+	 * 
+	 * @param segment
+	 * @param cursor
+	 *            上次返回的游标，从头开始为0
+	 * @param maxSlots
+	 * @param visitor
+	 *            返回值被忽略
+	 * @return 下次的游标，段遍历完返回-1
+	 */
+	@SuppressWarnings("unchecked")
+	public long forEachChunk(int segment, long cursor, int maxSlots, Visitor<V> visitor) {
+		Segment<V> s = segments[segment];
+		long stamp = s.lock.readLock();
+		try {
+			Table t = s.table;
+			int capacity = t.mask + 1;
+			int i = (int) (cursor >>> 32) == capacity ? (int) cursor : 0;
+			int end = i + maxSlots;
+			while (i < capacity) {
+				Object v = t.values[i];
+				if (v == null) {
+					if (i >= end) {
+						return ((long) capacity << 32) | (i + 1);
+					}
+				} else {
+					visitor.visit(t.keys[i << 1], t.keys[(i << 1) + 1], (V) v);
+				}
+				i++;
+			}
+			return -1;
+		} finally {
+			s.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * 按条件删除，逐段持有写锁
+	 * 
+	 * @param filter
+	 * @return 删除数
+	 */
+	@SuppressWarnings("unchecked")
+	public int removeIf(Filter<V> filter) {
+		int removed = 0;
+		for (int k = 0; k < segments.length; k++) {
+			Segment<V> s = segments[k];
+			long stamp = s.lock.writeLock();
+			try {
+				Table t = s.table;
+				int i = 0;
+				while (i <= t.mask) {
+					Object v = t.values[i];
+					if (v != null && filter.remove(t.keys[i << 1], t.keys[(i << 1) + 1], (V) v) == true) {
+						// 后移回填可能把后面的条目移到i，需重新检查i
+						delete(s, t, i);
+						removed++;
+						continue;
+					}
+					i++;
+				}
+			} finally {
+				s.lock.unlockWrite(stamp);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * 取得条目数
+	 * 
+	 * @return
+	 */
+	public int size() {
+		long sum = 0;
+		for (int i = 0; i < segments.length; i++) {
+			sum += segments[i].size;
+		}
+		return (int) Math.min(sum, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 取得段数
+	 * 
+	 * @return
+	 */
+	public int getSegmentNum() {
+		return segments.length;
+	}
+
+	/**
+	 * 取得各段槽位总数
+	 * 
+	 * @return
+	 */
+	public long capacity() {
+		long sum = 0;
+		for (int i = 0; i < segments.length; i++) {
+			sum += segments[i].table.mask + 1;
+		}
+		return sum;
+	}
+
+	/**
+	 * 从字节数组读取大端long
+	 * 
+	 * @param data
+	 * @param pos
+	 * @return
+	 */
+	public static long readLong(byte[] data, int pos) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (data[pos + i] & 0xff);
+		}
+		return v;
+	}
+
+	/**
+	 * 解析16个十六进制字符为long
+	 * 
+	 * @param s
+	 * @param pos
+	 * @return
+	 */
+	public static long parseHexLong(CharSequence s, int pos) {
+		long v = 0;
+		for (int i = 0; i < 16; i++) {
+			v = (v << 4) | Character.digit(s.charAt(pos + i), 16);
+		}
+		return v;
+	}
+
+	/**
+	 * 解析16个十六进制ascii字节为long
+	 * 
+	 * @param ascii
+	 * @param pos
+	 * @return
+	 */
+	public static long parseHexLong(byte[] ascii, int pos) {
+		long v = 0;
+		for (int i = 0; i < 16; i++) {
+			v = (v << 4) | Character.digit((char) ascii[pos + i], 16);
+		}
+		return v;
+	}
+
+	/**
+	 * 把long写为16个小写十六进制ascii字节
+	 * 
+	 * @param v
+	 * @param out
+	 * @param pos
+	 */
+	public static void writeHexLong(long v, byte[] out, int pos) {
+		for (int i = 15; i >= 0; i--) {
+			int d = (int) (v & 0x0f);
+			out[pos + i] = (byte) (d < 10 ? '0' + d : 'a' + d - 10);
+			v >>>= 4;
+		}
+	}
+
+	/**
+	 * 转为32位小写十六进制字符串
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return
+	 */
+	public static String toHexString(long msb, long lsb) {
+		byte[] b = new byte[32];
+		writeHexLong(msb, b, 0);
+		writeHexLong(lsb, b, 16);
+		return new String(b, StandardCharsets.US_ASCII);
+	}
+}
@@ -1,166 +1,275 @@
-/*
- *Copyright 2014 DDPush
- *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
- *Email: ddpush@126.com
- *
-
-Licensed under the Apache License, Version 2.0 (the "License");
-you may not use this file except in compliance with the License.
-You may obtain a copy of the License at
-
-    http://www.apache.org/licenses/LICENSE-2.0
-
-Unless required by applicable law or agreed to in writing, software
-distributed under the License is distributed on an "AS IS" BASIS,
-WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-See the License for the specific language governing permissions and
-limitations under the License.
-
-*/
-package org.ddpush.im.v1.node;
-
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-
-import org.ddpush.im.util.StringUtil;
-
-/**
- * 客户端消息体定义
- */
-public final class ClientMessage{
-	
-	/** 套接字地址 */
-	protected SocketAddress address;
-	/** 消息体 */
-	protected byte[] data;
-	
-	/**
-	 * 初始化
-	 */
-	public ClientMessage(SocketAddress address, byte[] data) throws Exception{
-		this.address = address;
-		this.data = data;
-	}
-	
-//	public static org.ddpush.im.node.Message getNewInstance(){
-//		return null;
-//	}
-	
-	/**
-	 * 设定消息体
-	 */
-	public void setData(byte[] data){
-		this.data = data;
-	}
-	
-	/**
-	 * 取得消息体
-	 * @return
-	 */
-	public byte[] getData(){
-		return this.data;
-	}
-	
-	/**
-	 * 取得套接字地址
-	 * @return
-	 */
-	public SocketAddress getSocketAddress(){
-		return this.address;
-	}
-	
-	/**
-	 * 设定消息体地址
-	 * @param addr SocketAddress
-	 */
-	public void setSocketAddress(SocketAddress addr){
-		this.address = addr;
-	}
-	
-	/**
-	 * 取得消息体内的version内容
-	 * @return
-	 */
-	public int getVersionNum(){
-		byte b = data[0];
-		return b & 0xff;
-	}
-	
-	/**
-	 * 取得消息体内命令内容 0:心跳包 16:通用消息 17:分类信息 32:自定义消息
-	 * @return
-	 */
-	public int getCmd(){
-		byte b = data[2];
-		return b & 0xff;
-	}
-	
-	/**
-	 * 取最后实际消息内容长度
-	 * @return
-	 */
-	public int getDataLength(){
-		return (int)ByteBuffer.wrap(data, 19, 2).getChar();
-	}
-	
-	/**
-	 * 取得uuid
-	 * @return
-	 */
-	public String getUuidHexString(){
-		return StringUtil.convert(data, 3, 16);
-	}
-	
-	/**
-	 * 验证消息体格式
-	 * @return
-	 */
-	public boolean checkFormat(){
-		if(this.data == null){
-			return false;
-		}
-		if(data.length < Constant.CLIENT_MESSAGE_MIN_LENGTH){
-			return false;
-		}
-		if(getVersionNum() != Constant.VERSION_NUM){
-			return false;
-		}
-
-		int cmd = getCmd();
-		if(cmd != ClientStatMachine.CMD_0x00
-				//&& cmd != ClientStatMachine.CMD_0x01
-				&& cmd != ClientStatMachine.CMD_0x10
-				&& cmd != ClientStatMachine.CMD_0x11
-				&& cmd != ClientStatMachine.CMD_0x20
-				&& cmd != ClientStatMachine.CMD_0xff){
-			return false;
-		}
-		int dataLen = getDataLength();
-		if(data.length != dataLen + Constant.CLIENT_MESSAGE_MIN_LENGTH){
-			return false;
-		}
-		
-		if(cmd ==  ClientStatMachine.CMD_0x00 && dataLen != 0){
-			return false;
-		}
-		
-		if(cmd ==  ClientStatMachine.CMD_0x10 && dataLen != 0){
-			return false;
-		}
-		
-		if(cmd ==  ClientStatMachine.CMD_0x11 && dataLen != 8){
-			return false;
-		}
-		
-		if(cmd ==  ClientStatMachine.CMD_0x20 && dataLen != 0){
-			return false;
-		}
-		
-		return true;
-	}
-	
-//	public byte[] getUUID(){
-//		return 
-//	}
-
-}
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.ddpush.im.v1.node;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import org.ddpush.im.util.StringUtil;
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 客户端消息体定义
+ */
+public final class ClientMessage{
+	
+	/** 套接字地址 */
+	protected SocketAddress address;
+	/** 消息体 */
+	protected byte[] data;
+	/** 消息体有效长度，池化消息的data数组可能长于实际内容 */
+	protected int length;
+	/** 是否为池化复用的消息 */
+	protected final boolean pooled;
+	/** 接收该消息的UDP分片序号，非UDP消息为-1 */
+	protected int shard = -1;
+	
+	/**
+	 * 初始化
+	 */
+	public ClientMessage(SocketAddress address, byte[] data) throws Exception{
+		this.address = address;
+		this.data = data;
+		this.length = data == null ? 0 : data.length;
+		this.pooled = false;
+	}
+	
+	/**
+	 * 初始化池化消息，预分配定长消息体
+	 * @param capacity 消息体最大长度
+	 */
+	public ClientMessage(int capacity){
+		this.data = new byte[capacity];
+		this.length = 0;
+		this.pooled = true;
+	}
+	
+//	public static org.ddpush.im.node.Message getNewInstance(){
+//		return null;
+//	}
+	
+	/**
+	 * 设定消息体
+	 */
+	public void setData(byte[] data){
+		this.data = data;
+		this.length = data == null ? 0 : data.length;
+	}
+	
+	/**
+	 * 从缓冲中复制消息体，不分配新数组
+	 * @param address 来源地址
+	 * @param buffer 已flip的缓冲
+	 * @return 内容超过消息体容量时返回false
+	 */
+	public boolean fill(SocketAddress address, ByteBuffer buffer){
+		int len = buffer.remaining();
+		if(len > data.length){
+			return false;
+		}
+		buffer.get(data, 0, len);
+		this.address = address;
+		this.length = len;
+		return true;
+	}
+	
+	/**
+	 * 归还池前清理引用
+	 */
+	public void reset(){
+		this.address = null;
+		this.length = 0;
+		this.shard = -1;
+	}
+	
+	/**
+	 * 取得消息体有效长度
+	 * @return
+	 */
+	public int getLength(){
+		return this.length;
+	}
+	
+	/**
+	 * 是否为池化消息
+	 * @return
+	 */
+	public boolean isPooled(){
+		return this.pooled;
+	}
+	
+	/**
+	 * 取得消息体
+	 * @return
+	 */
+	public byte[] getData(){
+		return this.data;
+	}
+	
+	/**
+	 * 取得套接字地址
+	 * @return
+	 */
+	public SocketAddress getSocketAddress(){
+		return this.address;
+	}
+	
+	/**
+	 * 设定消息体地址
+	 * @param addr SocketAddress
+	 */
+	public void setSocketAddress(SocketAddress addr){
+		this.address = addr;
+	}
+	
+	/**
+	 * 取得接收分片序号
+	 * @return
+	 */
+	public int getShard(){
+		return this.shard;
+	}
+	
+	/**
+	 * 设定接收分片序号
+	 * @param shard
+	 */
+	public void setShard(int shard){
+		this.shard = shard;
+	}
+	
+	/**
+	 * 取得消息体内的version内容
+	 * @return
+	 */
+	public int getVersionNum(){
+		byte b = data[0];
+		return b & 0xff;
+	}
+	
+	/**
+	 * 取得消息体内命令内容 0:心跳包 16:通用消息 17:分类信息 32:自定义消息
+	 * @return
+	 */
+	public int getCmd(){
+		byte b = data[2];
+		return b & 0xff;
+	}
+	
+	/**
+	 * 取最后实际消息内容长度
+	 * @return
+	 */
+	public int getDataLength(){
+		return (int)ByteBuffer.wrap(data, 19, 2).getChar();
+	}
+	
+	/**
+	 * 取得uuid
+	 * @return
+	 */
+	public String getUuidHexString(){
+		return StringUtil.convert(data, 3, 16);
+	}
+	
+	/**
+	 * 取得uuid高8字节，直接由消息体读取，不生成字符串
+	 * @return
+	 */
+	public long getUuidMsb(){
+		return UuidMap.readLong(data, 3);
+	}
+	
+	/**
+	 * 取得uuid低8字节
+	 * @return
+	 */
+	public long getUuidLsb(){
+		return UuidMap.readLong(data, 11);
+	}
+	
+	/**
+	 * 取得uuid的散列值，直接由消息体计算，不生成字符串
+	 * @return 长度不足时返回0
+	 */
+	public int getUuidHash(){
+		if(length < 19){
+			return 0;
+		}
+		int h = 1;
+		for(int i = 3; i < 19; i++){
+			h = 31 * h + data[i];
+		}
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * 验证消息体格式
+	 * @return
+	 */
+	public boolean checkFormat(){
+		if(this.data == null){
+			return false;
+		}
+		if(length < Constant.CLIENT_MESSAGE_MIN_LENGTH){
+			return false;
+		}
+		if(getVersionNum() != Constant.VERSION_NUM){
+			return false;
+		}
+
+		int cmd = getCmd();
+		if(cmd != ClientStatMachine.CMD_0x00
+				//&& cmd != ClientStatMachine.CMD_0x01
+				&& cmd != ClientStatMachine.CMD_0x10
+				&& cmd != ClientStatMachine.CMD_0x11
+				&& cmd != ClientStatMachine.CMD_0x20
+				&& cmd != ClientStatMachine.CMD_0xff){
+			return false;
+		}
+		int dataLen = getDataLength();
+		if(length != dataLen + Constant.CLIENT_MESSAGE_MIN_LENGTH){
+			return false;
+		}
+		
+		if(cmd ==  ClientStatMachine.CMD_0x00 && dataLen != 0){
+			return false;
+		}
+		
+		if(cmd ==  ClientStatMachine.CMD_0x10 && dataLen != 0){
+			return false;
+		}
+		
+		if(cmd ==  ClientStatMachine.CMD_0x11 && dataLen != 8){
+			return false;
+		}
+		
+		if(cmd ==  ClientStatMachine.CMD_0x20 && dataLen != 0){
+			return false;
+		}
+		
+		return true;
+	}
+	
+//	public byte[] getUUID(){
+//		return 
+//	}
+
+}
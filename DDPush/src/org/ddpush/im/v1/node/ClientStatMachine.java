@@ -1,638 +1,823 @@
-/*
- *Copyright 2014 DDPush
- *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
- *Email: ddpush@126.com
- *
-
-Licensed under the Apache License, Version 2.0 (the "License");
-you may not use this file except in compliance with the License.
-You may obtain a copy of the License at
-
-    http://www.apache.org/licenses/LICENSE-2.0
-
-Unless required by applicable law or agreed to in writing, software
-distributed under the License is distributed on an "AS IS" BASIS,
-WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-See the License for the specific language governing permissions and
-limitations under the License.
-
- */
-package org.ddpush.im.v1.node;
-
-import java.lang.ref.WeakReference;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-
-import org.ddpush.im.util.PropertyUtil;
-import org.ddpush.im.v1.node.ClientMessage;
-import org.ddpush.im.v1.node.Constant;
-import org.ddpush.im.v1.node.ServerMessage;
-import org.ddpush.im.v1.node.tcpconnector.MessengerTask;
-
-/**
- * uuid终端状态机
- */
-public class ClientStatMachine {
-
-	/** 心跳包 */
-	public static final int CMD_0x00 = 0;// 心跳包
-	/** 登录包 */
-	public static final int CMD_0x01 = 1;// 登录包
-	/** 通用信息 */
-	public static final int CMD_0x10 = 16;// 通用信息
-	/** 分类信息 */
-	public static final int CMD_0x11 = 17;// 分类信息
-	/** 自定义信息 */
-	public static final int CMD_0x20 = 32;// 自定义信息
-	/** 重置命令 */
-	public static final int CMD_0xff = 255;// 重置命令
-	/** 客户端离线判定 */
-	public static int PUSH_IM_AFTER_ACTIVE_SECOND = 60;
-	/** 回应客户端心跳：从不 */
-	private static final int POLICY_NEVER = 0;
-	/** 回应客户端心跳：套接字变更时回应 */
-	private static final int POLICY_SA_CHANGED = 1;
-	/** 回应客户端心跳：总是回应 */
-	private static final int POLICY_ALWAYS = 2;
-	/** 回应客户端心跳协议 */
-	private static int ackHeartbeatPolicy;
-	/** 是否生产状态机 */
-	private static boolean createByClient = "YES".equalsIgnoreCase(PropertyUtil.getProperty("CREATE_MACHINE_BY_CLIENT")) ? true : false;
-	/** 最后心跳时间 */
-	private long lastTick = -1;// 最后心跳时间
-	/** 最后网络地址 */
-	private SocketAddress lastAddr = null;// 最后心跳等的网络地址
-	/** 是否有通用信息未接收 */
-	private boolean hasMessage0x10 = false;// 是否有通用信息未接收
-	/** 最后通用信息时间 */
-	private long last0x10Time = -1;// 最后通用信息时间
-	/** 最新分类信息通知 */
-	private long message0x11 = 0;// 最新分类信息通知
-	/** 最新分类信息通知时间 */
-	private long last0x11Time = -1;// 最新分类信息通知时间
-	/** 是否有自定义信息未接收 */
-	private int message0x20Len = 0;// 是否有自定义信息未接收
-	/** 最新自定义信息时间 */
-	private long last0x20Time = -1;// 最新自定义信息时间
-	/** 最新自定义信息内容数组 */
-	private byte[] message0x20 = null;
-	/** 若引用消息处理任务 */
-	private WeakReference<MessengerTask> messengerTaskRef = null;
-	/** 取得回应心跳协议 */
-	static {
-		String strPolicy = PropertyUtil.getProperty("ACK_HEARTBEAT_POLICY");
-		if ("always".equalsIgnoreCase(strPolicy)) {
-			ackHeartbeatPolicy = POLICY_ALWAYS;
-		} else if ("sa_changed".equalsIgnoreCase(strPolicy)) {
-			ackHeartbeatPolicy = POLICY_SA_CHANGED;
-		} else {
-			ackHeartbeatPolicy = POLICY_NEVER;
-		}
-	}
-
-	/**
-	 * 空实例
-	 */
-	private ClientStatMachine() {
-
-	}
-
-	/**
-	 * 设定处理消息任务
-	 * 
-	 * @param messengerTask
-	 */
-	public void setMessengerTask(MessengerTask messengerTask) {
-		this.messengerTaskRef = new WeakReference<MessengerTask>(messengerTask);
-	}
-
-	/**
-	 * 取得消息处理任务
-	 * 
-	 * @return
-	 */
-	public MessengerTask getMessengerTask() {
-		if (this.messengerTaskRef == null)
-			return null;
-		return this.messengerTaskRef.get();
-	}
-
-	/**
-	 * 取得最后心跳时间
-	 * 
-	 * @return
-	 */
-	public long getLastTick() {
-		return lastTick;
-	}
-
-	/**
-	 * 取得最后心跳地址
-	 * 
-	 * @return
-	 */
-	public SocketAddress getLastAddr() {
-		return lastAddr;
-	}
-
-	/**
-	 * 取得最后通用命令时间
-	 * 
-	 * @return
-	 */
-	public long getLast0x10Time() {
-		return last0x10Time;
-	}
-
-	/**
-	 * 最后分类信息时间
-	 * 
-	 * @return
-	 */
-	public long getLast0x11Time() {
-		return last0x11Time;
-	}
-
-	/**
-	 * 最后自定义时间
-	 * 
-	 * @return
-	 */
-	public long getLast0x20Time() {
-		return last0x20Time;
-	}
-
-	/**
-	 * 取得自定义消息内容长度
-	 * 
-	 * @return
-	 */
-	public int getMessage0x20Len() {
-		return this.message0x20Len;
-	}
-
-	/**
-	 * 取得自定义消息内容数组
-	 * 
-	 * @return
-	 */
-	public byte[] getMessage0x20() {
-		return this.message0x20;
-	}
-
-	/**
-	 * 根据心跳包创建新的状态机
-	 * 
-	 * @param m
-	 * @return
-	 * @throws NullPointerException
-	 */
-	public static ClientStatMachine newByClientTick(ClientMessage m) throws NullPointerException {
-
-		if (m == null) {
-			return null;
-		}
-		if (createByClient == false) {
-			return null;
-		}
-		// if(m.getSocketAddress() == null){
-		// return null;
-		// }
-		if (m.getCmd() != ClientStatMachine.CMD_0x00) {
-			return null;// 非心跳包不产生新的状态机，以后可能登录包也会产生新状态机
-		}
-		ClientStatMachine csm = new ClientStatMachine();
-		// csm.lastAddr = address;不能设置该值，否则创建状态机后第一次onClientMessage不回发心跳了
-		csm.lastTick = System.currentTimeMillis();
-		return csm;
-	}
-
-	/**
-	 * 根据push消息创建新的状态机
-	 * 
-	 * @param pm
-	 * @return
-	 * @throws NullPointerException
-	 */
-	public static ClientStatMachine newByPushReq(PushMessage pm) throws NullPointerException {
-
-		if (pm == null) {
-			return null;
-		}
-
-		ClientStatMachine csm = new ClientStatMachine();
-		if (pm.getCmd() == ClientStatMachine.CMD_0x10) {
-			csm.hasMessage0x10 = true;
-			csm.last0x10Time = System.currentTimeMillis();
-		} else if (pm.getCmd() == ClientStatMachine.CMD_0x11) {
-			byte[] data = pm.getData();
-			csm.message0x11 = ByteBuffer.wrap(data, data.length - 8, 8).getLong();
-			csm.last0x11Time = System.currentTimeMillis();
-		} else if (pm.getCmd() == ClientStatMachine.CMD_0x20) {
-			csm.message0x20Len = pm.getContentLength();
-			csm.last0x20Time = System.currentTimeMillis();
-			csm.message0x20 = new byte[csm.message0x20Len];
-			System.arraycopy(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, csm.message0x20, 0, csm.message0x20Len);
-		} else {
-			return null;
-		}
-		csm.lastTick = System.currentTimeMillis();
-
-		return csm;
-	}
-
-	/**
-	 * 通过保存的文件创建状态机
-	 * 
-	 * @param lastTick
-	 * @param hasMessage0x10
-	 * @param last0x10Time
-	 * @param message0x11
-	 * @param last0x11Time
-	 * @param message0x20Len
-	 * @param last0x20Time
-	 * @param message0x20
-	 * @return
-	 */
-	public static ClientStatMachine newFromFile(long lastTick, boolean hasMessage0x10, long last0x10Time, long message0x11, long last0x11Time,
-			int message0x20Len, long last0x20Time, byte[] message0x20) {
-		ClientStatMachine csm = new ClientStatMachine();
-		csm.lastTick = lastTick;
-		csm.hasMessage0x10 = hasMessage0x10;
-		csm.last0x10Time = last0x10Time;
-		csm.message0x11 = message0x11;
-		csm.last0x11Time = last0x11Time;
-		csm.message0x20Len = message0x20Len;
-		csm.last0x20Time = last0x20Time;
-		csm.message0x20 = message0x20;
-		return csm;
-	}
-
-	/**
-	 * 是否有通用消息
-	 * 
-	 * @return
-	 */
-	public boolean has0x10Message() {
-		return hasMessage0x10;
-	}
-
-	/**
-	 * 是否有分类消息
-	 * 
-	 * @return
-	 */
-	public boolean has0x11Message() {
-		if (this.message0x11 == 0) {
-			return false;
-		}
-		return true;
-	}
-
-	/**
-	 * 是否有自定义消息
-	 * 
-	 * @return
-	 */
-	public boolean has0x20Message() {
-		if (this.message0x20 == null || this.message0x20Len <= 0) {
-			return false;
-		}
-		return true;
-	}
-
-	/**
-	 * 取得最后的分类消息
-	 * 
-	 * @return
-	 */
-	public long get0x11Message() {
-		return this.message0x11;
-	}
-
-	/**
-	 * 设定有最新的分类消息
-	 */
-	public void new0x10Message() {
-		this.hasMessage0x10 = true;
-		this.last0x10Time = System.currentTimeMillis();
-	}
-
-	/**
-	 * 删除最后的分类消息
-	 */
-	public void clear0x10Message() {
-		this.hasMessage0x10 = false;
-		// this.last0x10Time = -1;
-		// this.last0x10Time = System.currentTimeMillis();
-	}
-
-	/**
-	 * 设定新的分类消息,或运算
-	 * 
-	 * @param newMessage
-	 */
-	public void new0x11Message(long newMessage) {
-		this.message0x11 = this.message0x11 | newMessage;
-		this.last0x11Time = System.currentTimeMillis();
-	}
-
-	/**
-	 * 按命令，清除分类消息
-	 * 
-	 * @param confirm
-	 */
-	public void clear0x11Message(long confirm) {
-		this.message0x11 = this.message0x11 & (~confirm);
-	}
-
-	/**
-	 * 按命令内容，清除分类消息
-	 * 
-	 * @param array
-	 * @param pos
-	 * @throws Exception
-	 */
-	public void clear0x11Message(final byte[] array, int pos) throws Exception {
-		if (array == null) {
-			throw new NullPointerException("param byte array is null");
-		}
-		if (array.length < pos + 8) {
-			throw new ArrayIndexOutOfBoundsException("illegal byte array length and position, at least 8 byte");
-		}
-		clear0x11Message(((ByteBuffer) ByteBuffer.wrap(array, pos, 8)).getLong());
-	}
-
-	/**
-	 * 清除自定义消息
-	 */
-	public void clear0x20Message() {
-		message0x20Len = 0;
-		// last0x20Time = System.currentTimeMillis();
-		message0x20 = null;
-	}
-
-	/**
-	 * 向客户端push消息
-	 * 
-	 * @param pm
-	 * @throws Exception
-	 */
-	public synchronized void onPushMessage(PushMessage pm) throws Exception {
-		if (pm == null) {
-			throw new NullPointerException("param push message is null");
-		}
-		if (pm.getCmd() == ClientStatMachine.CMD_0x10) {
-			this.hasMessage0x10 = true;
-			this.last0x10Time = System.currentTimeMillis();
-			push0x10();
-		} else if (pm.getCmd() == ClientStatMachine.CMD_0x11) {
-			message0x11 = message0x11 | ByteBuffer.wrap(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, 8).getLong();
-			this.last0x11Time = System.currentTimeMillis();
-			push0x11();
-		} else if (pm.getCmd() == ClientStatMachine.CMD_0x20) {
-			message0x20Len = pm.getContentLength();
-			last0x20Time = System.currentTimeMillis();
-			message0x20 = new byte[message0x20Len];
-			System.arraycopy(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, message0x20, 0, message0x20Len);
-			push0x20();
-		} else {
-			// do nothing
-		}
-	}
-
-	private void push0x10() throws Exception {
-		if (this.hasMessage0x10 == false) {
-			return;
-		}
-		if ((this.lastAddr == null || (System.currentTimeMillis() - this.lastTick) > 1000 * PUSH_IM_AFTER_ACTIVE_SECOND) && this.getMessengerTask() == null) {
-			return;
-		}
-		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH];// 5 bytes
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put((byte) 1);// version
-		bb.put((byte) 0);// app id,0 here
-		bb.put((byte) ClientStatMachine.CMD_0x10);// cmd
-		bb.putShort((short) 0);// length 0
-		bb.flip();
-		ServerMessage sm = new ServerMessage(this.lastAddr, data);
-		if (this.lastAddr != null && (System.currentTimeMillis() - this.lastTick) < 1000 * PUSH_IM_AFTER_ACTIVE_SECOND) {
-			IMServer.getInstance().pushInstanceMessage(sm);
-		}
-		if (this.getMessengerTask() != null) {
-			try {
-				this.getMessengerTask().pushInstanceMessage(sm);
-			} catch (Exception e) {
-			}
-		}
-	}
-
-	private void push0x11() throws Exception {
-		if (this.message0x11 == 0) {
-			return;
-		}
-		if ((this.lastAddr == null || (System.currentTimeMillis() - this.lastTick) > 1000 * PUSH_IM_AFTER_ACTIVE_SECOND) && this.getMessengerTask() == null) {
-			return;
-		}
-		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH + 8];// 13
-																		// bytes
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put((byte) 1);// version
-		bb.put((byte) 0);// app id, 0 here
-		bb.put((byte) ClientStatMachine.CMD_0x11);// cmd
-		bb.putShort((short) 8);// length 8
-		bb.putLong(message0x11);
-		bb.flip();
-		ServerMessage sm = new ServerMessage(this.lastAddr, data);
-		if (this.lastAddr != null && (System.currentTimeMillis() - this.lastTick) < 1000 * PUSH_IM_AFTER_ACTIVE_SECOND) {
-			IMServer.getInstance().pushInstanceMessage(sm);
-		}
-		if (this.getMessengerTask() != null) {
-			try {
-				this.getMessengerTask().pushInstanceMessage(sm);
-			} catch (Exception e) {
-			}
-		}
-	}
-
-	private void push0x20() throws Exception {
-		if (has0x20Message() == false) {
-			return;
-		}
-		if ((this.lastAddr == null || (System.currentTimeMillis() - this.lastTick) > 1000 * PUSH_IM_AFTER_ACTIVE_SECOND) && this.getMessengerTask() == null) {
-			return;
-		}
-		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH + message0x20Len];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put((byte) 1);// version
-		bb.put((byte) 0);// app id, 0 here
-		bb.put((byte) ClientStatMachine.CMD_0x20);// cmd
-		bb.putShort((short) message0x20Len);
-		bb.put(this.message0x20);
-		bb.flip();
-		ServerMessage sm = new ServerMessage(this.lastAddr, data);
-		if (this.lastAddr != null && (System.currentTimeMillis() - this.lastTick) < 1000 * PUSH_IM_AFTER_ACTIVE_SECOND) {
-			IMServer.getInstance().pushInstanceMessage(sm);
-		}
-		if (this.getMessengerTask() != null) {
-			try {
-				this.getMessengerTask().pushInstanceMessage(sm);
-			} catch (Exception e) {
-			}
-		}
-	}
-
-	/*
-	 * 返回true代表有消息需通知用户，返回false代表无消息需通知
-	 */
-	public synchronized ArrayList<ServerMessage> onClientMessage(ClientMessage cm) throws Exception {
-
-		if (cm == null) {
-			throw new NullPointerException("param client message is null");
-		}
-
-		// if(cm.getSocketAddress() == null){
-		// throw new NullPointerException("client socket address is null");
-		// }
-		ArrayList<ServerMessage> smList = new ArrayList<ServerMessage>();
-		if (cm.getCmd() == ClientStatMachine.CMD_0x00) {// 心跳
-			// nothing to do
-		} else if (cm.getCmd() == ClientStatMachine.CMD_0x10) {// 确认通用信息
-			this.clear0x10Message();
-			return smList;
-		} else if (cm.getCmd() == ClientStatMachine.CMD_0x11) {// 确认分组信息
-			this.clear0x11Message(cm.getData(), Constant.CLIENT_MESSAGE_MIN_LENGTH);
-			return smList;
-		} else if (cm.getCmd() == ClientStatMachine.CMD_0x20) {// 确认自定义信息
-			this.clear0x20Message();
-			return smList;
-		} else {// 非法命令
-			return null;
-		}
-
-		this.genServerMessageList(cm, smList);
-
-		return smList;
-	}
-
-	private void genServerMessageList(ClientMessage cm, ArrayList<ServerMessage> smList) throws Exception {
-		this.lastTick = System.currentTimeMillis();
-		boolean needTickBack = false;
-		if (cm.getSocketAddress() == null) {
-			needTickBack = false;
-		} else if (ackHeartbeatPolicy == POLICY_ALWAYS) {
-			needTickBack = true;
-		} else if (ackHeartbeatPolicy == POLICY_NEVER) {
-			needTickBack = false;
-		} else {
-			if (cm.getSocketAddress().equals(lastAddr)) {// 最新地址和上次地址一致，不回应心跳包
-				needTickBack = false;
-			} else {// 地址改变，回应心跳包
-				needTickBack = true;
-			}
-		}
-		if (cm.getSocketAddress() != null) {
-			lastAddr = cm.getSocketAddress();
-		}
-		gen0x10Message(cm, smList);
-		gen0x11Message(cm, smList);
-		gen0x20Message(cm, smList);
-		if (needTickBack == true && smList.size() == 0) {
-			gen0x00Message(cm, smList);
-		}
-
-	}
-
-	/**
-	 * 下发心跳通知
-	 * 
-	 * @param cm
-	 * @param smList
-	 * @throws Exception
-	 */
-	private void gen0x00Message(ClientMessage cm, ArrayList<ServerMessage> smList) throws Exception {
-		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH];// 5 bytes
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put((byte) 1);// version
-		bb.put(cm.getData()[1]);// app id
-		bb.put((byte) ClientStatMachine.CMD_0x00);// cmd
-		bb.putShort((short) 0);// length 0
-		bb.flip();
-		ServerMessage sm = new ServerMessage(cm.getSocketAddress(), data);
-		smList.add(sm);
-	}
-
-	/**
-	 * 下发通用消息
-	 * 
-	 * @param cm
-	 * @param smList
-	 * @throws Exception
-	 */
-	private void gen0x10Message(ClientMessage cm, ArrayList<ServerMessage> smList) throws Exception {
-		if (!hasMessage0x10) {
-			return;
-		}
-		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH];// 5 bytes
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put((byte) 1);// version
-		bb.put(cm.getData()[1]);// app id
-		bb.put((byte) ClientStatMachine.CMD_0x10);// cmd
-		bb.putShort((short) 0);// length 0
-		bb.flip();
-		ServerMessage sm = new ServerMessage(cm.getSocketAddress(), data);
-		smList.add(sm);
-
-	}
-
-	/**
-	 * 下发自定义消息
-	 * 
-	 * @param cm
-	 * @param smList
-	 * @throws Exception
-	 */
-	private void gen0x20Message(ClientMessage cm, ArrayList<ServerMessage> smList) throws Exception {
-		if (this.has0x20Message() == false) {
-			return;
-		}
-		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH + message0x20Len];// 5+length
-																					// bytes
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put((byte) 1);// version
-		bb.put(cm.getData()[1]);// app id
-		bb.put((byte) ClientStatMachine.CMD_0x20);// cmd
-		bb.putShort((short) message0x20Len);// length
-		bb.put(message0x20);
-		bb.flip();
-		ServerMessage sm = new ServerMessage(cm.getSocketAddress(), data);
-		smList.add(sm);
-
-	}
-
-	/**
-	 * 下发分类消息
-	 * 
-	 * @param cm
-	 * @param smList
-	 * @throws Exception
-	 */
-	private void gen0x11Message(ClientMessage cm, ArrayList<ServerMessage> smList) throws Exception {
-		if (message0x11 == 0) {
-			return;
-		}
-		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH + 8];// 13
-																		// bytes
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put((byte) 1);// version
-		bb.put(cm.getData()[1]);// app id
-		bb.put((byte) ClientStatMachine.CMD_0x11);// cmd
-		bb.putShort((short) 8);// length 8
-		bb.putLong(message0x11);
-		bb.flip();
-		ServerMessage sm = new ServerMessage(cm.getSocketAddress(), data);
-		smList.add(sm);
-	}
-
-}
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.ddpush.im.util.AddressIntern;
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.v1.node.ClientMessage;
+import org.ddpush.im.v1.node.Constant;
+import org.ddpush.im.v1.node.ServerMessage;
+import org.ddpush.im.v1.node.tcpconnector.MessengerTask;
+
+/**
+ * uuid终端状态机
+ */
+public class ClientStatMachine {
+
+	/** 心跳包 */
+	public static final int CMD_0x00 = 0;// 心跳包
+	/** 登录包 */
+	public static final int CMD_0x01 = 1;// 登录包
+	/** 通用信息 */
+	public static final int CMD_0x10 = 16;// 通用信息
+	/** 分类信息 */
+	public static final int CMD_0x11 = 17;// 分类信息
+	/** 自定义信息 */
+	public static final int CMD_0x20 = 32;// 自定义信息
+	/** 重置命令 */
+	public static final int CMD_0xff = 255;// 重置命令
+	/** 客户端离线判定 */
+	public static int PUSH_IM_AFTER_ACTIVE_SECOND = 60;
+	/** 回应客户端心跳：从不 */
+	private static final int POLICY_NEVER = 0;
+	/** 回应客户端心跳：套接字变更时回应 */
+	private static final int POLICY_SA_CHANGED = 1;
+	/** 回应客户端心跳：总是回应 */
+	private static final int POLICY_ALWAYS = 2;
+	/** 回应客户端心跳协议 */
+	private static int ackHeartbeatPolicy;
+	/** 是否生产状态机 */
+	private static boolean createByClient = "YES".equalsIgnoreCase(PropertyUtil.getProperty("CREATE_MACHINE_BY_CLIENT")) ? true : false;
+	/** 时间戳基准 2014-01-01 00:00:00 UTC，状态机内的时间以相对秒数存为int，0表示无 */
+	private static final long EPOCH = 1388534400000L;
+	/** 标志位：有通用信息未接收 */
+	private static final int FLAG_0X10 = 1;
+	/** 标志位：已被过期删除或移入冷存储，持有的引用已失效 */
+	private static final int FLAG_EVICTED = 2;
+	/** 堆内存储中处理中的持有数存于标志位的第2到15位 */
+	private static final int PIN_SHIFT = 2;
+	/** 持有数的掩码 */
+	private static final int PIN_MASK = 0xffff & ~((1 << PIN_SHIFT) - 1);
+	/** 最后心跳所在UDP分片存于标志位的高16位，加1存放，0表示无 */
+	private static final int SHARD_SHIFT = 16;
+	/** 地址驻留，同一出口IP的客户端共享一个InetAddress */
+	private static final AddressIntern addresses = new AddressIntern(1 << 16);
+	/** 最后心跳时间 */
+	private int lastTick = 0;// 最后心跳时间
+	/** 最后通用信息时间 */
+	private int last0x10Time = 0;// 最后通用信息时间
+	/** 最新分类信息通知时间 */
+	private int last0x11Time = 0;// 最新分类信息通知时间
+	/** 最新自定义信息时间 */
+	private int last0x20Time = 0;// 最新自定义信息时间
+	/** 标志位、持有数和最后心跳所在UDP分片 */
+	private int bits = 0;
+	/** 最后网络地址的端口 */
+	private char lastPort = 0;
+	/** 最新分类信息通知 */
+	private long message0x11 = 0;// 最新分类信息通知
+	/** 最后网络地址的IP，已驻留 */
+	private InetAddress lastIp = null;// 最后心跳等的网络地址
+	/** 最新自定义信息内容数组，长度即消息长度 */
+	private byte[] message0x20 = null;
+	/** 变化标记，保存到状态文件的字段改变后置位，快照访问时清除，先改字段后置位，清除后读取的字段至少与清除时一样新 */
+	private volatile boolean dirty = false;
+	/** 取得回应心跳协议 */
+	static {
+		String strPolicy = PropertyUtil.getProperty("ACK_HEARTBEAT_POLICY");
+		if ("always".equalsIgnoreCase(strPolicy)) {
+			ackHeartbeatPolicy = POLICY_ALWAYS;
+		} else if ("sa_changed".equalsIgnoreCase(strPolicy)) {
+			ackHeartbeatPolicy = POLICY_SA_CHANGED;
+		} else {
+			ackHeartbeatPolicy = POLICY_NEVER;
+		}
+	}
+
+	/**
+	 * 空实例
+	 */
+	private ClientStatMachine() {
+
+	}
+
+	/**
+	 * 毫秒时间转为相对基准的秒数
+	 * 
+	 * @param millis
+	 * @return 负数(无)返回0
+	 */
+	static int toStamp(long millis) {
+		if (millis < 0) {
+			return 0;
+		}
+		long s = (millis - EPOCH) / 1000 + 1;
+		if (s < 1) {
+			return 1;
+		}
+		if (s > Integer.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		}
+		return (int) s;
+	}
+
+	/**
+	 * 相对基准的秒数转为毫秒时间
+	 * 
+	 * @param stamp
+	 * @return 0(无)返回-1
+	 */
+	static long fromStamp(int stamp) {
+		if (stamp == 0) {
+			return -1;
+		}
+		return EPOCH + (stamp - 1) * 1000L;
+	}
+
+	/**
+	 * 取得最后心跳时间
+	 * 
+	 * @return
+	 */
+	public long getLastTick() {
+		return fromStamp(lastTick);
+	}
+
+	/**
+	 * 取得最后心跳地址，由驻留的IP和端口生成
+	 * 
+	 * @return
+	 */
+	public SocketAddress getLastAddr() {
+		if (lastIp == null) {
+			return null;
+		}
+		return new InetSocketAddress(lastIp, lastPort);
+	}
+
+	/**
+	 * 记录最后心跳地址
+	 * 
+	 * @param addr
+	 */
+	private void setLastAddr(SocketAddress addr) {
+		if (addr instanceof InetSocketAddress && ((InetSocketAddress) addr).getAddress() != null) {
+			InetSocketAddress isa = (InetSocketAddress) addr;
+			this.lastIp = addresses.intern(isa.getAddress());
+			this.lastPort = (char) isa.getPort();
+		} else {
+			this.lastIp = null;
+			this.lastPort = 0;
+		}
+	}
+
+	/**
+	 * 地址是否与最后心跳地址相同，不生成地址对象
+	 * 
+	 * @param addr
+	 * @return
+	 */
+	private boolean isLastAddr(SocketAddress addr) {
+		if (lastIp == null || addr instanceof InetSocketAddress == false) {
+			return false;
+		}
+		InetSocketAddress isa = (InetSocketAddress) addr;
+		return isa.getPort() == lastPort && lastIp.equals(isa.getAddress());
+	}
+
+	/**
+	 * 取得最后心跳所在UDP分片
+	 * 
+	 * @return
+	 */
+	public int getLastShard() {
+		return (bits >>> SHARD_SHIFT) - 1;
+	}
+
+	private void setLastShard(int shard) {
+		this.bits = (bits & ((1 << SHARD_SHIFT) - 1)) | (((shard + 1) & 0xffff) << SHARD_SHIFT);
+	}
+
+	private void setHas0x10(boolean has) {
+		this.bits = has ? (bits | FLAG_0X10) : (bits & ~FLAG_0X10);
+	}
+
+	/**
+	 * 是否最近有心跳，可用UDP下发
+	 * 
+	 * @return
+	 */
+	private boolean isActive() {
+		return this.lastIp != null && (System.currentTimeMillis() - this.getLastTick()) < 1000 * PUSH_IM_AFTER_ACTIVE_SECOND;
+	}
+
+	/**
+	 * 取得最后通用命令时间
+	 * 
+	 * @return
+	 */
+	public long getLast0x10Time() {
+		return fromStamp(last0x10Time);
+	}
+
+	/**
+	 * 最后分类信息时间
+	 * 
+	 * @return
+	 */
+	public long getLast0x11Time() {
+		return fromStamp(last0x11Time);
+	}
+
+	/**
+	 * 最后自定义时间
+	 * 
+	 * @return
+	 */
+	public long getLast0x20Time() {
+		return fromStamp(last0x20Time);
+	}
+
+	/**
+	 * 取得自定义消息内容长度
+	 * 
+	 * @return
+	 */
+	public int getMessage0x20Len() {
+		return this.message0x20 == null ? 0 : this.message0x20.length;
+	}
+
+	/**
+	 * 取得自定义消息内容数组
+	 * 
+	 * @return
+	 */
+	public byte[] getMessage0x20() {
+		return this.message0x20;
+	}
+
+	/**
+	 * 根据心跳包创建新的状态机
+	 * 
+	 * @param m
+	 * @return
+	 * @throws NullPointerException
+	 */
+	public static ClientStatMachine newByClientTick(ClientMessage m) throws NullPointerException {
+
+		if (m == null) {
+			return null;
+		}
+		if (createByClient == false) {
+			return null;
+		}
+		// if(m.getSocketAddress() == null){
+		// return null;
+		// }
+		if (m.getCmd() != ClientStatMachine.CMD_0x00) {
+			return null;// 非心跳包不产生新的状态机，以后可能登录包也会产生新状态机
+		}
+		ClientStatMachine csm = new ClientStatMachine();
+		// csm.lastAddr = address;不能设置该值，否则创建状态机后第一次onClientMessage不回发心跳了
+		csm.lastTick = toStamp(System.currentTimeMillis());
+		csm.dirty = true;
+		return csm;
+	}
+
+	/**
+	 * 根据push消息创建新的状态机，不记录预写日志，由调用者在release之后调用deliverPush
+	 * 
+	 * @param pm
+	 * @return
+	 * @throws NullPointerException
+	 */
+	public static ClientStatMachine newByPushReq(PushMessage pm) throws NullPointerException {
+		return newByPushReq(pm, System.currentTimeMillis());
+	}
+
+	/**
+	 * 根据push消息创建新的状态机，指定推送时间
+	 * 
+	 * @param pm
+	 * @param time
+	 *            与deliverPush使用相同的时间，重放结果与内存一致
+	 * @return
+	 * @throws NullPointerException
+	 */
+	public static ClientStatMachine newByPushReq(PushMessage pm, long time) throws NullPointerException {
+
+		if (pm == null) {
+			return null;
+		}
+
+		ClientStatMachine csm = new ClientStatMachine();
+		int now = toStamp(time);
+		if (pm.getCmd() == ClientStatMachine.CMD_0x10) {
+			csm.setHas0x10(true);
+			csm.last0x10Time = now;
+		} else if (pm.getCmd() == ClientStatMachine.CMD_0x11) {
+			byte[] data = pm.getData();
+			csm.message0x11 = ByteBuffer.wrap(data, data.length - 8, 8).getLong();
+			csm.last0x11Time = now;
+		} else if (pm.getCmd() == ClientStatMachine.CMD_0x20) {
+			int len = pm.getContentLength();
+			csm.last0x20Time = now;
+			csm.message0x20 = new byte[len];
+			System.arraycopy(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, csm.message0x20, 0, len);
+		} else {
+			return null;
+		}
+		csm.lastTick = now;
+		csm.dirty = true;
+
+		return csm;
+	}
+
+	/**
+	 * 通过保存的文件创建状态机
+	 * 
+	 * @param lastTick
+	 * @param hasMessage0x10
+	 * @param last0x10Time
+	 * @param message0x11
+	 * @param last0x11Time
+	 * @param message0x20Len
+	 * @param last0x20Time
+	 * @param message0x20
+	 * @return
+	 */
+	public static ClientStatMachine newFromFile(long lastTick, boolean hasMessage0x10, long last0x10Time, long message0x11, long last0x11Time,
+			int message0x20Len, long last0x20Time, byte[] message0x20) {
+		ClientStatMachine csm = new ClientStatMachine();
+		csm.restore(lastTick, null, -1, hasMessage0x10, last0x10Time, message0x11, last0x11Time, last0x20Time, message0x20Len > 0 ? message0x20 : null);
+		return csm;
+	}
+
+	/**
+	 * 创建空状态机，供状态存储恢复使用
+	 * 
+	 * @return
+	 */
+	static ClientStatMachine newEmpty() {
+		return new ClientStatMachine();
+	}
+
+	/**
+	 * 由状态存储恢复全部字段，用于堆外存储在处理期间临时生成状态机
+	 * 
+	 * @param lastTick
+	 * @param lastAddr
+	 * @param lastShard
+	 * @param hasMessage0x10
+	 * @param last0x10Time
+	 * @param message0x11
+	 * @param last0x11Time
+	 * @param last0x20Time
+	 * @param message0x20
+	 */
+	void restore(long lastTick, SocketAddress lastAddr, int lastShard, boolean hasMessage0x10, long last0x10Time, long message0x11, long last0x11Time,
+			long last0x20Time, byte[] message0x20) {
+		this.lastTick = toStamp(lastTick);
+		this.bits = 0;
+		this.setLastAddr(lastAddr);
+		this.setLastShard(lastShard);
+		this.setHas0x10(hasMessage0x10);
+		this.last0x10Time = toStamp(last0x10Time);
+		this.message0x11 = message0x11;
+		this.last0x11Time = toStamp(last0x11Time);
+		this.last0x20Time = toStamp(last0x20Time);
+		this.message0x20 = message0x20;
+	}
+
+	/**
+	 * 是否有未写入快照的变化
+	 * 
+	 * @return
+	 */
+	boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * 设定变化标记，供状态存储由记录恢复时使用
+	 * 
+	 * @param dirty
+	 */
+	void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	/**
+	 * 快照访问时清除变化标记，之后再读取字段
+	 * 
+	 * @return 清除前是否有变化
+	 */
+	boolean clearDirty() {
+		if (dirty == false) {
+			return false;
+		}
+		dirty = false;
+		return true;
+	}
+
+	/**
+	 * 堆内存储的acquire取得处理权，应在状态机锁内调用
+	 * 
+	 * @return 已被移出返回false，调用者应重新查找
+	 */
+	boolean pin() {
+		if ((bits & FLAG_EVICTED) != 0) {
+			return false;
+		}
+		bits += 1 << PIN_SHIFT;
+		return true;
+	}
+
+	/**
+	 * 堆内存储的release归还处理权，应在状态机锁内调用
+	 */
+	void unpin() {
+		if ((bits & PIN_MASK) != 0) {
+			bits -= 1 << PIN_SHIFT;
+		}
+	}
+
+	/**
+	 * 没有处理中的持有者时标记为已移出，由过期删除和移入冷存储在状态机锁内调用
+	 * 
+	 * @return 正在被处理返回false
+	 */
+	boolean evict() {
+		if ((bits & PIN_MASK) != 0) {
+			return false;
+		}
+		bits |= FLAG_EVICTED;
+		return true;
+	}
+
+	/**
+	 * 估算占用的堆内字节数，按压缩指针布局计算，驻留的地址为共享的不计入
+	 * 
+	 * @return
+	 */
+	int estimateBytes() {
+		int bytes = 56;
+		if (message0x20 != null) {
+			bytes += (16 + message0x20.length + 7) & ~7;
+		}
+		return bytes;
+	}
+
+	/**
+	 * 是否有通用消息
+	 * 
+	 * @return
+	 */
+	public boolean has0x10Message() {
+		return (bits & FLAG_0X10) != 0;
+	}
+
+	/**
+	 * 是否有分类消息
+	 * 
+	 * @return
+	 */
+	public boolean has0x11Message() {
+		if (this.message0x11 == 0) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 是否有自定义消息
+	 * 
+	 * @return
+	 */
+	public boolean has0x20Message() {
+		if (this.message0x20 == null || this.message0x20.length <= 0) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 取得最后的分类消息
+	 * 
+	 * @return
+	 */
+	public long get0x11Message() {
+		return this.message0x11;
+	}
+
+	/**
+	 * 设定有最新的分类消息
+	 */
+	public void new0x10Message() {
+		this.setHas0x10(true);
+		this.last0x10Time = toStamp(System.currentTimeMillis());
+		this.dirty = true;
+	}
+
+	/**
+	 * 删除最后的分类消息
+	 */
+	public void clear0x10Message() {
+		this.setHas0x10(false);
+		// this.last0x10Time = -1;
+		// this.last0x10Time = System.currentTimeMillis();
+		this.dirty = true;
+	}
+
+	/**
+	 * 设定新的分类消息,或运算
+	 * 
+	 * @param newMessage
+	 */
+	public void new0x11Message(long newMessage) {
+		this.message0x11 = this.message0x11 | newMessage;
+		this.last0x11Time = toStamp(System.currentTimeMillis());
+		this.dirty = true;
+	}
+
+	/**
+	 * 按命令，清除分类消息
+	 * 
+	 * @param confirm
+	 */
+	public void clear0x11Message(long confirm) {
+		this.message0x11 = this.message0x11 & (~confirm);
+		this.dirty = true;
+	}
+
+	/**
+	 * 按命令内容，清除分类消息
+	 * 
+	 * @param array
+	 * @param pos
+	 * @throws Exception
+	 */
+	public void clear0x11Message(final byte[] array, int pos) throws Exception {
+		if (array == null) {
+			throw new NullPointerException("param byte array is null");
+		}
+		if (array.length < pos + 8) {
+			throw new ArrayIndexOutOfBoundsException("illegal byte array length and position, at least 8 byte");
+		}
+		clear0x11Message(((ByteBuffer) ByteBuffer.wrap(array, pos, 8)).getLong());
+	}
+
+	/**
+	 * 清除自定义消息
+	 */
+	public void clear0x20Message() {
+		// last0x20Time = System.currentTimeMillis();
+		message0x20 = null;
+		this.dirty = true;
+	}
+
+	/**
+	 * 向客户端push消息，记录状态后立即下发并记录预写日志
+	 * 
+	 * @param pm
+	 * @throws Exception
+	 */
+	public void onPushMessage(PushMessage pm) throws Exception {
+		long now = System.currentTimeMillis();
+		ReplyPlan plan = new ReplyPlan();
+		if (onPushMessage(pm, now, plan) == true) {
+			deliverPush(pm, now, plan);
+		}
+	}
+
+	/**
+	 * 收到push消息，锁内只记录状态和下发计划，在状态存储release之后调用deliverPush下发并记录预写日志
+	 * 
+	 * @param pm
+	 * @param time
+	 *            推送时间
+	 * @param plan
+	 *            调用前reset，客户端在线时目标为最后地址，否则地址为null只经TCP下发
+	 * @return 状态有变化返回true
+	 * @throws Exception
+	 */
+	public synchronized boolean onPushMessage(PushMessage pm, long time, ReplyPlan plan) throws Exception {
+		if (pm == null) {
+			throw new NullPointerException("param push message is null");
+		}
+		if (pm.getCmd() == ClientStatMachine.CMD_0x10) {
+			this.setHas0x10(true);
+			this.last0x10Time = toStamp(time);
+			plan.set0x10(true);
+		} else if (pm.getCmd() == ClientStatMachine.CMD_0x11) {
+			message0x11 = message0x11 | ByteBuffer.wrap(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, 8).getLong();
+			this.last0x11Time = toStamp(time);
+			plan.set0x11(message0x11);
+		} else if (pm.getCmd() == ClientStatMachine.CMD_0x20) {
+			int len = pm.getContentLength();
+			last0x20Time = toStamp(time);
+			message0x20 = new byte[len];
+			System.arraycopy(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, message0x20, 0, len);
+			if (len > 0) {
+				plan.set0x20(message0x20, len);
+			}
+		} else {
+			return false;
+		}
+		this.dirty = true;
+		plan.setTarget(this.isActive() ? this.getLastAddr() : null, this.getLastShard(), (byte) 0);
+		return true;
+	}
+
+	/**
+	 * 锁外下发push消息：写预写日志，在线时经UDP下发，有TCP连接时经TCP下发
+	 * 预写日志不在状态锁内追加，同一客户端的确认可能先于推送写入，崩溃重放后该消息会再下发一次
+	 * 
+	 * @param pm
+	 * @param time
+	 *            与onPushMessage使用相同的时间
+	 * @param plan
+	 *            onPushMessage记录的计划
+	 * @return 预写日志记录被丢弃返回false
+	 */
+	public static boolean deliverPush(PushMessage pm, long time, ReplyPlan plan) {
+		boolean logged = logPush(pm, time);
+		// TCP连接由注册表按uuid查找，状态机不持有
+		MessengerTask task = ConnectionRegistry.get(pm.getUuidMsb(), pm.getUuidLsb());
+		if (plan.getAddress() == null && task == null) {
+			return logged;
+		}
+		// 状态已记录，下发失败等客户端下次心跳时再下发
+		try {
+			ServerMessage[] out = new ServerMessage[ReplyPlan.MAX_REPLIES];
+			int n = plan.encode(out);
+			for (int i = 0; i < n; i++) {
+				IMServer.getInstance().pushInstanceMessage(out[i]);
+				if (task != null) {
+					task.pushInstanceMessage(out[i]);
+				}
+			}
+		} catch (Exception e) {
+		}
+		return logged;
+	}
+
+	/**
+	 * 推送写入预写日志
+	 * 
+	 * @param pm
+	 * @param time
+	 * @return 未启用返回true，记录被丢弃返回false
+	 */
+	private static boolean logPush(PushMessage pm, long time) {
+		if (WriteAheadLog.ENABLED == false) {
+			return true;
+		}
+		if (pm.getCmd() == ClientStatMachine.CMD_0x10) {
+			return WriteAheadLog.append(WriteAheadLog.PUSH_0X10, pm.getUuidMsb(), pm.getUuidLsb(), time, 0, null);
+		} else if (pm.getCmd() == ClientStatMachine.CMD_0x11) {
+			return WriteAheadLog.append(WriteAheadLog.PUSH_0X11, pm.getUuidMsb(), pm.getUuidLsb(), time,
+					ByteBuffer.wrap(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, 8).getLong(), null);
+		} else if (pm.getCmd() == ClientStatMachine.CMD_0x20) {
+			byte[] data = new byte[pm.getContentLength()];
+			System.arraycopy(pm.getData(), Constant.PUSH_MSG_HEADER_LEN, data, 0, data.length);
+			return WriteAheadLog.append(WriteAheadLog.PUSH_0X20, pm.getUuidMsb(), pm.getUuidLsb(), time, 0, data);
+		}
+		return true;
+	}
+
+	/**
+	 * 重放预写日志中的一条记录，不下发也不再记录
+	 * 
+	 * @param type
+	 * @param time
+	 * @param value
+	 * @param data
+	 */
+	void replay(int type, long time, long value, byte[] data) {
+		if (type == WriteAheadLog.PUSH_0X10) {
+			this.setHas0x10(true);
+			this.last0x10Time = toStamp(time);
+		} else if (type == WriteAheadLog.PUSH_0X11) {
+			this.message0x11 = this.message0x11 | value;
+			this.last0x11Time = toStamp(time);
+		} else if (type == WriteAheadLog.PUSH_0X20) {
+			this.message0x20 = data;
+			this.last0x20Time = toStamp(time);
+		} else if (type == WriteAheadLog.ACK_0X10) {
+			this.clear0x10Message();
+		} else if (type == WriteAheadLog.ACK_0X11) {
+			this.clear0x11Message(value);
+		} else if (type == WriteAheadLog.ACK_0X20) {
+			this.clear0x20Message();
+		}
+		this.dirty = true;
+	}
+
+	/*
+	 * 返回需通知用户的消息列表，无消息需通知或非法命令时返回null，心跳包无下发时不分配列表
+	 */
+	public ArrayList<ServerMessage> onClientMessage(ClientMessage cm) throws Exception {
+		ReplyPlan plan = new ReplyPlan();
+		if (onClientMessage(cm, plan) == false) {
+			return null;
+		}
+		ArrayList<ServerMessage> smList = new ArrayList<ServerMessage>(ReplyPlan.MAX_REPLIES);
+		plan.encode(smList);
+		return smList;
+	}
+
+	/**
+	 * 处理客户端消息，只在锁内更新状态并把需下发的内容记入回应计划，编码由调用者在锁外进行
+	 * 
+	 * @param cm
+	 * @param plan
+	 *            回应计划，调用前应已清空
+	 * @return 有消息需下发时返回true
+	 * @throws Exception
+	 */
+	public synchronized boolean onClientMessage(ClientMessage cm, ReplyPlan plan) throws Exception {
+
+		if (cm == null) {
+			throw new NullPointerException("param client message is null");
+		}
+
+		// if(cm.getSocketAddress() == null){
+		// throw new NullPointerException("client socket address is null");
+		// }
+		if (cm.getCmd() == ClientStatMachine.CMD_0x00) {// 心跳
+			// nothing to do
+		} else if (cm.getCmd() == ClientStatMachine.CMD_0x10) {// 确认通用信息
+			this.clear0x10Message();
+			WriteAheadLog.append(WriteAheadLog.ACK_0X10, cm.getUuidMsb(), cm.getUuidLsb(), System.currentTimeMillis(), 0, null);
+			return false;
+		} else if (cm.getCmd() == ClientStatMachine.CMD_0x11) {// 确认分组信息
+			this.clear0x11Message(cm.getData(), Constant.CLIENT_MESSAGE_MIN_LENGTH);
+			WriteAheadLog.append(WriteAheadLog.ACK_0X11, cm.getUuidMsb(), cm.getUuidLsb(), System.currentTimeMillis(),
+					ByteBuffer.wrap(cm.getData(), Constant.CLIENT_MESSAGE_MIN_LENGTH, 8).getLong(), null);
+			return false;
+		} else if (cm.getCmd() == ClientStatMachine.CMD_0x20) {// 确认自定义信息
+			this.clear0x20Message();
+			WriteAheadLog.append(WriteAheadLog.ACK_0X20, cm.getUuidMsb(), cm.getUuidLsb(), System.currentTimeMillis(), 0, null);
+			return false;
+		} else {// 非法命令
+			return false;
+		}
+
+		return this.prepareReply(cm, plan);
+	}
+
+	private boolean prepareReply(ClientMessage cm, ReplyPlan plan) throws Exception {
+		long oldTick = this.getLastTick();
+		this.lastTick = toStamp(System.currentTimeMillis());
+		this.dirty = true;
+		boolean needTickBack = false;
+		if (cm.getSocketAddress() == null) {
+			needTickBack = false;
+		} else if (ackHeartbeatPolicy == POLICY_ALWAYS) {
+			needTickBack = true;
+		} else if (ackHeartbeatPolicy == POLICY_NEVER) {
+			needTickBack = false;
+		} else {
+			if (this.isLastAddr(cm.getSocketAddress())) {// 最新地址和上次地址一致，不回应心跳包
+				needTickBack = false;
+			} else {// 地址改变，回应心跳包
+				needTickBack = true;
+			}
+		}
+		if (cm.getSocketAddress() != null) {
+			if (this.isLastAddr(cm.getSocketAddress()) == false) {
+				this.setLastAddr(cm.getSocketAddress());
+			}
+			this.setLastShard(cm.getShard());
+			if (PresenceIndex.ENABLED == true) {
+				PresenceIndex.touch(cm.getUuidMsb(), cm.getUuidLsb(), oldTick, this.getLastTick(), cm.getData()[1]);
+			}
+		}
+		if (needTickBack == false && has0x10Message() == false && message0x11 == 0 && has0x20Message() == false) {
+			return false;// 普通心跳，无需下发
+		}
+		plan.setTarget(cm.getSocketAddress(), cm.getShard(), cm.getData()[1]);
+		plan.setTickBack(needTickBack);
+		plan.set0x10(has0x10Message());
+		plan.set0x11(message0x11);
+		if (has0x20Message() == true) {
+			plan.set0x20(message0x20, message0x20.length);
+		}
+		return true;
+	}
+
+}
@@ -1,109 +1,244 @@
-/*
- *Copyright 2014 DDPush
- *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
- *Email: ddpush@126.com
- *
-
-Licensed under the Apache License, Version 2.0 (the "License");
-you may not use this file except in compliance with the License.
-You may obtain a copy of the License at
-
-    http://www.apache.org/licenses/LICENSE-2.0
-
-Unless required by applicable law or agreed to in writing, software
-distributed under the License is distributed on an "AS IS" BASIS,
-WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-See the License for the specific language governing permissions and
-limitations under the License.
-
- */
-package org.ddpush.im.v1.node;
-
-import org.ddpush.im.util.PropertyUtil;
-
-/**
- * 状态机清除器
- */
-public class ClientStatMachineCleaner implements Runnable {
-
-	/** 停止标志位 */
-	private boolean stoped = false;
-	/** 最后清除时间 */
-	private long lastCleanTime = 0;
-	/** 过期小时数 */
-	private int expiredHours = PropertyUtil.getPropertyInt("CLEANER_DEFAULT_EXPIRED_HOURS");;
-
-	@Override
-	public void run() {
-		while (!stoped) {
-			try {
-				synchronized (this) {
-					this.wait();
-					if (stoped == true) {
-						return;
-					}
-					doClean();
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		System.out.println("cleaner quit");
-
-	}
-
-	public void wakeup() {
-		synchronized (this) {
-			this.notifyAll();
-		}
-	}
-
-	private void doClean() {
-		lastCleanTime = System.currentTimeMillis();
-		System.out.println("clearn stat of expired hours of " + expiredHours + "....");
-		System.out.println("max   mem: " + Runtime.getRuntime().maxMemory());
-		System.out.println("total mem: " + Runtime.getRuntime().totalMemory());
-		System.out.println("free  mem: " + Runtime.getRuntime().freeMemory());
-		System.gc();
-		try {
-			int removed = NodeStatus.getInstance().cleanStatus(expiredHours);
-			System.out.println("clean " + removed + " expired stat machines of expired hours of " + expiredHours);
-			lastCleanTime = System.currentTimeMillis();
-			System.gc();
-			System.out.println("gc committed");
-			System.out.println("max   mem: " + Runtime.getRuntime().maxMemory());
-			System.out.println("total mem: " + Runtime.getRuntime().totalMemory());
-			System.out.println("free  mem: " + Runtime.getRuntime().freeMemory());
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	/**
-	 * 设置停止标志位
-	 */
-	public void stop() {
-		stoped = true;
-	}
-
-	/**
-	 * 设定过期小时数
-	 * 
-	 * @param expiredHours
-	 */
-	public void setExpiredHours(int expiredHours) {
-		this.expiredHours = expiredHours;
-	}
-
-	/**
-	 * 取得最后清除时间
-	 * 
-	 * @return
-	 */
-	public long getLastCleanTime() {
-		return this.lastCleanTime;
-	}
-
-}
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.ddpush.im.util.PropertyUtil;
+
+/**
+ * 状态机清除器，按过期索引分片清除，每片限时、限条数，片间休眠使平均速率不超过预算，不调用System.gc()
+ * 启用冷存储时也由它分片把空闲客户端移入冷存储
+ */
+public class ClientStatMachineCleaner implements Runnable {
+
+	/** 停止标志位 */
+	private volatile boolean stoped = false;
+	/** 最后清除时间 */
+	private volatile long lastCleanTime = 0;
+	/** 过期小时数 */
+	private volatile int expiredHours = PropertyUtil.getPropertyInt("CLEANER_DEFAULT_EXPIRED_HOURS");
+	/** 每毫秒最多检查的条目数，0为不限 */
+	private final int entriesPerMs = PropertyUtil.getPropertyInt("CLEANER_ENTRIES_PER_MS");
+	/** 每片最长毫秒数 */
+	private final int sliceMs = Math.max(1, PropertyUtil.getPropertyInt("CLEANER_SLICE_MS"));
+	/** 是否有待执行的清除请求 */
+	private boolean requested = false;
+	/** 是否有待执行的移出请求 */
+	private boolean spillRequested = false;
+	/** 最后移出时间 */
+	private volatile long lastSpillTime = 0;
+	/** 当前或最后一次执行的是否为移出 */
+	private volatile boolean sweepSpill = false;
+	/** 当前或最后一次清除的进度 */
+	private volatile ExpiryIndex.Sweep sweep = null;
+	/** 当前或最后一次清除的过期小时数 */
+	private volatile int sweepHours = 0;
+	/** 当前或最后一次清除开始时间 */
+	private volatile long sweepStartTime = 0;
+	/** 当前或最后一次清除释放的字节数 */
+	private volatile long sweepReclaimedBytes = 0;
+	/** 最后一次完成的清除耗时毫秒 */
+	private volatile long lastSweepMillis = 0;
+
+	@Override
+	public void run() {
+		while (!stoped) {
+			try {
+				boolean clean;
+				boolean spill;
+				synchronized (this) {
+					while (requested == false && spillRequested == false && stoped == false) {
+						this.wait();
+					}
+					clean = requested;
+					spill = spillRequested;
+					requested = false;
+					spillRequested = false;
+				}
+				if (stoped == true) {
+					break;
+				}
+				if (clean == true) {
+					doClean();
+				}
+				if (spill == true && stoped == false) {
+					doSpill();
+				}
+			} catch (InterruptedException e) {
+				if (stoped == false) {
+					e.printStackTrace();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		System.out.println("cleaner quit");
+
+	}
+
+	/**
+	 * 请求清除，正在清除时在本次结束后再执行一次
+	 */
+	public void wakeup() {
+		synchronized (this) {
+			requested = true;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * 请求把空闲客户端移入冷存储，未启用冷存储时忽略
+	 */
+	public void requestSpill() {
+		synchronized (this) {
+			spillRequested = true;
+			this.notifyAll();
+		}
+	}
+
+	private void doSpill() {
+		NodeStatus nodeStatus = NodeStatus.getInstance();
+		long spilledBefore = nodeStatus.getSpilledCount();
+		ExpiryIndex.Sweep s = nodeStatus.beginSpill();
+		if (s == null) {
+			return;
+		}
+		sweepSpill = true;
+		sweepStartTime = System.currentTimeMillis();
+		sweepReclaimedBytes = 0;
+		sweep = s;
+		runSweep(s, nodeStatus);
+		int compacted = nodeStatus.compactColdTier();
+		lastSpillTime = System.currentTimeMillis();
+		lastSweepMillis = lastSpillTime - sweepStartTime;
+		System.out.println("spill " + (nodeStatus.getSpilledCount() - spilledBefore) + " idle stat machines to cold tier, checked " + s.getChecked()
+				+ ", compacted segments " + compacted + ", " + lastSweepMillis + " ms");
+	}
+
+	private void doClean() {
+		NodeStatus nodeStatus = NodeStatus.getInstance();
+		int hours = expiredHours;
+		System.out.println("clearn stat of expired hours of " + hours + "....");
+		sweepSpill = false;
+		sweepHours = hours;
+		sweepStartTime = System.currentTimeMillis();
+		sweepReclaimedBytes = 0;
+		ExpiryIndex.Sweep s = nodeStatus.beginClean(hours);
+		sweep = s;
+		runSweep(s, nodeStatus);
+		nodeStatus.compactColdTier();
+		lastCleanTime = System.currentTimeMillis();
+		lastSweepMillis = lastCleanTime - sweepStartTime;
+		System.out.println("clean " + s.getRemoved() + " expired stat machines of expired hours of " + hours + ", checked " + s.getChecked()
+				+ ", reclaimed bytes " + sweepReclaimedBytes + ", " + lastSweepMillis + " ms");
+	}
+
+	/**
+	 * 按预算分片执行到完成或停止
+	 */
+	private void runSweep(ExpiryIndex.Sweep s, NodeStatus nodeStatus) {
+		long reclaimedBefore = nodeStatus.getReclaimedBytes();
+		int budget = entriesPerMs > 0 ? Math.max(1, entriesPerMs * sliceMs) : Integer.MAX_VALUE;
+		while (s.isDone() == false && stoped == false) {
+			long start = System.nanoTime();
+			int n = s.step(budget, sliceMs * 1000000L);
+			sweepReclaimedBytes = nodeStatus.getReclaimedBytes() - reclaimedBefore;
+			if (entriesPerMs > 0) {
+				// 按预算补足休眠，平均速率不超过entriesPerMs
+				long pause = n * 1000000L / entriesPerMs - (System.nanoTime() - start);
+				if (pause > 0) {
+					LockSupport.parkNanos(pause);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 设置停止标志位
+	 */
+	public void stop() {
+		stoped = true;
+		this.wakeup();
+	}
+
+	/**
+	 * 设定过期小时数
+	 * 
+	 * @param expiredHours
+	 */
+	public void setExpiredHours(int expiredHours) {
+		this.expiredHours = expiredHours;
+	}
+
+	/**
+	 * 取得最后清除时间
+	 * 
+	 * @return
+	 */
+	public long getLastCleanTime() {
+		return this.lastCleanTime;
+	}
+
+	/**
+	 * 取得最后移出时间
+	 * 
+	 * @return
+	 */
+	public long getLastSpillTime() {
+		return this.lastSpillTime;
+	}
+
+	/**
+	 * 是否正在清除
+	 * 
+	 * @return
+	 */
+	public boolean isRunning() {
+		ExpiryIndex.Sweep s = sweep;
+		return s != null && s.isDone() == false;
+	}
+
+	/**
+	 * 取得清除进度
+	 * 
+	 * @param end
+	 * @return
+	 */
+	public String getStatusString(String end) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("cleaner budget: ").append(entriesPerMs > 0 ? entriesPerMs + " entries/ms" : "unlimited").append(", slice ").append(sliceMs).append(" ms")
+				.append(end);
+		ExpiryIndex.Sweep s = sweep;
+		if (s == null) {
+			sb.append("cleaner: idle");
+			return sb.toString();
+		}
+		if (sweepSpill == true) {
+			sb.append("cleaner: ").append(isRunning() ? "running" : "idle").append(", spill to cold tier").append(end);
+		} else {
+			sb.append("cleaner: ").append(isRunning() ? "running" : "idle").append(", expired hours ").append(sweepHours).append(end);
+		}
+		sb.append("cleaner checked/total/removed: ").append(s.getChecked()).append("/").append(s.getTotal()).append("/").append(s.getRemoved()).append(end);
+		sb.append("cleaner reclaimed bytes: ").append(sweepReclaimedBytes).append(", last pass ms: ").append(lastSweepMillis);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 客户端状态存储，NodeStatus的后端
+ * 处理消息时acquire与release必须成对调用(acquire返回null时也要release)，期间不存在的状态机用create放入；
+ * 堆内存储返回共享的状态机，release为空操作；堆外存储返回临时生成的状态机，release时写回并解锁
+ */
+public interface ClientStateStore {
+
+	/**
+	 * 取得状态机准备处理，之后必须调用release
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 不存在返回null
+	 */
+	ClientStatMachine acquire(long msb, long lsb);
+
+	/**
+	 * 在acquire与release之间放入新建的状态机
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param csm
+	 * @return 之后应使用的状态机，并发创建时以先放入的为准
+	 */
+	ClientStatMachine create(long msb, long lsb, ClientStatMachine csm);
+
+	/**
+	 * 处理结束
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param csm
+	 *            acquire或create得到的状态机，可为null
+	 */
+	void release(long msb, long lsb, ClientStatMachine csm);
+
+	/**
+	 * 只读取得状态机，堆外存储返回副本，修改不会写回
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return
+	 */
+	ClientStatMachine get(long msb, long lsb);
+
+	/**
+	 * 放入，已存在时覆盖
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param csm
+	 * @return 原来不存在返回true
+	 */
+	boolean put(long msb, long lsb, ClientStatMachine csm);
+
+	ClientStatMachine remove(long msb, long lsb);
+
+	/**
+	 * 遍历，堆外存储传入的状态机只在回调内有效
+	 * 
+	 * @param visitor
+	 */
+	void forEach(UuidMap.Visitor<ClientStatMachine> visitor);
+
+	int removeIf(UuidMap.Filter<ClientStatMachine> filter);
+
+	/**
+	 * 分块遍历一个分片，每次只在分片锁内访问约maxSlots个槽位，供后台快照使用；遍历是模糊的，期间的插入可能看不到，扩容后条目可能重复出现
+	 * 访问前清除状态机的变化标记，访问期间的变化会重新置位
+	 * 
+	 * @param shard
+	 *            0到getShardNum()-1
+	 * @param cursor
+	 *            上次返回的游标，从头开始为0
+	 * @param maxSlots
+	 * @param dirtyOnly
+	 *            只访问有变化标记的，供增量快照使用
+	 * @param visitor
+	 *            返回值被忽略，堆外存储传入的状态机只在回调内有效
+	 * @return 下次的游标，分片遍历完返回-1
+	 */
+	long forEachChunk(int shard, long cursor, int maxSlots, boolean dirtyOnly, UuidMap.Visitor<ClientStatMachine> visitor);
+
+	/**
+	 * 最后心跳早于expireBefore时删除，检查与删除之间不会插入新的心跳
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param expireBefore
+	 * @return 不存在返回-1，已删除返回0，未过期返回最后心跳时间
+	 */
+	long expire(long msb, long lsb, long expireBefore);
+
+	/**
+	 * 最后心跳早于idleBefore时移入冷存储并从本存储删除，检查与移出之间不会插入新的心跳
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param idleBefore
+	 * @param cold
+	 * @return 不存在返回-1，否则返回最后心跳时间
+	 */
+	long spill(long msb, long lsb, long idleBefore, ColdStore cold);
+
+	/**
+	 * 取得expire删除累计释放的字节数，堆内存储为估算值
+	 * 
+	 * @return
+	 */
+	long getReclaimedBytes();
+
+	int size();
+
+	/**
+	 * 取得分片数，各分片独立加锁、计数和扩容
+	 * 
+	 * @return
+	 */
+	int getShardNum();
+
+	/**
+	 * 取得各分片槽位总数
+	 * 
+	 * @return
+	 */
+	long getCapacity();
+
+	/**
+	 * 取得存储名称
+	 * 
+	 * @return
+	 */
+	String getName();
+
+	/**
+	 * 取得占用的直接内存字节数，堆内存储返回0
+	 * 
+	 * @return
+	 */
+	long getOffHeapBytes();
+}
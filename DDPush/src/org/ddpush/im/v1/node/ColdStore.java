@@ -0,0 +1,626 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 冷存储，长时间未活跃的客户端状态序列化后追加写入内存映射的段文件，堆内只保留uuid到位置和最后心跳的紧凑索引
+ * 段文件只追加，删除和取回只使记录失效，失效过半的段由compact搬走存活记录后删除；
+ * 段文件不做持久化保证，节点状态仍以nodeStatus.dat为准，启动时清空旧段文件
+ * 所有方法以自身同步
+ */
+public class ColdStore {
+
+	/** 段文件名前缀 */
+	private static final String PREFIX = "cold-";
+	/** 段文件名后缀 */
+	private static final String SUFFIX = ".seg";
+
+	/** 记录长度 */
+	private static final int REC_LEN = 0;
+	private static final int MSB = 4;
+	private static final int LSB = 12;
+	private static final int TICK = 20;
+	private static final int T10 = 24;
+	private static final int T11 = 28;
+	private static final int T20 = 32;
+	private static final int M11 = 36;
+	private static final int FLAGS = 44;
+	private static final int L20 = 45;
+	/** 0x20消息内容起点，即定长部分长度 */
+	private static final int PAYLOAD = 47;
+
+	private static final int FLAG_0X10 = 1;
+	private static final int FLAG_DIRTY = 2;
+
+	/** 段文件目录 */
+	private final File dir;
+	/** 每个段文件的字节数 */
+	private final int segmentBytes;
+	/** 段，下标为段号，已删除的为null */
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	/** 正在追加的段 */
+	private Segment active = null;
+
+	/** 索引，每个槽位两个long */
+	private long[] keys;
+	/** 索引位置，(段号+1)<<32|段内偏移，0为空槽 */
+	private long[] locs;
+	/** 最后心跳，与ClientStatMachine相同的秒数 */
+	private int[] ticks;
+	private int mask;
+	/** 条目数，锁内修改，isEmpty不加锁读取 */
+	private volatile int size;
+
+	/** 累计移入个数 */
+	private long spilledCount;
+	/** 累计取回个数 */
+	private long faultedCount;
+	/** 过期删除累计释放的记录字节数 */
+	private long reclaimedBytes;
+	/** compact累计搬移的记录字节数 */
+	private long compactedBytes;
+
+	/**
+	 * 一个段文件
+	 */
+	private static final class Segment {
+		final int id;
+		final File file;
+		MappedByteBuffer buf;
+		/** 已写入的字节数 */
+		int end;
+		/** 存活记录的字节数 */
+		int live;
+
+		Segment(int id, File file, MappedByteBuffer buf) {
+			this.id = id;
+			this.file = file;
+			this.buf = buf;
+		}
+	}
+
+	/**
+	 * 初始化，删除目录中上次运行留下的段文件
+	 * 
+	 * @param dir
+	 * @param segmentBytes
+	 * @param maxPayload
+	 *            0x20消息最大长度
+	 */
+	public ColdStore(File dir, int segmentBytes, int maxPayload) {
+		if (PAYLOAD + maxPayload > segmentBytes || maxPayload > 0xffff) {
+			throw new IllegalArgumentException("cold segment of " + segmentBytes + " bytes can not hold payload of " + maxPayload + " bytes");
+		}
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		if (dir.exists() == false && dir.mkdirs() == false) {
+			throw new IllegalArgumentException("can not create cold store dir " + dir);
+		}
+		File[] old = dir.listFiles();
+		for (int i = 0; old != null && i < old.length; i++) {
+			if (old[i].getName().startsWith(PREFIX) && old[i].getName().endsWith(SUFFIX)) {
+				old[i].delete();
+			}
+		}
+		this.keys = new long[64 << 1];
+		this.locs = new long[64];
+		this.ticks = new int[64];
+		this.mask = 63;
+	}
+
+	private int find(long msb, long lsb) {
+		int i = UuidMap.hash(msb, lsb) & mask;
+		while (locs[i] != 0) {
+			if (keys[i << 1] == msb && keys[(i << 1) + 1] == lsb) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void insert(long msb, long lsb, long loc, int tick) {
+		if ((size + 1) * 4L > (mask + 1) * 3L) {
+			grow();
+		}
+		place(msb, lsb, loc, tick);
+		size++;
+	}
+
+	/**
+	 * 放入空槽，不改变条目数
+	 */
+	private void place(long msb, long lsb, long loc, int tick) {
+		int i = UuidMap.hash(msb, lsb) & mask;
+		while (locs[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		keys[i << 1] = msb;
+		keys[(i << 1) + 1] = lsb;
+		locs[i] = loc;
+		ticks[i] = tick;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldLocs = locs;
+		int[] oldTicks = ticks;
+		int capacity = (mask + 1) << 1;
+		keys = new long[capacity << 1];
+		locs = new long[capacity];
+		ticks = new int[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < oldLocs.length; i++) {
+			if (oldLocs[i] != 0) {
+				place(oldKeys[i << 1], oldKeys[(i << 1) + 1], oldLocs[i], oldTicks[i]);
+			}
+		}
+	}
+
+	/**
+	 * 删除槽位，后移回填，记录失效
+	 */
+	private void removeAt(int i) {
+		release(locs[i]);
+		int hole = i;
+		int j = (i + 1) & mask;
+		while (locs[j] != 0) {
+			int home = UuidMap.hash(keys[j << 1], keys[(j << 1) + 1]) & mask;
+			// home不在(hole, j]之间的可以前移
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole << 1] = keys[j << 1];
+				keys[(hole << 1) + 1] = keys[(j << 1) + 1];
+				locs[hole] = locs[j];
+				ticks[hole] = ticks[j];
+				hole = j;
+			}
+			j = (j + 1) & mask;
+		}
+		locs[hole] = 0;
+		size--;
+	}
+
+	/**
+	 * 记录失效，不再存活的非当前段直接删除
+	 */
+	private int release(long loc) {
+		int seg = (int) (loc >>> 32) - 1;
+		Segment s = segments.get(seg);
+		int len = s.buf.getInt((int) loc + REC_LEN);
+		s.live -= len;
+		if (s.live == 0 && s != active) {
+			drop(seg);
+		}
+		return len;
+	}
+
+	private void drop(int seg) {
+		Segment s = segments.get(seg);
+		segments.set(seg, null);
+		// 映射随缓冲区回收释放
+		s.buf = null;
+		s.file.delete();
+	}
+
+	/**
+	 * 追加一条记录
+	 * 
+	 * @return 位置
+	 */
+	private long append(long msb, long lsb, ClientStatMachine csm) {
+		byte[] message0x20 = csm.getMessage0x20();
+		int len20 = message0x20 == null ? 0 : message0x20.length;
+		int len = PAYLOAD + len20;
+		Segment s = reserve(len);
+		MappedByteBuffer b = s.buf;
+		int pos = s.end;
+		b.putInt(pos + REC_LEN, len);
+		b.putLong(pos + MSB, msb);
+		b.putLong(pos + LSB, lsb);
+		b.putInt(pos + TICK, ClientStatMachine.toStamp(csm.getLastTick()));
+		b.putInt(pos + T10, ClientStatMachine.toStamp(csm.getLast0x10Time()));
+		b.putInt(pos + T11, ClientStatMachine.toStamp(csm.getLast0x11Time()));
+		b.putInt(pos + T20, ClientStatMachine.toStamp(csm.getLast0x20Time()));
+		b.putLong(pos + M11, csm.get0x11Message());
+		b.put(pos + FLAGS, (byte) ((csm.has0x10Message() ? FLAG_0X10 : 0) | (csm.isDirty() ? FLAG_DIRTY : 0)));
+		b.putChar(pos + L20, (char) len20);
+		if (len20 > 0) {
+			b.position(pos + PAYLOAD);
+			b.put(message0x20);
+		}
+		s.end += len;
+		s.live += len;
+		return ((long) (s.id + 1) << 32) | pos;
+	}
+
+	/**
+	 * 取得能容纳len字节的当前段，写满时换新段
+	 */
+	private Segment reserve(int len) {
+		if (active != null && active.end + len <= segmentBytes) {
+			return active;
+		}
+		Segment old = active;
+		int seg = segments.indexOf(null);
+		if (seg < 0) {
+			seg = segments.size();
+			segments.add(null);
+		}
+		File f = new File(dir, PREFIX + seg + SUFFIX);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+			raf.setLength(segmentBytes);
+			active = new Segment(seg, f, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+		} catch (Exception e) {
+			throw new IllegalStateException("can not map cold segment " + f, e);
+		} finally {
+			if (raf != null) {
+				try {
+					// 映射在通道关闭后仍然有效
+					raf.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		segments.set(seg, active);
+		if (old != null && old.live == 0) {
+			drop(old.id);
+		}
+		return active;
+	}
+
+	/**
+	 * 由记录生成状态机，地址不保存，取回后由下一次心跳更新
+	 */
+	private void decode(long loc, ClientStatMachine csm) {
+		MappedByteBuffer b = segments.get((int) (loc >>> 32) - 1).buf;
+		int pos = (int) loc;
+		int len20 = b.getChar(pos + L20);
+		byte[] message0x20 = null;
+		if (len20 > 0) {
+			message0x20 = new byte[len20];
+			b.position(pos + PAYLOAD);
+			b.get(message0x20);
+		}
+		csm.restore(ClientStatMachine.fromStamp(b.getInt(pos + TICK)), null, -1, (b.get(pos + FLAGS) & FLAG_0X10) != 0,
+				ClientStatMachine.fromStamp(b.getInt(pos + T10)), b.getLong(pos + M11), ClientStatMachine.fromStamp(b.getInt(pos + T11)),
+				ClientStatMachine.fromStamp(b.getInt(pos + T20)), message0x20);
+		csm.setDirty((b.get(pos + FLAGS) & FLAG_DIRTY) != 0);
+	}
+
+	/**
+	 * 移入，已存在时覆盖
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param csm
+	 */
+	public synchronized void put(long msb, long lsb, ClientStatMachine csm) {
+		int i = find(msb, lsb);
+		if (i >= 0) {
+			removeAt(i);
+		}
+		insert(msb, lsb, append(msb, lsb, csm), ClientStatMachine.toStamp(csm.getLastTick()));
+		spilledCount++;
+	}
+
+	/**
+	 * 取回并从冷存储删除
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 不存在返回null
+	 */
+	public synchronized ClientStatMachine take(long msb, long lsb) {
+		int i = find(msb, lsb);
+		if (i < 0) {
+			return null;
+		}
+		ClientStatMachine csm = ClientStatMachine.newEmpty();
+		decode(locs[i], csm);
+		removeAt(i);
+		faultedCount++;
+		return csm;
+	}
+
+	/**
+	 * 只读取得，不取回
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 不存在返回null
+	 */
+	public synchronized ClientStatMachine get(long msb, long lsb) {
+		int i = find(msb, lsb);
+		if (i < 0) {
+			return null;
+		}
+		ClientStatMachine csm = ClientStatMachine.newEmpty();
+		decode(locs[i], csm);
+		return csm;
+	}
+
+	/**
+	 * 删除
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 不存在返回null
+	 */
+	public synchronized ClientStatMachine remove(long msb, long lsb) {
+		int i = find(msb, lsb);
+		if (i < 0) {
+			return null;
+		}
+		ClientStatMachine csm = ClientStatMachine.newEmpty();
+		decode(locs[i], csm);
+		removeAt(i);
+		return csm;
+	}
+
+	/**
+	 * 取得最后心跳时间，只读索引不读文件
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 不存在返回-1
+	 */
+	public synchronized long getLastTick(long msb, long lsb) {
+		int i = find(msb, lsb);
+		return i < 0 ? -1 : ClientStatMachine.fromStamp(ticks[i]);
+	}
+
+	/**
+	 * 最后心跳早于expireBefore时删除，与ClientStateStore.expire相同
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param expireBefore
+	 * @return 不存在返回-1，已删除返回0，未过期返回最后心跳时间
+	 */
+	public synchronized long expire(long msb, long lsb, long expireBefore) {
+		int i = find(msb, lsb);
+		if (i < 0) {
+			return -1;
+		}
+		long lastTick = ClientStatMachine.fromStamp(ticks[i]);
+		if (lastTick >= expireBefore) {
+			return lastTick;
+		}
+		reclaimedBytes += segments.get((int) (locs[i] >>> 32) - 1).buf.getInt((int) locs[i] + REC_LEN);
+		removeAt(i);
+		return 0;
+	}
+
+	/**
+	 * 遍历，传入的状态机只在回调内有效
+	 * 
+	 * @param visitor
+	 */
+	public synchronized void forEach(UuidMap.Visitor<ClientStatMachine> visitor) {
+		ClientStatMachine cursor = ClientStatMachine.newEmpty();
+		for (int i = 0; i <= mask; i++) {
+			if (locs[i] == 0) {
+				continue;
+			}
+			decode(locs[i], cursor);
+			if (visitor.visit(keys[i << 1], keys[(i << 1) + 1], cursor) == false) {
+				return;
+			}
+		}
+	}
+
+	public synchronized int removeIf(UuidMap.Filter<ClientStatMachine> filter) {
+		ClientStatMachine cursor = ClientStatMachine.newEmpty();
+		int removed = 0;
+		int i = 0;
+		while (i <= mask) {
+			if (locs[i] == 0) {
+				i++;
+				continue;
+			}
+			decode(locs[i], cursor);
+			if (filter.remove(keys[i << 1], keys[(i << 1) + 1], cursor)) {
+				removeAt(i);
+				removed++;
+				// 后移回填的条目落在i上，需重新检查
+			} else {
+				i++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * 分块遍历索引中的第part部分，与ClientStateStore.forEachChunk相同
+	 * 按原始槽位(哈希位置)划分部分，越过部分末尾继续走到空槽为止；删除时后移回填不会越过原始槽位，未访问的条目不会移入已遍历的部分
+	 * 
+	 * @param part
+	 * @param parts
+	 *            把槽位平分的份数
+	 * @param cursor
+	 * @param maxSlots
+	 * @param dirtyOnly
+	 * @param visitor
+	 * @return 下次的游标，该部分遍历完返回-1
+	 */
+	public synchronized long forEachChunk(int part, int parts, long cursor, int maxSlots, boolean dirtyOnly, UuidMap.Visitor<ClientStatMachine> visitor) {
+		int capacity = mask + 1;
+		int from = (int) ((long) capacity * part / parts);
+		int to = (int) ((long) capacity * (part + 1) / parts);
+		int i = (int) (cursor >>> 32) == capacity ? (int) cursor : from;
+		int end = i + maxSlots;
+		ClientStatMachine c = ClientStatMachine.newEmpty();
+		// 最后一部分的簇可能绕回表头，下标取模；负载不超过3/4，一定会遇到空槽
+		while (i < to || locs[i & mask] != 0) {
+			int k = i & mask;
+			if (locs[k] == 0) {
+				if (i >= to) {
+					break;
+				}
+				if (i >= end) {
+					return ((long) capacity << 32) | (i + 1);
+				}
+			} else {
+				int home = UuidMap.hash(keys[k << 1], keys[(k << 1) + 1]) & mask;
+				// 原始槽位在k之后的是从表尾绕回的条目，只在最后一部分越过表尾时访问
+				boolean wrapped = home > k;
+				if (home >= from && home < to && wrapped == (i >= capacity)) {
+					MappedByteBuffer b = segments.get((int) (locs[k] >>> 32) - 1).buf;
+					int pos = (int) locs[k];
+					byte flags = b.get(pos + FLAGS);
+					if ((flags & FLAG_DIRTY) != 0 || dirtyOnly == false) {
+						b.put(pos + FLAGS, (byte) (flags & ~FLAG_DIRTY));
+						decode(locs[k], c);
+						visitor.visit(keys[k << 1], keys[(k << 1) + 1], c);
+					}
+				}
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * 搬走存活不足一半的非当前段中的存活记录并删除该段，每次只处理一个段，锁只在单个段内持有
+	 * 
+	 * @return 处理的段数
+	 */
+	public int compact() {
+		int compacted = 0;
+		int seg = 0;
+		while (true) {
+			synchronized (this) {
+				if (seg >= segments.size()) {
+					return compacted;
+				}
+				Segment s = segments.get(seg);
+				if (s != null && s != active && s.live * 2 < s.end) {
+					relocate(seg, s);
+					compacted++;
+				}
+			}
+			seg++;
+		}
+	}
+
+	private void relocate(int seg, Segment s) {
+		ClientStatMachine cursor = ClientStatMachine.newEmpty();
+		long base = (long) (seg + 1) << 32;
+		int pos = 0;
+		while (pos < s.end && s.live > 0) {
+			int len = s.buf.getInt(pos + REC_LEN);
+			int i = find(s.buf.getLong(pos + MSB), s.buf.getLong(pos + LSB));
+			if (i >= 0 && locs[i] == (base | pos)) {
+				decode(locs[i], cursor);
+				s.live -= len;
+				locs[i] = append(keys[i << 1], keys[(i << 1) + 1], cursor);
+				compactedBytes += len;
+			}
+			pos += len;
+		}
+		drop(seg);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * 是否为空，不加锁，供放入热存储前跳过冷存储查找
+	 * 
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * 取得段文件个数
+	 */
+	public synchronized int getSegmentNum() {
+		int n = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.get(i) != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * 取得段文件已写入的字节数
+	 */
+	public synchronized long getDiskBytes() {
+		long bytes = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.get(i) != null) {
+				bytes += segments.get(i).end;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * 取得存活记录的字节数
+	 */
+	public synchronized long getLiveBytes() {
+		long bytes = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.get(i) != null) {
+				bytes += segments.get(i).live;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * 取得索引占用的堆内字节数
+	 */
+	public synchronized long getIndexBytes() {
+		return (mask + 1) * 28L;
+	}
+
+	public synchronized long getSpilledCount() {
+		return spilledCount;
+	}
+
+	public synchronized long getFaultedCount() {
+		return faultedCount;
+	}
+
+	public synchronized long getReclaimedBytes() {
+		return reclaimedBytes;
+	}
+
+	public synchronized long getCompactedBytes() {
+		return compactedBytes;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import org.ddpush.im.util.UuidMap;
+import org.ddpush.im.v1.node.tcpconnector.MessengerTask;
+
+/**
+ * TCP连接注册表，以uuid为键记录客户端当前的TCP消息处理任务
+ * 连接关闭时注销，状态机不再持有连接的引用，UDP客户端不占用任何空间
+ */
+public class ConnectionRegistry {
+
+	/** uuid到TCP任务 */
+	private static final UuidMap<MessengerTask> links = new UuidMap<MessengerTask>(16, 1024);
+
+	private ConnectionRegistry() {
+
+	}
+
+	/**
+	 * 登记客户端的TCP任务
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param task
+	 */
+	public static void register(long msb, long lsb, MessengerTask task) {
+		if (links.get(msb, lsb) != task) {
+			links.put(msb, lsb, task);
+		}
+	}
+
+	/**
+	 * 注销，只在仍指向该任务时删除
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param task
+	 */
+	public static void unregister(long msb, long lsb, MessengerTask task) {
+		links.remove(msb, lsb, task);
+	}
+
+	/**
+	 * 取得客户端的TCP任务
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 无TCP连接返回null
+	 */
+	public static MessengerTask get(long msb, long lsb) {
+		return links.get(msb, lsb);
+	}
+
+	/**
+	 * 取得TCP连接数
+	 * 
+	 * @return
+	 */
+	public static int size() {
+		return links.size();
+	}
+}
@@ -1,59 +1,59 @@
-/*
- *Copyright 2014 DDPush
- *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
- *Email: ddpush@126.com
- *
-
-Licensed under the Apache License, Version 2.0 (the "License");
-you may not use this file except in compliance with the License.
-You may obtain a copy of the License at
-
-    http://www.apache.org/licenses/LICENSE-2.0
-
-Unless required by applicable law or agreed to in writing, software
-distributed under the License is distributed on an "AS IS" BASIS,
-WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-See the License for the specific language governing permissions and
-limitations under the License.
-
- */
-package org.ddpush.im.v1.node;
-
-/**
- * 常量定义
- */
-public class Constant {
-
-	/** 客户端消息最小长度，通用命令时21,uuid占用16 */
-	public static final int CLIENT_MESSAGE_MIN_LENGTH = 21;
-	/** 客户端消息最大长度，通用命令时21,uuid占用16 */
-	public static final int CLIENT_MESSAGE_MAX_LENGTH = 29;
-	/** 服务器消息最小长度，通用命令时5 */
-	public static final int SERVER_MESSAGE_MIN_LENGTH = 5;
-	/** 服务器消息头长度 */
-	public static final int PUSH_MSG_HEADER_LEN = 21;
-	/** 当前版本号 */
-	public static int VERSION_NUM = 1;
-	//
-	// //nio push listener config
-	// public static int PUSH_MSG_MAX_CONTENT_LEN = 500;//自定义内容最大字节
-	// public static int PUSH_LISTENER_PORT = 9999;
-	// public static int PUSH_LISTENER_SOCKET_TIMEOUT = 600;//second
-	// public static int PUSH_LISTENER_MIN_THREAD = 1;
-	// public static int PUSH_LISTENER_MAX_THREAD = 5;
-	//
-	// //tcp client connector
-	// public static int CLIENT_TCP_PORT = 9966;
-	// public static int CLIENT_TCP_MIN_THREAD = 1;
-	// public static int CLIENT_TCP_MAX_THREAD = 10;
-	//
-	// //udp client connector
-	// public static int CLIENT_UDP_PORT = 9966;
-	// public static int CLIENT_UDP_BUFFER_RECEIVE = 10;//mega bytes
-	// public static int CLIENT_UDP_BUFFER_SEND = 10;//mega bytes
-	// public static int CLIENT_UDP_WORKER_THREAD = 10;
-	//
-	// //console
-	// public static int CONSOLE_TCP_PORT = 9900;
-
-}
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+/**
+ * 常量定义
+ */
+public class Constant {
+
+	/** 客户端消息最小长度，通用命令时21,uuid占用16 */
+	public static final int CLIENT_MESSAGE_MIN_LENGTH = 21;
+	/** 客户端消息最大长度，通用命令时21,uuid占用16 */
+	public static final int CLIENT_MESSAGE_MAX_LENGTH = 29;
+	/** 服务器消息最小长度，通用命令时5 */
+	public static final int SERVER_MESSAGE_MIN_LENGTH = 5;
+	/** 服务器消息头长度 */
+	public static final int PUSH_MSG_HEADER_LEN = 21;
+	/** 当前版本号 */
+	public static int VERSION_NUM = 1;
+	//
+	// //nio push listener config
+	// public static int PUSH_MSG_MAX_CONTENT_LEN = 500;//自定义内容最大字节
+	// public static int PUSH_LISTENER_PORT = 9999;
+	// public static int PUSH_LISTENER_SOCKET_TIMEOUT = 600;//second
+	// public static int PUSH_LISTENER_MIN_THREAD = 1;
+	// public static int PUSH_LISTENER_MAX_THREAD = 5;
+	//
+	// //tcp client connector
+	// public static int CLIENT_TCP_PORT = 9966;
+	// public static int CLIENT_TCP_MIN_THREAD = 1;
+	// public static int CLIENT_TCP_MAX_THREAD = 10;
+	//
+	// //udp client connector
+	// public static int CLIENT_UDP_PORT = 9966;
+	// public static int CLIENT_UDP_BUFFER_RECEIVE = 10;//mega bytes
+	// public static int CLIENT_UDP_BUFFER_SEND = 10;//mega bytes
+	// public static int CLIENT_UDP_WORKER_THREAD = 10;
+	//
+	// //console
+	// public static int CONSOLE_TCP_PORT = 9900;
+
+}
@@ -0,0 +1,114 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.ThreadUtil;
+
+/**
+ * 线程池与虚拟线程执行器对比测试，模拟大量连接同时提交阻塞任务(等待套接字读写)
+ * 
+ * 用法: ExecutorBenchmark [任务数] [每任务阻塞毫秒数]
+ */
+public class ExecutorBenchmark {
+
+	/**
+	 * 模拟一个推送或TCP连接任务：阻塞等待后做少量计算
+	 */
+	static class BlockingTask implements Runnable {
+		private long submitTime;
+		private int blockMillis;
+		private CountDownLatch done;
+		private AtomicLong totalLatency;
+
+		BlockingTask(int blockMillis, CountDownLatch done, AtomicLong totalLatency) {
+			this.submitTime = System.nanoTime();
+			this.blockMillis = blockMillis;
+			this.done = done;
+			this.totalLatency = totalLatency;
+		}
+
+		public void run() {
+			try {
+				Thread.sleep(blockMillis);
+				int h = 0;
+				for (int i = 0; i < 1000; i++) {
+					h = 31 * h + i;
+				}
+				if (h == 1) {
+					System.out.print("");
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				totalLatency.addAndGet(System.nanoTime() - submitTime);
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * 执行一轮测试
+	 * 
+	 * @param name
+	 * @param executor
+	 * @param tasks
+	 * @param blockMillis
+	 * @throws Exception
+	 */
+	static void run(String name, ExecutorService executor, int tasks, int blockMillis) throws Exception {
+		CountDownLatch done = new CountDownLatch(tasks);
+		AtomicLong totalLatency = new AtomicLong(0);
+		long start = System.nanoTime();
+		for (int i = 0; i < tasks; i++) {
+			executor.execute(new BlockingTask(blockMillis, done, totalLatency));
+		}
+		done.await();
+		long cost = System.nanoTime() - start;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		System.out.println(name + ": " + tasks + " tasks in " + (cost / 1000000) + " ms, " + (tasks * 1000000000L / Math.max(cost, 1))
+				+ " tasks/s, avg latency " + (totalLatency.longValue() / tasks / 1000000) + " ms");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int blockMillis = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int minThreads = PropertyUtil.getPropertyInt("PUSH_LISTENER_MIN_THREAD");
+		int maxThreads = PropertyUtil.getPropertyInt("PUSH_LISTENER_MAX_THREAD");
+		System.out.println("tasks: " + tasks + ", block: " + blockMillis + " ms, cores: " + Runtime.getRuntime().availableProcessors());
+
+		// 与NIOPushListener相同配置的线程池，无界队列下线程数不会超过核心数
+		run("pool(" + minThreads + "-" + maxThreads + ")", new ThreadPoolExecutor(minThreads, maxThreads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>()), tasks, blockMillis);
+		if (ThreadUtil.isVirtualSupported() == true) {
+			run("virtual", ThreadUtil.newVirtualThreadPerTaskExecutor("benchmark-"), tasks, blockMillis);
+		} else {
+			System.out.println("virtual: skipped, virtual threads need java 21+");
+		}
+	}
+}
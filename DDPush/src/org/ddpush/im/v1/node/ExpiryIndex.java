@@ -0,0 +1,317 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 过期索引，按最后心跳时间的小时分桶记录uuid，每个客户端只在创建时放入一次，心跳不移动索引
+ * 清除时只处理已过期的桶：已过期的删除，仍活跃的按真实心跳时间放回新桶，
+ * 因此一次清除的开销与过期桶内的条目数成正比，活跃客户端在一个过期周期内最多被检查一次
+ */
+public class ExpiryIndex {
+
+	/** 一小时的毫秒数 */
+	private static final long HOUR = 3600000L;
+
+	/** 小时到桶 */
+	private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<Long, Bucket>();
+	/** 索引条目数，含已不存在的客户端 */
+	private final AtomicLong entries = new AtomicLong();
+
+	/**
+	 * 一小时的uuid，每个uuid占两个long
+	 */
+	private static final class Bucket {
+		long[] keys = new long[64];
+		int size;
+		/** 已摘下处理，不再接受放入 */
+		boolean closed;
+
+		synchronized boolean add(long msb, long lsb) {
+			if (closed == true) {
+				return false;
+			}
+			if ((size << 1) == keys.length) {
+				long[] grown = new long[keys.length << 1];
+				System.arraycopy(keys, 0, grown, 0, size << 1);
+				keys = grown;
+			}
+			keys[size << 1] = msb;
+			keys[(size << 1) + 1] = lsb;
+			size++;
+			return true;
+		}
+
+		/**
+		 * 摘下处理，之后keys不再变化
+		 * 
+		 * @return 已被摘下过返回-1
+		 */
+		synchronized int close() {
+			if (closed == true) {
+				return -1;
+			}
+			closed = true;
+			return size;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * 对过期桶内条目的处理
+	 */
+	public interface Action {
+		/**
+		 * @param msb
+		 * @param lsb
+		 * @param before
+		 *            开始时给定的时间点
+		 * @return 不存在返回-1，已删除返回0，其余返回最后心跳时间并按其放回索引
+		 */
+		long apply(long msb, long lsb, long before);
+	}
+
+	/**
+	 * 一次清除的进度，可分多次执行，每次处理有限的条目，本索引处理完后接着执行next
+	 */
+	public final class Sweep {
+		private final long expireBefore;
+		private final Action action;
+		/** 之后执行的另一个索引的清除，可为null */
+		private final Sweep next;
+		/** 开始时已过期的桶 */
+		private final ArrayList<Map.Entry<Long, Bucket>> expired;
+		/** 开始时过期桶内的条目数 */
+		private final long total;
+		private int bucketPos = 0;
+		private Bucket current = null;
+		private int currentSize;
+		private int entryPos;
+		private volatile long checked = 0;
+		private volatile int removed = 0;
+
+		private Sweep(long expireBefore, Action action, Sweep next) {
+			this.expireBefore = expireBefore;
+			this.action = action;
+			this.next = next;
+			// 先取出要处理的桶，放回的活跃客户端进入新桶，本次不再处理
+			this.expired = new ArrayList<Map.Entry<Long, Bucket>>(buckets.headMap(Long.valueOf(hourOf(expireBefore)), true).entrySet());
+			long sum = 0;
+			for (int i = 0; i < expired.size(); i++) {
+				sum += expired.get(i).getValue().size();
+			}
+			this.total = sum;
+		}
+
+		/**
+		 * 执行一片
+		 * 
+		 * @param maxEntries
+		 *            最多检查的条目数
+		 * @param sliceNanos
+		 *            最长纳秒数，不大于0表示不限
+		 * @return 本片检查的条目数
+		 */
+		public int step(int maxEntries, long sliceNanos) {
+			if (isOwnDone() == true && next != null) {
+				return next.step(maxEntries, sliceNanos);
+			}
+			long deadline = System.nanoTime() + sliceNanos;
+			int n = 0;
+			while (n < maxEntries) {
+				if (current == null) {
+					if (bucketPos == expired.size()) {
+						break;
+					}
+					Map.Entry<Long, Bucket> e = expired.get(bucketPos++);
+					buckets.remove(e.getKey(), e.getValue());
+					int size = e.getValue().close();
+					if (size < 0) {
+						continue;
+					}
+					entries.addAndGet(-size);
+					current = e.getValue();
+					currentSize = size;
+					entryPos = 0;
+				}
+				if (entryPos == currentSize) {
+					current = null;
+					continue;
+				}
+				long msb = current.keys[entryPos << 1];
+				long lsb = current.keys[(entryPos << 1) + 1];
+				entryPos++;
+				long lastTick = action.apply(msb, lsb, expireBefore);
+				if (lastTick == 0) {
+					removed++;
+				} else if (lastTick > 0) {
+					add(msb, lsb, lastTick);
+				}
+				n++;
+				checked++;
+				if (sliceNanos > 0 && (n & 63) == 0 && System.nanoTime() - deadline > 0) {
+					break;
+				}
+			}
+			return n;
+		}
+
+		/**
+		 * 是否已完成
+		 * 
+		 * @return
+		 */
+		public boolean isDone() {
+			return isOwnDone() == true && (next == null || next.isDone() == true);
+		}
+
+		private boolean isOwnDone() {
+			return current == null && bucketPos == expired.size();
+		}
+
+		public long getChecked() {
+			return next == null ? checked : checked + next.getChecked();
+		}
+
+		public long getTotal() {
+			return next == null ? total : total + next.getTotal();
+		}
+
+		public int getRemoved() {
+			return next == null ? removed : removed + next.getRemoved();
+		}
+	}
+
+	/**
+	 * 取得所在小时，即桶号
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	static long hourOf(long millis) {
+		return millis < 0 ? -1 : millis / HOUR;
+	}
+
+	/**
+	 * 放入索引
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param lastTick
+	 *            最后心跳时间
+	 */
+	public void add(long msb, long lsb, long lastTick) {
+		Long hour = Long.valueOf(hourOf(lastTick));
+		while (true) {
+			Bucket b = buckets.get(hour);
+			if (b == null) {
+				Bucket created = new Bucket();
+				b = buckets.putIfAbsent(hour, created);
+				if (b == null) {
+					b = created;
+				}
+			}
+			if (b.add(msb, lsb) == true) {
+				entries.incrementAndGet();
+				return;
+			}
+			// 桶正被清除摘下，重新取桶
+			buckets.remove(hour, b);
+		}
+	}
+
+	/**
+	 * 开始清除最后心跳早于expireBefore的客户端，只处理不晚于该时间所在小时的桶
+	 * 
+	 * @param expireBefore
+	 * @param store
+	 * @return 清除进度，由调用者分片执行
+	 */
+	public Sweep beginSweep(long expireBefore, ClientStateStore store) {
+		return beginSweep(expireBefore, store, null);
+	}
+
+	/**
+	 * 开始清除，本索引处理完后接着执行next
+	 * 
+	 * @param expireBefore
+	 * @param store
+	 * @param next
+	 * @return
+	 */
+	public Sweep beginSweep(long expireBefore, final ClientStateStore store, Sweep next) {
+		return new Sweep(expireBefore, new Action() {
+			public long apply(long msb, long lsb, long before) {
+				return store.expire(msb, lsb, before);
+			}
+		}, next);
+	}
+
+	/**
+	 * 开始处理最后心跳早于before所在小时及之前的桶，仍存在的按返回的心跳时间放回
+	 * 
+	 * @param before
+	 * @param action
+	 * @return 处理进度，由调用者分片执行
+	 */
+	public Sweep beginSweep(long before, Action action) {
+		return new Sweep(before, action, null);
+	}
+
+	/**
+	 * 一次清除完
+	 * 
+	 * @param expireBefore
+	 * @param store
+	 * @return 删除的个数
+	 */
+	public int expire(long expireBefore, ClientStateStore store) {
+		Sweep sweep = beginSweep(expireBefore, store);
+		while (sweep.isDone() == false) {
+			sweep.step(Integer.MAX_VALUE, 0);
+		}
+		return sweep.getRemoved();
+	}
+
+	/**
+	 * 取得桶数
+	 * 
+	 * @return
+	 */
+	public int getBucketNum() {
+		return buckets.size();
+	}
+
+	/**
+	 * 取得索引条目数
+	 * 
+	 * @return
+	 */
+	public long getEntries() {
+		return entries.get();
+	}
+}
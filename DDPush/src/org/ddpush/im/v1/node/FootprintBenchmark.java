@@ -0,0 +1,78 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * 状态机内存占用测试，创建一批模拟UDP客户端的状态机(已收到心跳、记录了地址)，按堆使用量之差计算每客户端字节数
+ * 
+ * 用法: FootprintBenchmark [客户端数] [共用一个IP的客户端数]
+ */
+public class FootprintBenchmark {
+
+	/**
+	 * 多次gc后取得已用堆内存
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private static long usedMemory() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int perIp = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+		byte[] tick = new byte[Constant.CLIENT_MESSAGE_MIN_LENGTH];
+		tick[0] = (byte) Constant.VERSION_NUM;
+		tick[2] = (byte) ClientStatMachine.CMD_0x00;
+		ReplyPlan plan = new ReplyPlan();
+		ClientStatMachine[] machines = new ClientStatMachine[clients];
+
+		long before = usedMemory();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < clients; i++) {
+			ClientStatMachine csm = ClientStatMachine.newFromFile(now, false, -1, 0, -1, 0, -1, null);
+			int ip = 0x0a000000 + i / perIp;
+			// 每个数据报接收时都会得到新的地址对象
+			InetAddress addr = InetAddress.getByAddress(new byte[] { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip });
+			ClientMessage cm = new ClientMessage(new InetSocketAddress(addr, 1024 + i % perIp), tick);
+			cm.setShard(0);
+			plan.reset();
+			csm.onClientMessage(cm, plan);
+			machines[i] = csm;
+		}
+		long after = usedMemory();
+
+		System.out.println(clients + " clients, " + perIp + " per ip");
+		System.out.println("bytes per client: " + (after - before) / clients + " (state machine, address and a 4 byte array slot)");
+		if (machines[clients - 1] == null) {
+			System.out.println("unexpected");
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 堆内状态存储，状态机常驻堆内，以自身的同步保证并发
+ * acquire到release之间持有状态机，过期删除和移入冷存储在状态机锁内跳过被持有的并标记已移出，
+ * acquire在锁内发现已移出时重新查找，因此不会修改已脱离存储的状态机
+ */
+public class HeapStateStore implements ClientStateStore {
+
+	/** 客户端状态机并发map，以uuid的两个long为键 */
+	private final UuidMap<ClientStatMachine> map;
+	/** 过期删除累计释放的字节数 */
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+
+	/**
+	 * 初始化
+	 * 
+	 * @param segmentNum
+	 * @param initialCapacity
+	 */
+	public HeapStateStore(int segmentNum, int initialCapacity) {
+		map = new UuidMap<ClientStatMachine>(segmentNum, initialCapacity);
+	}
+
+	public ClientStatMachine acquire(long msb, long lsb) {
+		while (true) {
+			ClientStatMachine csm = map.get(msb, lsb);
+			if (csm == null) {
+				return null;
+			}
+			synchronized (csm) {
+				if (csm.pin() == true) {
+					return csm;
+				}
+			}
+			// 取到后被过期删除或移入冷存储，已不在map中，重新查找，分层存储随后从冷存储取回
+		}
+	}
+
+	public ClientStatMachine create(long msb, long lsb, ClientStatMachine csm) {
+		// 先持有再放入，放入后处理前不会被移出
+		synchronized (csm) {
+			csm.pin();
+		}
+		while (true) {
+			ClientStatMachine old = map.putIfAbsent(msb, lsb, csm);
+			if (old == null) {
+				return csm;
+			}
+			synchronized (old) {
+				if (old.pin() == true) {
+					return old;
+				}
+			}
+		}
+	}
+
+	public void release(long msb, long lsb, ClientStatMachine csm) {
+		// 共享对象已就地修改，无需写回，只归还持有
+		if (csm != null) {
+			synchronized (csm) {
+				csm.unpin();
+			}
+		}
+	}
+
+	public ClientStatMachine get(long msb, long lsb) {
+		return map.get(msb, lsb);
+	}
+
+	public boolean put(long msb, long lsb, ClientStatMachine csm) {
+		return map.put(msb, lsb, csm) == null;
+	}
+
+	public ClientStatMachine remove(long msb, long lsb) {
+		return map.remove(msb, lsb);
+	}
+
+	public void forEach(UuidMap.Visitor<ClientStatMachine> visitor) {
+		map.forEach(visitor);
+	}
+
+	public int removeIf(UuidMap.Filter<ClientStatMachine> filter) {
+		return map.removeIf(filter);
+	}
+
+	public long forEachChunk(int shard, long cursor, int maxSlots, final boolean dirtyOnly, final UuidMap.Visitor<ClientStatMachine> visitor) {
+		return map.forEachChunk(shard, cursor, maxSlots, new UuidMap.Visitor<ClientStatMachine>() {
+			public boolean visit(long msb, long lsb, ClientStatMachine csm) {
+				// 不取状态机锁，处理路径先改字段后置位，清除后读到的不会比清除时旧
+				if (csm.clearDirty() == false && dirtyOnly == true) {
+					return true;
+				}
+				return visitor.visit(msb, lsb, csm);
+			}
+		});
+	}
+
+	public long expire(long msb, long lsb, long expireBefore) {
+		ClientStatMachine csm = map.get(msb, lsb);
+		if (csm == null) {
+			return -1;
+		}
+		// 心跳在状态机锁内更新
+		synchronized (csm) {
+			long lastTick = csm.getLastTick();
+			if (lastTick >= expireBefore || csm.evict() == false) {
+				// 未过期或正在被处理，按心跳时间放回索引
+				return lastTick;
+			}
+			if (map.remove(msb, lsb, csm) == false) {
+				return -1;
+			}
+			reclaimedBytes.addAndGet(csm.estimateBytes());
+			return 0;
+		}
+	}
+
+	public long spill(long msb, long lsb, long idleBefore, ColdStore cold) {
+		ClientStatMachine csm = map.get(msb, lsb);
+		if (csm == null) {
+			return -1;
+		}
+		synchronized (csm) {
+			long lastTick = csm.getLastTick();
+			if (lastTick >= idleBefore) {
+				return lastTick;
+			}
+		}
+		// 持有冷存储锁直到移出，并发的取回要么看到堆内的要么看到冷存储中的；
+		// 取回在冷存储锁内持有状态机，这里按同样的先冷存储后状态机的顺序加锁
+		synchronized (cold) {
+			synchronized (csm) {
+				long lastTick = csm.getLastTick();
+				if (lastTick >= idleBefore || csm.evict() == false) {
+					return lastTick;
+				}
+				if (map.remove(msb, lsb, csm) == false) {
+					return -1;
+				}
+				cold.put(msb, lsb, csm);
+				return lastTick;
+			}
+		}
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public int getShardNum() {
+		return map.getSegmentNum();
+	}
+
+	public long getCapacity() {
+		return map.capacity();
+	}
+
+	public String getName() {
+		return "heap";
+	}
+
+	public long getOffHeapBytes() {
+		return 0;
+	}
+}
@@ -1,331 +1,451 @@
-/*
- *Copyright 2014 DDPush
- *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
- *Email: ddpush@126.com
- *
-
-Licensed under the Apache License, Version 2.0 (the "License");
-you may not use this file except in compliance with the License.
-You may obtain a copy of the License at
-
-    http://www.apache.org/licenses/LICENSE-2.0
-
-Unless required by applicable law or agreed to in writing, software
-distributed under the License is distributed on an "AS IS" BASIS,
-WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-See the License for the specific language governing permissions and
-limitations under the License.
-
- */
-package org.ddpush.im.v1.node;
-
-import java.util.ArrayList;
-import java.util.Date;
-
-import org.ddpush.im.util.DateTimeUtil;
-import org.ddpush.im.util.PropertyUtil;
-import org.ddpush.im.v1.node.pushlistener.NIOPushListener;
-import org.ddpush.im.v1.node.tcpconnector.NIOTcpConnector;
-import org.ddpush.im.v1.node.udpconnector.UdpConnector;
-
-/**
- * IM服务器
- */
-public class IMServer {
-
-	/** 服务器单例 */
-	public static IMServer server;
-	/** 停止运行状态为 */
-	private boolean stoped = false;
-	/** UDP处理线程数，默认是3 */
-	int workerNum = PropertyUtil.getPropertyInt("CLIENT_UDP_WORKER_THREAD");// fixed
-																			// work
-																			// threads
-	/** UDP处理线程 */
-	private UdpConnector udpConnector;
-	/** TCP处理线程 */
-	private Thread tcpConnThread;
-	/** TCP处理者 */
-	private NIOTcpConnector tcpConnector;
-	/** 节点状态机 */
-	private NodeStatus nodeStatus = NodeStatus.getInstance();
-	/** UDP消息管理者 */
-	private ArrayList<Messenger> workerList = new ArrayList<Messenger>();
-	/** 清除状态机线程 */
-	private Thread clearnThread = null;
-	/** 状态机清除者 */
-	private ClientStatMachineCleaner cleaner = null;
-	/** 控制器线程 */
-	private Thread cmdThread = null;
-	/** IM控制器 */
-	private IMServerConsole console = null;
-	/** 消息推送线程 */
-	private Thread pushThread = null;
-	private NIOPushListener pushListener = null;
-
-	private long startTime;
-
-	private IMServer() {
-
-	}
-
-	public static IMServer getInstance() {
-		if (server == null) {
-			synchronized (IMServer.class) {
-				if (server == null) {
-					server = new IMServer();
-				}
-			}
-		}
-		return server;
-	}
-
-	public void init() throws Exception {
-		initPushListener();
-		initConsole();
-		initUdpConnector();
-		initTcpConnector();
-		initWorkers();
-		initCleaner();
-
-	}
-
-	public void initConsole() throws Exception {
-		console = new IMServerConsole();
-		cmdThread = new Thread(console, "IMServer-console");
-		cmdThread.setDaemon(true);
-		cmdThread.start();
-	}
-
-	public void initUdpConnector() throws Exception {
-		System.out.println("start connector...");
-		udpConnector = new UdpConnector();
-		udpConnector.start();
-	}
-
-	public void initTcpConnector() throws Exception {
-		if (!"YES".equalsIgnoreCase(PropertyUtil.getProperty("TCP_CONNECTOR_ENABLE"))) {
-			return;
-		}
-		tcpConnector = new NIOTcpConnector();
-		tcpConnThread = new Thread(tcpConnector, "IMServer-NIOTcpConnector");
-		synchronized (tcpConnector) {
-			tcpConnThread.start();
-			tcpConnector.wait();
-		}
-	}
-
-	public void initWorkers() {
-		System.out.println("start " + workerNum + " workers...");
-		for (int i = 0; i < workerNum; i++) {
-			Messenger worker = new Messenger(udpConnector, nodeStatus);
-			workerList.add(worker);
-			Thread t = new Thread(worker, "IMServer-worker-" + i);
-			worker.setHostThread(t);
-			t.setDaemon(true);
-			t.start();
-		}
-	}
-
-	public void initCleaner() throws Exception {
-		cleaner = new ClientStatMachineCleaner();
-		clearnThread = new Thread(cleaner, "IMServer-cleaner");
-		clearnThread.start();
-	}
-
-	public void initPushListener() throws Exception {
-		pushListener = new NIOPushListener();
-		pushThread = new Thread(pushListener, "IMServer-push-listener");
-		pushThread.start();
-	}
-
-	public void start() throws Exception {
-		System.out.println("working dir: " + System.getProperty("user.dir"));
-		init();
-
-		final Thread mainT = Thread.currentThread();
-
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			public void run() {
-				stoped = true;
-				System.out.println("shut down server... ");
-				try {
-					mainT.join();
-					System.out.println("server is down, bye ");
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		});
-		this.startTime = System.currentTimeMillis();
-		System.out.println("server is up ");
-		while (stoped == false) {
-			try {
-				synchronized (this) {
-					this.wait(1000 * 60);
-					if (stoped == false) {
-						autoClean();
-					}
-				}
-			} catch (Exception e) {
-			}
-		}
-		this.quit();
-
-	}
-
-	private void autoClean() {
-		float percent = PropertyUtil.getPropertyFloat("CLEANER_AUTO_RUN_MEM_PERCENT");
-		if (percent >= 1 || percent <= 0) {
-			return;
-		}
-		Runtime rt = Runtime.getRuntime();
-		if ((rt.totalMemory() - rt.freeMemory()) / (double) rt.maxMemory() > percent) {
-			System.out.println("run auto clean...");
-			cleaner.wakeup();
-		}
-	}
-
-	public void stop() {
-		this.stoped = true;
-		synchronized (this) {
-			this.notifyAll();
-		}
-
-	}
-
-	protected void quit() throws Exception {
-		try {
-			stopWorkers();
-			stopUdpConnector();
-			stopTcpConnector();
-			stopCleaner();
-			stopPushListener();
-		} catch (Throwable t) {
-			t.printStackTrace();
-		}
-		saveStatus();
-	}
-
-	public void stopWorkers() throws Exception {
-		for (int i = 0; i < workerList.size(); i++) {
-			try {
-				workerList.get(i).stop();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-	}
-
-	public void stopUdpConnector() throws Exception {
-		if (udpConnector == null) {
-			return;
-		}
-		udpConnector.stop();
-	}
-
-	public void stopTcpConnector() throws Exception {
-		if (tcpConnector == null || tcpConnThread == null) {
-			return;
-		}
-		tcpConnector.stop();
-		tcpConnThread.join();
-	}
-
-	public void stopCleaner() throws Exception {
-		cleaner.stop();
-		try {
-			clearnThread.interrupt();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	public void stopPushListener() throws Exception {
-		pushListener.stop();
-		pushThread.join();
-	}
-
-	public void saveStatus() throws Exception {
-		nodeStatus.saveToFile();
-	}
-
-	public String getStatusString() {
-		StringBuffer sb = new StringBuffer();
-
-		String end = "\r\n";
-
-		sb.append("server start up at: ").append(DateTimeUtil.formatDate(new Date(this.startTime))).append(end);
-		long runtime = System.currentTimeMillis() - this.startTime;
-		sb.append("up time: ").append(runtime / (1000 * 3600 * 24)).append(" day ").append(runtime / (1000 * 3600)).append(" hour ")
-				.append(runtime / (1000 * 60)).append(" minute").append(end);
-		sb.append("messagers: ").append(this.workerList.size()).append(end);
-		sb.append("current stat machines: ").append(nodeStatus.size()).append(end);
-		sb.append("udp recieve packages: ").append(this.udpConnector.getInqueueIn()).append(end);
-		sb.append("udp recieve packages pending: ").append(this.udpConnector.getInqueueIn() - this.udpConnector.getInqueueOut()).append(end);
-		sb.append("udp send packages: ").append(this.udpConnector.getOutqueueIn()).append(end);
-		sb.append("udp send packages pending: ").append(this.udpConnector.getOutqueueIn() - this.udpConnector.getOutqueueOut()).append(end);
-		sb.append("jvm  max  mem: ").append(Runtime.getRuntime().maxMemory()).append(end);
-		sb.append("jvm total mem: ").append(Runtime.getRuntime().totalMemory()).append(end);
-		sb.append("jvm  free mem: ").append(Runtime.getRuntime().freeMemory()).append(end);
-		sb.append("last clean time: ").append(DateTimeUtil.formatDate(new Date(this.cleaner.getLastCleanTime()))).append(end);
-		sb.append("messengers threads:----------------------").append(end);
-		for (int i = 0; i < workerList.size(); i++) {
-			Thread t = workerList.get(i).getHostThread();
-			sb.append(t.getName() + " stat: " + t.getState().toString()).append(end);
-		}
-		return sb.toString();
-	}
-
-	public String getUuidStatString(String uuid) {
-		ClientStatMachine csm = this.nodeStatus.getClientStat(uuid);
-		if (csm == null) {
-			return null;
-		}
-		StringBuffer sb = new StringBuffer();
-		String end = "\r\n";
-
-		sb.append("stat of   uuid: " + uuid).append(end);
-		sb.append("last tick time: " + DateTimeUtil.formatDate(new Date(csm.getLastTick()))).append(end);
-		sb.append("last ip addres: " + csm.getLastAddr()).append(end);
-		sb.append("last tcp  time: " + DateTimeUtil.formatDate(new Date(csm.getMessengerTask() == null ? 0 : csm.getMessengerTask().getLastActive()))).append(
-				end);
-		sb.append("0x10   message: " + csm.has0x10Message()).append(end);
-		sb.append("last 0x10 time: " + DateTimeUtil.formatDate(new Date(csm.getLast0x10Time()))).append(end);
-		sb.append("0x11   message: " + csm.get0x11Message()).append(end);
-		sb.append("last 0x11 time: " + DateTimeUtil.formatDate(new Date(csm.getLast0x11Time()))).append(end);
-		sb.append("0x20   message: " + csm.has0x20Message()).append(end);
-		sb.append("last 0x20 time: " + DateTimeUtil.formatDate(new Date(csm.getLast0x20Time()))).append(end);
-		sb.append("0x20 arry  len: " + csm.getMessage0x20Len()).append(end);
-
-		return sb.toString();
-	}
-
-	public void cleanExpiredMachines(int hours) {
-		cleaner.setExpiredHours(hours);
-		cleaner.wakeup();
-	}
-
-	public void pushInstanceMessage(ServerMessage sm) throws Exception {
-		if (sm == null || sm.getData() == null || sm.getSocketAddress() == null) {
-			return;
-		}
-		if (udpConnector != null) {
-			udpConnector.send(sm);
-		}
-	}
-
-	public static void main(String[] args) {
-		IMServer server = IMServer.getInstance();
-		try {
-			server.start();
-
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
-		} catch (Throwable t) {
-			t.printStackTrace();
-			System.exit(1);
-		}
-	}
-}
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.ddpush.im.util.DateTimeUtil;
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.ThreadUtil;
+import org.ddpush.im.util.UuidMap;
+import org.ddpush.im.v1.node.pipeline.UdpPipeline;
+import org.ddpush.im.v1.node.pushlistener.NIOPushListener;
+import org.ddpush.im.v1.node.tcpconnector.MessengerTask;
+import org.ddpush.im.v1.node.tcpconnector.NIOTcpConnector;
+import org.ddpush.im.v1.node.udpconnector.PacketTracer;
+import org.ddpush.im.v1.node.udpconnector.UdpConnector;
+
+/**
+ * IM服务器
+ */
+public class IMServer {
+
+	/** 服务器单例 */
+	public static IMServer server;
+	/** 停止运行状态为 */
+	private boolean stoped = false;
+	/** UDP处理线程数，默认是3 */
+	int workerNum = PropertyUtil.getPropertyInt("CLIENT_UDP_WORKER_THREAD");// fixed
+																			// work
+																			// threads
+	/** UDP处理线程 */
+	private UdpConnector udpConnector;
+	/** TCP处理线程 */
+	private Thread tcpConnThread;
+	/** TCP处理者 */
+	private NIOTcpConnector tcpConnector;
+	/** 节点状态机 */
+	private NodeStatus nodeStatus = NodeStatus.getInstance();
+	/** UDP消息管理者 */
+	private ArrayList<Messenger> workerList = new ArrayList<Messenger>();
+	/** UDP分阶段流水线，启用时取代Messenger */
+	private UdpPipeline pipeline = null;
+	/** 清除状态机线程 */
+	private Thread clearnThread = null;
+	/** 状态机清除者 */
+	private ClientStatMachineCleaner cleaner = null;
+	/** 后台快照线程 */
+	private Thread snapshotThread = null;
+	/** 后台快照 */
+	private Snapshotter snapshotter = null;
+	/** 控制器线程 */
+	private Thread cmdThread = null;
+	/** IM控制器 */
+	private IMServerConsole console = null;
+	/** 消息推送线程 */
+	private Thread pushThread = null;
+	private NIOPushListener pushListener = null;
+
+	private long startTime;
+
+	private IMServer() {
+
+	}
+
+	public static IMServer getInstance() {
+		if (server == null) {
+			synchronized (IMServer.class) {
+				if (server == null) {
+					server = new IMServer();
+				}
+			}
+		}
+		return server;
+	}
+
+	public void init() throws Exception {
+		initPushListener();
+		initConsole();
+		initUdpConnector();
+		initTcpConnector();
+		initWorkers();
+		initCleaner();
+		initSnapshotter();
+
+	}
+
+	public void initConsole() throws Exception {
+		console = new IMServerConsole();
+		cmdThread = new Thread(console, "IMServer-console");
+		cmdThread.setDaemon(true);
+		cmdThread.start();
+	}
+
+	public void initUdpConnector() throws Exception {
+		System.out.println("start connector...");
+		udpConnector = new UdpConnector();
+		udpConnector.start();
+	}
+
+	public void initTcpConnector() throws Exception {
+		if (!"YES".equalsIgnoreCase(PropertyUtil.getProperty("TCP_CONNECTOR_ENABLE"))) {
+			return;
+		}
+		tcpConnector = new NIOTcpConnector();
+		tcpConnThread = new Thread(tcpConnector, "IMServer-NIOTcpConnector");
+		synchronized (tcpConnector) {
+			tcpConnThread.start();
+			tcpConnector.wait();
+		}
+	}
+
+	public void initWorkers() {
+		System.out.println("thread mode: " + ThreadUtil.getModeName());
+		if (UdpPipeline.isEnabled() == true) {
+			pipeline = new UdpPipeline(udpConnector, nodeStatus);
+			pipeline.start();
+			return;
+		}
+		System.out.println("start " + workerNum + " workers...");
+		for (int i = 0; i < workerNum; i++) {
+			Messenger worker = new Messenger(udpConnector, nodeStatus, i);
+			workerList.add(worker);
+			Thread t = ThreadUtil.newThread(worker, "IMServer-worker-" + i);
+			worker.setHostThread(t);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public void initCleaner() throws Exception {
+		cleaner = new ClientStatMachineCleaner();
+		clearnThread = new Thread(cleaner, "IMServer-cleaner");
+		clearnThread.start();
+	}
+
+	public void initSnapshotter() throws Exception {
+		snapshotter = new Snapshotter();
+		snapshotThread = new Thread(snapshotter, "IMServer-snapshotter");
+		snapshotThread.setDaemon(true);
+		snapshotThread.start();
+	}
+
+	public void initPushListener() throws Exception {
+		pushListener = new NIOPushListener();
+		pushThread = new Thread(pushListener, "IMServer-push-listener");
+		pushThread.start();
+	}
+
+	public void start() throws Exception {
+		System.out.println("working dir: " + System.getProperty("user.dir"));
+		init();
+
+		final Thread mainT = Thread.currentThread();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				stoped = true;
+				System.out.println("shut down server... ");
+				try {
+					mainT.join();
+					System.out.println("server is down, bye ");
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		this.startTime = System.currentTimeMillis();
+		System.out.println("server is up ");
+		while (stoped == false) {
+			try {
+				synchronized (this) {
+					this.wait(1000 * 60);
+					if (stoped == false) {
+						autoClean();
+					}
+				}
+			} catch (Exception e) {
+			}
+		}
+		this.quit();
+
+	}
+
+	private void autoClean() {
+		float percent = PropertyUtil.getPropertyFloat("CLEANER_AUTO_RUN_MEM_PERCENT");
+		if (percent >= 1 || percent <= 0) {
+			return;
+		}
+		Runtime rt = Runtime.getRuntime();
+		boolean full = (rt.totalMemory() - rt.freeMemory()) / (double) rt.maxMemory() > percent;
+		if (nodeStatus.hasColdTier() == true) {
+			// 冷存储启用时先移出空闲客户端，过期索引按小时分桶，每小时移出一次即可
+			if (cleaner.isRunning() == false && (full == true || System.currentTimeMillis() - cleaner.getLastSpillTime() >= 1000L * 3600)) {
+				System.out.println("run auto spill...");
+				cleaner.requestSpill();
+			}
+			return;
+		}
+		if (cleaner.isRunning() == false && full == true) {
+			System.out.println("run auto clean...");
+			cleaner.wakeup();
+		}
+	}
+
+	public void stop() {
+		this.stoped = true;
+		synchronized (this) {
+			this.notifyAll();
+		}
+
+	}
+
+	protected void quit() throws Exception {
+		try {
+			stopWorkers();
+			stopUdpConnector();
+			stopTcpConnector();
+			stopCleaner();
+			stopPushListener();
+			stopSnapshotter();
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+		saveStatus();
+		WriteAheadLog.close();
+	}
+
+	public void stopWorkers() throws Exception {
+		if (pipeline != null) {
+			pipeline.stop();
+		}
+		for (int i = 0; i < workerList.size(); i++) {
+			try {
+				workerList.get(i).stop();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void stopUdpConnector() throws Exception {
+		if (udpConnector == null) {
+			return;
+		}
+		udpConnector.stop();
+	}
+
+	public void stopTcpConnector() throws Exception {
+		if (tcpConnector == null || tcpConnThread == null) {
+			return;
+		}
+		tcpConnector.stop();
+		tcpConnThread.join();
+	}
+
+	public void stopCleaner() throws Exception {
+		cleaner.stop();
+		try {
+			clearnThread.interrupt();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void stopPushListener() throws Exception {
+		pushListener.stop();
+		pushThread.join();
+	}
+
+	public void stopSnapshotter() throws Exception {
+		snapshotter.stop();
+	}
+
+	/**
+	 * 请求后台快照
+	 */
+	public void snapshot() {
+		snapshotter.request();
+	}
+
+	public void saveStatus() throws Exception {
+		nodeStatus.saveToFile();
+	}
+
+	public String getStatusString() {
+		StringBuffer sb = new StringBuffer();
+
+		String end = "\r\n";
+
+		sb.append("server start up at: ").append(DateTimeUtil.formatDate(new Date(this.startTime))).append(end);
+		long runtime = System.currentTimeMillis() - this.startTime;
+		sb.append("up time: ").append(runtime / (1000 * 3600 * 24)).append(" day ").append(runtime / (1000 * 3600)).append(" hour ")
+				.append(runtime / (1000 * 60)).append(" minute").append(end);
+		sb.append("messagers: ").append(this.workerList.size()).append(end);
+		sb.append("thread mode: ").append(ThreadUtil.getModeName()).append(end);
+		sb.append("current stat machines: ").append(nodeStatus.size()).append(end);
+		sb.append("tcp connections: ").append(ConnectionRegistry.size()).append(end);
+		sb.append("node status store: ").append(nodeStatus.getStoreName()).append(", shards: ").append(nodeStatus.getShardNum()).append(", capacity: ")
+				.append(nodeStatus.getCapacity()).append(", off-heap bytes: ").append(nodeStatus.getOffHeapBytes()).append(end);
+		sb.append("udp recieve packages: ").append(this.udpConnector.getInqueueIn()).append(end);
+		sb.append("udp recieve packages pending: ").append(this.udpConnector.getInqueueIn() - this.udpConnector.getInqueueOut()).append(end);
+		sb.append("udp send packages: ").append(this.udpConnector.getOutqueueIn()).append(end);
+		sb.append("udp send packages pending: ").append(this.udpConnector.getOutqueueIn() - this.udpConnector.getOutqueueOut()).append(end);
+		sb.append("udp sender threads per shard: ").append(this.udpConnector.getSenderNum()).append(end);
+		if (this.udpConnector.getInqueueNum() > 1) {
+			String queueName = this.udpConnector.isUuidDispatch() ? "udp worker queue " : "udp shard recieve queue ";
+			for (int i = 0; i < this.udpConnector.getInqueueNum(); i++) {
+				sb.append(queueName).append(i).append(" recieve/pending: ").append(this.udpConnector.getInqueueIn(i)).append('/')
+						.append(this.udpConnector.getInqueueIn(i) - this.udpConnector.getInqueueOut(i)).append(end);
+			}
+		}
+		if (this.udpConnector.getShardNum() > 1) {
+			for (int i = 0; i < this.udpConnector.getShardNum(); i++) {
+				sb.append("udp shard send queue ").append(i).append(" send/pending: ").append(this.udpConnector.getOutqueueIn(i)).append('/')
+						.append(this.udpConnector.getOutqueueIn(i) - this.udpConnector.getOutqueueOut(i)).append(end);
+			}
+		}
+		sb.append("udp message pool free/size: ").append(this.udpConnector.getMessagePool().getFreeCount()).append('/')
+				.append(this.udpConnector.getMessagePool().getPoolSize()).append(end);
+		sb.append("udp message pool allocated: ").append(this.udpConnector.getMessagePool().getAllocatedCount()).append(end);
+		sb.append("udp queue overflow policy: ").append(this.udpConnector.getQueueOverflowPolicy()).append(end);
+		sb.append("udp recieve dropped full/heartbeat/oversized: ").append(this.udpConnector.getInqueueDroppedFull()).append('/')
+				.append(this.udpConnector.getInqueueDroppedHeartbeat()).append('/').append(this.udpConnector.getOversizedCount()).append(end);
+		sb.append("udp send dropped full/heartbeat: ").append(this.udpConnector.getOutqueueDroppedFull()).append('/')
+				.append(this.udpConnector.getOutqueueDroppedHeartbeat()).append(end);
+		sb.append("udp send backpressure/retried/retry dropped/retry pending: ").append(this.udpConnector.getSendBackpressure()).append('/')
+				.append(this.udpConnector.getSendRetried()).append('/').append(this.udpConnector.getSendRetryDropped()).append('/')
+				.append(this.udpConnector.getSendRetryPending()).append(end);
+		if (this.udpConnector.getPacer() != null) {
+			sb.append("udp send paced/by subnet/pending: ").append(this.udpConnector.getPacer().getPacedCount()).append('/')
+					.append(this.udpConnector.getPacer().getSubnetPacedCount()).append('/').append(this.udpConnector.getSendPacingPending()).append(end);
+		}
+		sb.append("udp recieve/send queue blocked: ").append(this.udpConnector.getInqueueBlocked()).append('/').append(this.udpConnector.getOutqueueBlocked())
+				.append(end);
+		sb.append("udp worker parks/wakeups/waiting: ").append(this.udpConnector.getWorkerSignal().getParks()).append('/')
+				.append(this.udpConnector.getWorkerSignal().getWakeups()).append('/').append(this.udpConnector.getWorkerSignal().getWaitingNum()).append(end);
+		if (PacketTracer.ENABLED) {
+			sb.append("udp packages traced/dropped: ").append(PacketTracer.getTracedCount()).append('/').append(PacketTracer.getDroppedCount()).append(end);
+		}
+		sb.append("jvm  max  mem: ").append(Runtime.getRuntime().maxMemory()).append(end);
+		sb.append("jvm total mem: ").append(Runtime.getRuntime().totalMemory()).append(end);
+		sb.append("jvm  free mem: ").append(Runtime.getRuntime().freeMemory()).append(end);
+		if (PresenceIndex.ENABLED == true) {
+			sb.append("online clients: ").append(PresenceIndex.getOnlineCount()).append(", by app id: ").append(PresenceIndex.getOnlineByAppString()).append(end);
+		}
+		sb.append("expiry index buckets/entries: ").append(nodeStatus.getExpiryBucketNum()).append("/").append(nodeStatus.getExpiryEntries()).append(end);
+		sb.append("last clean time: ").append(DateTimeUtil.formatDate(new Date(this.cleaner.getLastCleanTime()))).append(end);
+		sb.append(this.cleaner.getStatusString(end)).append(end);
+		sb.append("last snapshot time: ").append(DateTimeUtil.formatDate(new Date(this.snapshotter.getLastSnapshotTime()))).append(end);
+		sb.append(this.snapshotter.getStatusString(end)).append(end);
+		if (WriteAheadLog.ENABLED == true) {
+			sb.append(WriteAheadLog.getStatusString(end)).append(end);
+		}
+		if (nodeStatus.hasColdTier() == true) {
+			sb.append(nodeStatus.getColdStatusString(end)).append(end);
+		}
+		if (pipeline != null) {
+			sb.append(pipeline.getStatusString(end)).append(end);
+		}
+		sb.append("messengers threads:----------------------").append(end);
+		for (int i = 0; i < workerList.size(); i++) {
+			Thread t = workerList.get(i).getHostThread();
+			sb.append(t.getName() + " stat: " + t.getState().toString()).append(end);
+		}
+		return sb.toString();
+	}
+
+	public String getUuidStatString(String uuid) {
+		ClientStatMachine csm = this.nodeStatus.getClientStat(uuid);
+		if (csm == null) {
+			return null;
+		}
+		StringBuffer sb = new StringBuffer();
+		String end = "\r\n";
+
+		sb.append("stat of   uuid: " + uuid).append(end);
+		sb.append("last tick time: " + DateTimeUtil.formatDate(new Date(csm.getLastTick()))).append(end);
+		sb.append("last ip addres: " + csm.getLastAddr()).append(end);
+		MessengerTask task = ConnectionRegistry.get(UuidMap.parseHexLong(uuid, 0), UuidMap.parseHexLong(uuid, 16));
+		sb.append("last tcp  time: " + DateTimeUtil.formatDate(new Date(task == null ? 0 : task.getLastActive()))).append(
+				end);
+		sb.append("0x10   message: " + csm.has0x10Message()).append(end);
+		sb.append("last 0x10 time: " + DateTimeUtil.formatDate(new Date(csm.getLast0x10Time()))).append(end);
+		sb.append("0x11   message: " + csm.get0x11Message()).append(end);
+		sb.append("last 0x11 time: " + DateTimeUtil.formatDate(new Date(csm.getLast0x11Time()))).append(end);
+		sb.append("0x20   message: " + csm.has0x20Message()).append(end);
+		sb.append("last 0x20 time: " + DateTimeUtil.formatDate(new Date(csm.getLast0x20Time()))).append(end);
+		sb.append("0x20 arry  len: " + csm.getMessage0x20Len()).append(end);
+
+		return sb.toString();
+	}
+
+	public void cleanExpiredMachines(int hours) {
+		cleaner.setExpiredHours(hours);
+		cleaner.wakeup();
+	}
+
+	/**
+	 * 把空闲客户端移入冷存储
+	 * 
+	 * @return 未启用冷存储返回false
+	 */
+	public boolean spillIdleMachines() {
+		if (nodeStatus.hasColdTier() == false) {
+			return false;
+		}
+		cleaner.requestSpill();
+		return true;
+	}
+
+	public void pushInstanceMessage(ServerMessage sm) throws Exception {
+		if (sm == null || sm.getData() == null || sm.getSocketAddress() == null) {
+			return;
+		}
+		if (udpConnector != null) {
+			udpConnector.send(sm);
+		}
+	}
+
+	public static void main(String[] args) {
+		IMServer server = IMServer.getInstance();
+		try {
+			server.start();
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -1,250 +1,559 @@
-/*
- *Copyright 2014 DDPush
- *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
- *Email: ddpush@126.com
- *
-
-Licensed under the Apache License, Version 2.0 (the "License");
-you may not use this file except in compliance with the License.
-You may obtain a copy of the License at
-
-    http://www.apache.org/licenses/LICENSE-2.0
-
-Unless required by applicable law or agreed to in writing, software
-distributed under the License is distributed on an "AS IS" BASIS,
-WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-See the License for the specific language governing permissions and
-limitations under the License.
-
- */
-package org.ddpush.im.v1.node;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.ddpush.im.util.StringUtil;
-
-/**
- * 节点状态
- */
-public class NodeStatus {
-
-	/** 节点状态 */
-	private static NodeStatus global;
-	/** 客户端状态机线程安全并发map */
-	private static ConcurrentHashMap<String, ClientStatMachine> nodeStat;
-	/** 从文件读取最小缓冲 */
-	private static final int file_min_bytes_per_object = 77;
-
-	/**
-	 * 初始化
-	 */
-	private NodeStatus() {
-		nodeStat = new ConcurrentHashMap<String, ClientStatMachine>(10000000, 0.75f, 16);
-	}
-
-	/**
-	 * 从文件中读取保存的状态机
-	 * 
-	 * @return
-	 */
-	public static NodeStatus getInstance() {
-		if (global == null) {
-			synchronized (NodeStatus.class) {
-				if (global == null) {// need to check again!!
-					global = new NodeStatus();
-					System.out.println("try load node stat file...");
-					global.tryLoadFile();
-				}
-			}
-		}
-		return global;
-	}
-
-	private void tryLoadFile() {
-		FileChannel fc = null;
-		// byte[] entry = new byte[file_bytes_per_object];
-		byte[] entry = new byte[1024];
-		ByteBuffer bb = ByteBuffer.wrap(entry);
-		int loaded = 0;
-		File f = null;
-		try {
-			f = new File(System.getProperty("user.dir") + "/nodeStatus.dat");
-			if (f.exists() == false) {
-				return;
-			}
-			fc = new FileInputStream(f).getChannel();
-
-			while (true) {
-				bb.clear();
-				bb.limit(file_min_bytes_per_object);
-				while (bb.remaining() > 0) {
-					if (fc.read(bb) < 0) {
-						break;
-					}
-				}
-				if (bb.remaining() > 0) {
-					break;
-				}
-				bb.flip();
-				String key = new String(entry, 0, 32);
-				for (int i = 0; i < 32; i++) {
-					bb.get();
-				}
-				long lastTick = bb.getLong();
-				boolean hasMessage0x10 = (int) bb.get() == 1 ? true : false;
-				long last0x10Time = bb.getLong();
-				long message0x11 = bb.getLong();
-				long last0x11Time = bb.getLong();
-
-				int message0x20Len = bb.getInt();
-				long last0x20Time = bb.getLong();
-				byte[] data0x20 = null;
-				if (bb.remaining() > 0) {
-					break;
-				}
-				if (message0x20Len > 0) {
-					bb.clear();
-					data0x20 = new byte[message0x20Len];
-					bb.limit(message0x20Len);
-					while (bb.remaining() > 0) {
-						if (fc.read(bb) < 0) {
-							break;
-						}
-					}
-					bb.flip();
-					bb.get(data0x20);
-				}
-
-				ClientStatMachine csm = ClientStatMachine.newFromFile(lastTick, hasMessage0x10, last0x10Time, message0x11, last0x11Time, message0x20Len,
-						last0x20Time, data0x20);
-				nodeStat.put(key, csm);
-				loaded++;
-			}
-			System.out.println(loaded + " stat machine loaded ");
-		} catch (Exception e) {
-			;
-		} finally {
-			if (fc != null) {
-				try {
-					fc.close();
-					// f.delete();
-				} catch (Exception e) {
-					;
-				}
-			}
-		}
-	}
-
-	public ClientStatMachine getClientStat(String key) {
-		return nodeStat.get(key);
-	}
-
-	public void putClientStat(String key, ClientStatMachine value) {
-		nodeStat.put(key, value);
-	}
-
-	public ClientStatMachine getClientStat(byte[] key) {
-		return this.getClientStat(key, 0, key.length);
-	}
-
-	public ClientStatMachine getClientStat(byte[] key, int pos, int len) {
-		return nodeStat.get(StringUtil.convert(key, pos, len));
-	}
-
-	/**
-	 * 保存操作
-	 * @throws Exception
-	 */
-	public void saveToFile() throws Exception {
-
-		Set<Entry<String, ClientStatMachine>> set = nodeStat.entrySet();
-		FileChannel fc = null;
-		Iterator<Entry<String, ClientStatMachine>> iterator = set.iterator();
-		int savedCount = 0;
-		try {
-			File f = new File(System.getProperty("user.dir") + "/nodeStatus.dat");
-			if (f.exists() == false) {
-				f.createNewFile();
-			}
-			fc = new FileOutputStream(f, false).getChannel();
-			ByteBuffer bb = ByteBuffer.allocate(1024);
-			while (iterator.hasNext()) {
-				Entry<String, ClientStatMachine> e = iterator.next();
-				String key = e.getKey();
-				ClientStatMachine csm = e.getValue();
-				bb.clear();
-				bb.put(key.getBytes());
-				bb.putLong(csm.getLastTick());
-
-				bb.put((byte) (csm.has0x10Message() ? 1 : 0));
-				bb.putLong(csm.getLast0x10Time());
-
-				bb.putLong(csm.get0x11Message());
-				bb.putLong(csm.getLast0x11Time());
-
-				if (csm.getMessage0x20Len() > 0 && csm.getMessage0x20() != null && csm.getMessage0x20Len() == csm.getMessage0x20().length) {
-					bb.putInt(csm.getMessage0x20Len());
-					bb.putLong(csm.getLast0x20Time());
-					bb.put(csm.getMessage0x20());
-				} else {
-					bb.putInt(0);
-					bb.putLong(-1);
-				}
-
-				bb.flip();
-				fc.write(bb);
-				savedCount++;
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			if (fc != null) {
-				System.out.println("saved " + savedCount + " stat machines");
-				try {
-					fc.close();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		}
-	}
-
-	/**
-	 * 按小时清除状态机
-	 * 
-	 * @param expiredHours
-	 * @return
-	 * @throws Exception
-	 */
-	public int cleanStatus(int expiredHours) throws Exception {
-		Set<Entry<String, ClientStatMachine>> set = nodeStat.entrySet();
-		Iterator<Entry<String, ClientStatMachine>> iterator = set.iterator();
-		int removed = 0;
-		while (iterator.hasNext()) {
-			Entry<String, ClientStatMachine> e = iterator.next();
-			String key = e.getKey();
-			ClientStatMachine csm = e.getValue();
-
-			if (System.currentTimeMillis() - csm.getLastTick() > 1000 * 3600 * expiredHours) {
-				nodeStat.remove(key);
-				removed++;
-			}
-		}
-		return removed;
-	}
-
-	/**
-	 * 取得状态机个数
-	 */
-	public int size() {
-		return nodeStat.size();
-	}
-}
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 节点状态
+ */
+public class NodeStatus {
+
+	/** 节点状态 */
+	private static NodeStatus global;
+	/** 客户端状态存储，以uuid的两个long为键 */
+	private static ClientStateStore nodeStat;
+	/** 按最后心跳小时分桶的过期索引 */
+	private static ExpiryIndex expiry;
+	/** 已移入冷存储的客户端的过期索引，只由清除处理，移出时不再检查，未启用冷存储为null */
+	private static ExpiryIndex coldExpiry;
+	/** 冷存储，未启用为null */
+	private static ColdStore cold;
+	/** 移入冷存储的空闲小时数 */
+	private static int coldIdleHours;
+	/** 从文件读取最小缓冲 */
+	static final int file_min_bytes_per_object = 77;
+
+	/**
+	 * 初始化，分片数和初始容量由配置决定，各分片独立按需扩容
+	 */
+	private NodeStatus() {
+		int shards = PropertyUtil.getPropertyInt("NODE_STATUS_SHARDS");
+		int initialCapacity = PropertyUtil.getPropertyInt("NODE_STATUS_INITIAL_CAPACITY");
+		if (initialCapacity <= 0) {
+			initialCapacity = estimateFileEntries();
+		}
+		if ("offheap".equalsIgnoreCase(PropertyUtil.getProperty("NODE_STATUS_STORE"))) {
+			nodeStat = new OffHeapStateStore(shards, initialCapacity, PropertyUtil.getPropertyInt("NODE_STATUS_OFFHEAP_SLAB_KB") * 1024,
+					PropertyUtil.getPropertyInt("PUSH_MSG_MAX_CONTENT_LEN"));
+		} else {
+			nodeStat = new HeapStateStore(shards, initialCapacity);
+		}
+		expiry = new ExpiryIndex();
+		if ("YES".equalsIgnoreCase(PropertyUtil.getProperty("NODE_STATUS_COLD_TIER"))) {
+			String dir = PropertyUtil.getProperty("NODE_STATUS_COLD_DIR");
+			File f = new File(dir);
+			if (f.isAbsolute() == false) {
+				f = new File(System.getProperty("user.dir"), dir);
+			}
+			cold = new ColdStore(f, PropertyUtil.getPropertyInt("NODE_STATUS_COLD_SEGMENT_MB") * 1024 * 1024,
+					PropertyUtil.getPropertyInt("PUSH_MSG_MAX_CONTENT_LEN"));
+			coldIdleHours = PropertyUtil.getPropertyInt("NODE_STATUS_COLD_IDLE_HOURS");
+			coldExpiry = new ExpiryIndex();
+			nodeStat = new TieredStateStore(nodeStat, cold, expiry);
+		}
+		System.out.println("node status: " + nodeStat.getName() + " store, " + nodeStat.getShardNum() + " shards, initial capacity " + initialCapacity);
+	}
+
+	/**
+	 * 估计状态文件的条目数，当前格式取文件头中的条目数，旧格式按每条至少file_min_bytes_per_object字节估计上限
+	 * 
+	 * @return 无文件返回0
+	 */
+	private static int estimateFileEntries() {
+		File f = getStatusFile();
+		if (f.exists() == false) {
+			return 0;
+		}
+		long entries = SnapshotLoader.readEntryCount(f);
+		if (entries < 0) {
+			entries = f.length() / file_min_bytes_per_object;
+		}
+		return (int) Math.min(entries, Integer.MAX_VALUE / 2);
+	}
+
+	/**
+	 * 从文件中读取保存的状态机
+	 * 
+	 * @return
+	 */
+	public static NodeStatus getInstance() {
+		if (global == null) {
+			synchronized (NodeStatus.class) {
+				if (global == null) {// need to check again!!
+					global = new NodeStatus();
+					System.out.println("try load node stat file...");
+					global.tryLoadFile();
+					WriteAheadLog.replayAndOpen(global);
+				}
+			}
+		}
+		return global;
+	}
+
+	/**
+	 * 以内存映射并行加载状态文件，兼容旧格式，解码线程数由NODE_STATUS_LOAD_THREADS决定
+	 * 之后按序号依次加载增量快照，早于全量文件的是写完新全量后未及删除的，跳过
+	 */
+	private void tryLoadFile() {
+		File f = getStatusFile();
+		if (f.exists() == false) {
+			return;
+		}
+		try {
+			new SnapshotLoader(this, PropertyUtil.getPropertyInt("NODE_STATUS_LOAD_THREADS")).load(f, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		long baseTime = SnapshotLoader.readCreateTime(f);
+		int[] deltas = listDeltaFiles();
+		for (int i = 0; i < deltas.length; i++) {
+			File delta = getDeltaFile(deltas[i]);
+			if (SnapshotLoader.readCreateTime(delta) < baseTime) {
+				System.out.println("skip " + delta.getName() + ", header damaged or older than " + f.getName());
+				continue;
+			}
+			try {
+				// 同一条目可能在一个增量中出现多次，后写的较新，按文件顺序加载
+				new SnapshotLoader(this, 1).load(delta, true);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 重放预写日志中的一条记录，推送的客户端不存在时创建，确认的不存在时忽略
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param type
+	 * @param time
+	 * @param value
+	 * @param data
+	 */
+	void replay(long msb, long lsb, int type, long time, long value, byte[] data) {
+		ClientStatMachine csm = nodeStat.acquire(msb, lsb);
+		try {
+			if (csm == null) {
+				if (type != WriteAheadLog.PUSH_0X10 && type != WriteAheadLog.PUSH_0X11 && type != WriteAheadLog.PUSH_0X20) {
+					return;
+				}
+				csm = this.createClientStat(msb, lsb, ClientStatMachine.newFromFile(time, false, -1, 0, -1, 0, -1, null));
+			}
+			csm.replay(type, time, value, data);
+		} finally {
+			nodeStat.release(msb, lsb, csm);
+		}
+	}
+
+	/**
+	 * 按32位十六进制uuid取得状态机，兼容旧的字符串键
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public ClientStatMachine getClientStat(String key) {
+		if (key == null || key.length() != 32) {
+			return null;
+		}
+		return nodeStat.get(UuidMap.parseHexLong(key, 0), UuidMap.parseHexLong(key, 16));
+	}
+
+	public void putClientStat(String key, ClientStatMachine value) {
+		this.putClientStat(UuidMap.parseHexLong(key, 0), UuidMap.parseHexLong(key, 16), value);
+	}
+
+	public ClientStatMachine getClientStat(long msb, long lsb) {
+		return nodeStat.get(msb, lsb);
+	}
+
+	/**
+	 * 放入状态机，已存在时覆盖(如增量快照)，只为新放入的建立过期索引；已有的索引项由过期扫描按实际心跳时间重新登记
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param value
+	 */
+	public void putClientStat(long msb, long lsb, ClientStatMachine value) {
+		if (nodeStat.put(msb, lsb, value) == true) {
+			expiry.add(msb, lsb, value.getLastTick());
+		}
+	}
+
+	/**
+	 * 不存在时放入，并发创建时以先放入的为准
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param value
+	 * @return 最终在map中的状态机
+	 */
+	public ClientStatMachine putClientStatIfAbsent(long msb, long lsb, ClientStatMachine value) {
+		ClientStatMachine csm = nodeStat.acquire(msb, lsb);
+		try {
+			if (csm == null) {
+				csm = this.createClientStat(msb, lsb, value);
+			}
+		} finally {
+			nodeStat.release(msb, lsb, csm);
+		}
+		return csm;
+	}
+
+	/**
+	 * 取得状态机准备处理，之后必须调用release，不存在时可用createClientStat放入
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @return 不存在返回null
+	 */
+	public ClientStatMachine acquire(long msb, long lsb) {
+		return nodeStat.acquire(msb, lsb);
+	}
+
+	/**
+	 * 在acquire与release之间放入新建的状态机
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param csm
+	 * @return 之后应使用的状态机
+	 */
+	public ClientStatMachine createClientStat(long msb, long lsb, ClientStatMachine csm) {
+		ClientStatMachine winner = nodeStat.create(msb, lsb, csm);
+		if (winner == csm) {
+			expiry.add(msb, lsb, csm.getLastTick());
+		}
+		return winner;
+	}
+
+	/**
+	 * 处理结束，堆外存储在此写回
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param csm
+	 */
+	public void release(long msb, long lsb, ClientStatMachine csm) {
+		nodeStat.release(msb, lsb, csm);
+	}
+
+	public ClientStatMachine removeClientStat(long msb, long lsb) {
+		return nodeStat.remove(msb, lsb);
+	}
+
+	public ClientStatMachine getClientStat(byte[] key) {
+		return this.getClientStat(key, 0, key.length);
+	}
+
+	/**
+	 * 按字节数组中的16字节uuid取得状态机
+	 * 
+	 * @param key
+	 * @param pos
+	 * @param len
+	 * @return
+	 */
+	public ClientStatMachine getClientStat(byte[] key, int pos, int len) {
+		if (len != 16) {
+			return null;
+		}
+		return nodeStat.get(UuidMap.readLong(key, pos), UuidMap.readLong(key, pos + 8));
+	}
+
+	/**
+	 * 保存操作，与后台快照相同地写临时文件后原子改名，不限速
+	 * @throws Exception
+	 */
+	public void saveToFile() throws Exception {
+		try {
+			int saved = new Snapshotter().snapshot(false);
+			System.out.println("saved " + saved + " stat machines");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 取得状态文件
+	 * 
+	 * @return
+	 */
+	static File getStatusFile() {
+		return new File(System.getProperty("user.dir") + "/nodeStatus.dat");
+	}
+
+	/**
+	 * 取得增量快照文件
+	 * 
+	 * @param seq
+	 *            从1开始的序号
+	 * @return
+	 */
+	static File getDeltaFile(int seq) {
+		return new File(System.getProperty("user.dir") + "/nodeStatus.dat.delta." + seq);
+	}
+
+	/**
+	 * 列出已有的增量快照文件的序号
+	 * 
+	 * @return 从小到大
+	 */
+	static int[] listDeltaFiles() {
+		String prefix = getStatusFile().getName() + ".delta.";
+		String[] names = getStatusFile().getAbsoluteFile().getParentFile().list();
+		int[] seqs = new int[names == null ? 0 : names.length];
+		int n = 0;
+		for (int i = 0; i < seqs.length; i++) {
+			if (names[i].startsWith(prefix)) {
+				try {
+					seqs[n] = Integer.parseInt(names[i].substring(prefix.length()));
+					n++;
+				} catch (NumberFormatException e) {
+					// 不是增量快照文件名，跳过
+					continue;
+				}
+			}
+		}
+		int[] result = new int[n];
+		System.arraycopy(seqs, 0, result, 0, n);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * 按旧格式编码一条，当前格式的块内容也由这样的条目组成，定长部分file_min_bytes_per_object字节，之后为0x20消息内容
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param csm
+	 * @param bb
+	 *            剩余空间至少file_min_bytes_per_object加0x20消息长度
+	 * @param key
+	 *            32字节的临时数组
+	 */
+	static void encodeEntry(long msb, long lsb, ClientStatMachine csm, ByteBuffer bb, byte[] key) {
+		UuidMap.writeHexLong(msb, key, 0);
+		UuidMap.writeHexLong(lsb, key, 16);
+		bb.put(key);
+		bb.putLong(csm.getLastTick());
+
+		bb.put((byte) (csm.has0x10Message() ? 1 : 0));
+		bb.putLong(csm.getLast0x10Time());
+
+		bb.putLong(csm.get0x11Message());
+		bb.putLong(csm.getLast0x11Time());
+
+		// 只取一次引用，并发清除时仍写出一致的长度和内容
+		byte[] message0x20 = csm.getMessage0x20();
+		if (message0x20 != null && message0x20.length > 0) {
+			bb.putInt(message0x20.length);
+			bb.putLong(csm.getLast0x20Time());
+			bb.put(message0x20);
+		} else {
+			bb.putInt(0);
+			bb.putLong(-1);
+		}
+	}
+
+	/**
+	 * 分块遍历一个分片，供后台快照使用，访问时清除变化标记
+	 * 
+	 * @param shard
+	 * @param cursor
+	 * @param maxSlots
+	 * @param dirtyOnly
+	 *            只访问有变化的，用于增量快照
+	 * @param visitor
+	 * @return 下次的游标，分片遍历完返回-1
+	 */
+	public long forEachChunk(int shard, long cursor, int maxSlots, boolean dirtyOnly, UuidMap.Visitor<ClientStatMachine> visitor) {
+		return nodeStat.forEachChunk(shard, cursor, maxSlots, dirtyOnly, visitor);
+	}
+
+	/**
+	 * 按小时清除状态机，只处理过期索引中已过期的桶，不遍历全部状态机
+	 * 
+	 * @param expiredHours
+	 * @return
+	 * @throws Exception
+	 */
+	public int cleanStatus(int expiredHours) throws Exception {
+		ExpiryIndex.Sweep sweep = beginClean(expiredHours);
+		while (sweep.isDone() == false) {
+			sweep.step(Integer.MAX_VALUE, 0);
+		}
+		return sweep.getRemoved();
+	}
+
+	/**
+	 * 开始分片清除，由调用者按预算执行，启用冷存储时之后接着清除冷存储的过期索引
+	 * 
+	 * @param expiredHours
+	 * @return
+	 */
+	public ExpiryIndex.Sweep beginClean(int expiredHours) {
+		long expireBefore = System.currentTimeMillis() - 1000L * 3600 * expiredHours;
+		if (cold == null) {
+			return expiry.beginSweep(expireBefore, nodeStat);
+		}
+		final ColdStore target = cold;
+		ExpiryIndex.Sweep coldSweep = coldExpiry.beginSweep(expireBefore, new ExpiryIndex.Action() {
+			public long apply(long msb, long lsb, long before) {
+				// 已取回热存储的返回-1，由热存储的索引负责
+				long lastTick = target.expire(msb, lsb, before);
+				// 在冷存储中心跳不变，条目应在心跳所在小时的桶中，更晚的是取回后再次移出留下的旧条目
+				if (lastTick > 0 && ExpiryIndex.hourOf(lastTick) > ExpiryIndex.hourOf(before)) {
+					return -1;
+				}
+				return lastTick;
+			}
+		});
+		return expiry.beginSweep(expireBefore, nodeStat, coldSweep);
+	}
+
+	/**
+	 * 是否启用冷存储
+	 */
+	public boolean hasColdTier() {
+		return cold != null;
+	}
+
+	/**
+	 * 开始分片移出空闲超过配置小时数的客户端，移出的和已在冷存储的转入冷存储的过期索引，之后的移出不再检查
+	 * 
+	 * @return 未启用冷存储返回null
+	 */
+	public ExpiryIndex.Sweep beginSpill() {
+		if (cold == null) {
+			return null;
+		}
+		long idleBefore = System.currentTimeMillis() - 1000L * 3600 * coldIdleHours;
+		final ColdStore target = cold;
+		return expiry.beginSweep(idleBefore, new ExpiryIndex.Action() {
+			public long apply(long msb, long lsb, long before) {
+				long lastTick = nodeStat.spill(msb, lsb, before, target);
+				if (lastTick > 0 && target.getLastTick(msb, lsb) >= 0) {
+					coldExpiry.add(msb, lsb, lastTick);
+					return -1;
+				}
+				return lastTick;
+			}
+		});
+	}
+
+	/**
+	 * 整理冷存储的段文件
+	 * 
+	 * @return 整理的段数
+	 */
+	public int compactColdTier() {
+		return cold == null ? 0 : cold.compact();
+	}
+
+	/**
+	 * 取得累计移入冷存储的个数
+	 */
+	public long getSpilledCount() {
+		return cold == null ? 0 : cold.getSpilledCount();
+	}
+
+	/**
+	 * 取得冷存储状态
+	 * 
+	 * @param end
+	 * @return 未启用返回null
+	 */
+	public String getColdStatusString(String end) {
+		if (cold == null) {
+			return null;
+		}
+		StringBuffer sb = new StringBuffer();
+		sb.append("cold tier idle hours: ").append(coldIdleHours).append(", hot/cold clients: ").append(((TieredStateStore) nodeStat).getHotSize())
+				.append("/").append(cold.size()).append(end);
+		sb.append("cold tier spilled/faulted: ").append(cold.getSpilledCount()).append("/").append(cold.getFaultedCount()).append(end);
+		sb.append("cold tier segments: ").append(cold.getSegmentNum()).append(", disk/live bytes: ").append(cold.getDiskBytes()).append("/")
+				.append(cold.getLiveBytes()).append(", compacted bytes: ").append(cold.getCompactedBytes()).append(", index bytes: ")
+				.append(cold.getIndexBytes());
+		return sb.toString();
+	}
+
+	/**
+	 * 取得过期清除累计释放的字节数
+	 */
+	public long getReclaimedBytes() {
+		return nodeStat.getReclaimedBytes();
+	}
+
+	/**
+	 * 取得过期索引的桶数，含冷存储的
+	 */
+	public int getExpiryBucketNum() {
+		return coldExpiry == null ? expiry.getBucketNum() : expiry.getBucketNum() + coldExpiry.getBucketNum();
+	}
+
+	/**
+	 * 取得过期索引的条目数，含冷存储的
+	 */
+	public long getExpiryEntries() {
+		return coldExpiry == null ? expiry.getEntries() : expiry.getEntries() + coldExpiry.getEntries();
+	}
+
+	/**
+	 * 取得状态机个数
+	 */
+	public int size() {
+		return nodeStat.size();
+	}
+
+	/**
+	 * 取得分片数
+	 */
+	public int getShardNum() {
+		return nodeStat.getShardNum();
+	}
+
+	/**
+	 * 取得各分片槽位总数
+	 */
+	public long getCapacity() {
+		return nodeStat.getCapacity();
+	}
+
+	/**
+	 * 取得存储名称
+	 */
+	public String getStoreName() {
+		return nodeStat.getName();
+	}
+
+	/**
+	 * 取得存储占用的直接内存字节数
+	 */
+	public long getOffHeapBytes() {
+		return nodeStat.getOffHeapBytes();
+	}
+}
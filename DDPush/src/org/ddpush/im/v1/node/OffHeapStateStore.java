@@ -0,0 +1,573 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.ddpush.im.util.SlabAllocator;
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 堆外状态存储，每个客户端一条定长记录，放在直接内存的开放寻址表中，0x20自定义消息放在slab分配器中
+ * 状态机只在处理期间临时生成，release时写回
+ * 按段加锁，acquire到release期间持有所在段的锁，同段的其他客户端都要等待，期间只修改状态，下发和写预写日志在release之后
+ */
+public class OffHeapStateStore implements ClientStateStore {
+
+	/** 记录长度 */
+	private static final int RECORD = 96;
+	/** 记录内各字段偏移 */
+	private static final int MSB = 0;
+	private static final int LSB = 8;
+	private static final int TICK = 16;
+	private static final int T10 = 24;
+	private static final int M11 = 32;
+	private static final int T11 = 40;
+	private static final int T20 = 48;
+	private static final int P20 = 56;
+	private static final int L20 = 64;
+	private static final int SHARD = 68;
+	private static final int FLAGS = 72;
+	private static final int FAMILY = 73;
+	private static final int PORT = 74;
+	private static final int IP = 76;
+
+	/** 槽已使用 */
+	private static final int FLAG_USED = 1;
+	/** 有通用信息未接收 */
+	private static final int FLAG_0X10 = 2;
+	/** 有未写入快照的变化 */
+	private static final int FLAG_DIRTY = 4;
+
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MIN_CAPACITY = 16;
+	/** 单段最大记录数，保证表不超过2G */
+	private static final int MAX_CAPACITY = 1 << 24;
+
+	/**
+	 * 段，线性探测，删除时后移回填
+	 */
+	private static final class Segment {
+		final ReentrantLock lock = new ReentrantLock();
+		final SlabAllocator payloads;
+		/** 遍历用的临时状态机 */
+		final ClientStatMachine cursor = ClientStatMachine.newEmpty();
+		ByteBuffer table;
+		int mask;
+		volatile int size;
+		int threshold;
+
+		Segment(int capacity, int maxPayload, int slabBytes) {
+			payloads = new SlabAllocator(maxPayload, slabBytes);
+			table = newTable(capacity);
+			mask = capacity - 1;
+			threshold = (int) (capacity * LOAD_FACTOR);
+		}
+	}
+
+	/** 段 */
+	private final Segment[] segments;
+	/** 段下标移位 */
+	private final int segmentShift;
+	/** 过期删除累计释放的字节数，记录槽可复用也计入 */
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+
+	/**
+	 * 初始化
+	 * 
+	 * @param segmentNum
+	 *            段数，向上取整为2的幂
+	 * @param initialCapacity
+	 *            预计条目数
+	 * @param slabBytes
+	 *            0x20消息slab的字节数
+	 * @param maxPayload
+	 *            0x20消息最大长度
+	 */
+	public OffHeapStateStore(int segmentNum, int initialCapacity, int slabBytes, int maxPayload) {
+		int ssize = 1;
+		int sbits = 0;
+		while (ssize < segmentNum) {
+			ssize <<= 1;
+			sbits++;
+		}
+		segmentShift = 32 - sbits;
+		int perSegment = MIN_CAPACITY;
+		while (perSegment < initialCapacity / ssize / LOAD_FACTOR && perSegment < MAX_CAPACITY) {
+			perSegment <<= 1;
+		}
+		segments = new Segment[ssize];
+		for (int i = 0; i < ssize; i++) {
+			segments[i] = new Segment(perSegment, maxPayload, slabBytes);
+		}
+	}
+
+	private static ByteBuffer newTable(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * RECORD).order(ByteOrder.nativeOrder());
+	}
+
+	private Segment segmentFor(int h) {
+		return segments.length == 1 ? segments[0] : segments[h >>> segmentShift];
+	}
+
+	private static boolean used(ByteBuffer t, int i) {
+		return (t.get(i * RECORD + FLAGS) & FLAG_USED) != 0;
+	}
+
+	/**
+	 * 查找键所在的槽
+	 * 
+	 * @return 未找到返回-1
+	 */
+	private static int find(Segment s, int h, long msb, long lsb) {
+		ByteBuffer t = s.table;
+		int mask = s.mask;
+		int i = h & mask;
+		for (int n = 0; n <= mask; n++) {
+			int base = i * RECORD;
+			if ((t.get(base + FLAGS) & FLAG_USED) == 0) {
+				return -1;
+			}
+			if (t.getLong(base + MSB) == msb && t.getLong(base + LSB) == lsb) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	public ClientStatMachine acquire(long msb, long lsb) {
+		int h = UuidMap.hash(msb, lsb);
+		Segment s = segmentFor(h);
+		s.lock.lock();
+		boolean acquired = false;
+		try {
+			int i = find(s, h, msb, lsb);
+			ClientStatMachine csm = null;
+			if (i >= 0) {
+				csm = ClientStatMachine.newEmpty();
+				read(s, i, csm);
+			}
+			acquired = true;
+			return csm;
+		} finally {
+			// 包括Error在内的任何异常都要解锁，否则段锁永远不会释放
+			if (acquired == false) {
+				s.lock.unlock();
+			}
+		}
+	}
+
+	public ClientStatMachine create(long msb, long lsb, ClientStatMachine csm) {
+		// 已持有段锁，release时写入
+		return csm;
+	}
+
+	public void release(long msb, long lsb, ClientStatMachine csm) {
+		int h = UuidMap.hash(msb, lsb);
+		Segment s = segmentFor(h);
+		try {
+			if (csm != null) {
+				write(s, h, msb, lsb, csm);
+			}
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public ClientStatMachine get(long msb, long lsb) {
+		int h = UuidMap.hash(msb, lsb);
+		Segment s = segmentFor(h);
+		s.lock.lock();
+		try {
+			int i = find(s, h, msb, lsb);
+			if (i < 0) {
+				return null;
+			}
+			ClientStatMachine csm = ClientStatMachine.newEmpty();
+			read(s, i, csm);
+			return csm;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public boolean put(long msb, long lsb, ClientStatMachine csm) {
+		int h = UuidMap.hash(msb, lsb);
+		Segment s = segmentFor(h);
+		s.lock.lock();
+		try {
+			return write(s, h, msb, lsb, csm);
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public ClientStatMachine remove(long msb, long lsb) {
+		int h = UuidMap.hash(msb, lsb);
+		Segment s = segmentFor(h);
+		s.lock.lock();
+		try {
+			int i = find(s, h, msb, lsb);
+			if (i < 0) {
+				return null;
+			}
+			ClientStatMachine csm = ClientStatMachine.newEmpty();
+			read(s, i, csm);
+			removeAt(s, i);
+			return csm;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public void forEach(UuidMap.Visitor<ClientStatMachine> visitor) {
+		for (int k = 0; k < segments.length; k++) {
+			Segment s = segments[k];
+			s.lock.lock();
+			try {
+				ByteBuffer t = s.table;
+				for (int i = 0; i <= s.mask; i++) {
+					if (used(t, i) == false) {
+						continue;
+					}
+					read(s, i, s.cursor);
+					if (visitor.visit(t.getLong(i * RECORD + MSB), t.getLong(i * RECORD + LSB), s.cursor) == false) {
+						return;
+					}
+				}
+			} finally {
+				s.cursor.restore(-1, null, -1, false, -1, 0, -1, -1, null);
+				s.lock.unlock();
+			}
+		}
+	}
+
+	public int removeIf(UuidMap.Filter<ClientStatMachine> filter) {
+		int removed = 0;
+		for (int k = 0; k < segments.length; k++) {
+			Segment s = segments[k];
+			s.lock.lock();
+			try {
+				ByteBuffer t = s.table;
+				int i = 0;
+				while (i <= s.mask) {
+					if (used(t, i) == false) {
+						i++;
+						continue;
+					}
+					long msb = t.getLong(i * RECORD + MSB);
+					long lsb = t.getLong(i * RECORD + LSB);
+					read(s, i, s.cursor);
+					if (filter.remove(msb, lsb, s.cursor)) {
+						removeAt(s, i);
+						removed++;
+						// 后移回填的条目落在i上，需重新检查
+					} else {
+						i++;
+					}
+				}
+			} finally {
+				s.cursor.restore(-1, null, -1, false, -1, 0, -1, -1, null);
+				s.lock.unlock();
+			}
+		}
+		return removed;
+	}
+
+	public long forEachChunk(int shard, long cursor, int maxSlots, boolean dirtyOnly, UuidMap.Visitor<ClientStatMachine> visitor) {
+		Segment s = segments[shard];
+		s.lock.lock();
+		try {
+			ByteBuffer t = s.table;
+			int capacity = s.mask + 1;
+			int i = (int) (cursor >>> 32) == capacity ? (int) cursor : 0;
+			int end = i + maxSlots;
+			// 块在空槽处结束，后移回填不会越过空槽
+			while (i < capacity) {
+				if (used(t, i) == false) {
+					if (i >= end) {
+						return ((long) capacity << 32) | (i + 1);
+					}
+				} else {
+					byte flags = t.get(i * RECORD + FLAGS);
+					if ((flags & FLAG_DIRTY) != 0 || dirtyOnly == false) {
+						t.put(i * RECORD + FLAGS, (byte) (flags & ~FLAG_DIRTY));
+						read(s, i, s.cursor);
+						visitor.visit(t.getLong(i * RECORD + MSB), t.getLong(i * RECORD + LSB), s.cursor);
+					}
+				}
+				i++;
+			}
+			return -1;
+		} finally {
+			s.cursor.restore(-1, null, -1, false, -1, 0, -1, -1, null);
+			s.lock.unlock();
+		}
+	}
+
+	public long expire(long msb, long lsb, long expireBefore) {
+		int h = UuidMap.hash(msb, lsb);
+		Segment s = segmentFor(h);
+		s.lock.lock();
+		try {
+			int i = find(s, h, msb, lsb);
+			if (i < 0) {
+				return -1;
+			}
+			// 直接读记录，不生成状态机
+			long lastTick = s.table.getLong(i * RECORD + TICK);
+			if (lastTick >= expireBefore) {
+				return lastTick;
+			}
+			reclaimedBytes.addAndGet(removeAt(s, i));
+			return 0;
+		} finally {
+			s.lock.unlock();
+		}
+	}
+
+	public long spill(long msb, long lsb, long idleBefore, ColdStore cold) {
+		int h = UuidMap.hash(msb, lsb);
+		Segment s = segmentFor(h);
+		s.lock.lock();
+		try {
+			int i = find(s, h, msb, lsb);
+			if (i < 0) {
+				return -1;
+			}
+			long lastTick = s.table.getLong(i * RECORD + TICK);
+			if (lastTick >= idleBefore) {
+				return lastTick;
+			}
+			read(s, i, s.cursor);
+			cold.put(msb, lsb, s.cursor);
+			removeAt(s, i);
+			return lastTick;
+		} finally {
+			s.cursor.restore(-1, null, -1, false, -1, 0, -1, -1, null);
+			s.lock.unlock();
+		}
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	public int size() {
+		int n = 0;
+		for (int k = 0; k < segments.length; k++) {
+			n += segments[k].size;
+		}
+		return n;
+	}
+
+	public int getShardNum() {
+		return segments.length;
+	}
+
+	public long getCapacity() {
+		long sum = 0;
+		for (int k = 0; k < segments.length; k++) {
+			sum += segments[k].mask + 1;
+		}
+		return sum;
+	}
+
+	public String getName() {
+		return "offheap";
+	}
+
+	public long getOffHeapBytes() {
+		long bytes = 0;
+		for (int k = 0; k < segments.length; k++) {
+			Segment s = segments[k];
+			bytes += (long) (s.mask + 1) * RECORD + s.payloads.getReservedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * 由记录生成状态机，调用者持有段锁
+	 */
+	private void read(Segment s, int i, ClientStatMachine csm) {
+		ByteBuffer t = s.table;
+		int base = i * RECORD;
+		int len = t.getInt(base + L20);
+		long handle = t.getLong(base + P20);
+		byte[] message0x20 = null;
+		if (handle != SlabAllocator.NONE) {
+			message0x20 = new byte[len];
+			s.payloads.read(handle, message0x20, 0, len);
+		}
+		csm.restore(t.getLong(base + TICK), readAddress(t, base), t.getInt(base + SHARD), (t.get(base + FLAGS) & FLAG_0X10) != 0, t.getLong(base + T10),
+				t.getLong(base + M11), t.getLong(base + T11), t.getLong(base + T20), message0x20);
+		csm.setDirty((t.get(base + FLAGS) & FLAG_DIRTY) != 0);
+	}
+
+	/**
+	 * 写回状态机，不存在时插入，调用者持有段锁
+	 * 
+	 * @return 插入返回true
+	 */
+	private boolean write(Segment s, int h, long msb, long lsb, ClientStatMachine csm) {
+		int i = find(s, h, msb, lsb);
+		boolean inserted = i < 0;
+		if (inserted == true) {
+			if (s.size >= s.threshold) {
+				resize(s);
+			}
+			i = h & s.mask;
+			while (used(s.table, i)) {
+				i = (i + 1) & s.mask;
+			}
+			int base = i * RECORD;
+			s.table.putLong(base + MSB, msb);
+			s.table.putLong(base + LSB, lsb);
+			s.table.putLong(base + P20, SlabAllocator.NONE);
+			s.size++;
+		}
+		ByteBuffer t = s.table;
+		int base = i * RECORD;
+		t.putLong(base + TICK, csm.getLastTick());
+		t.putLong(base + T10, csm.getLast0x10Time());
+		t.putLong(base + M11, csm.get0x11Message());
+		t.putLong(base + T11, csm.getLast0x11Time());
+		t.putLong(base + T20, csm.getLast0x20Time());
+		t.putInt(base + SHARD, csm.getLastShard());
+		t.put(base + FLAGS, (byte) (FLAG_USED | (csm.has0x10Message() ? FLAG_0X10 : 0) | (csm.isDirty() ? FLAG_DIRTY : 0)));
+		writeAddress(t, base, csm.getLastAddr());
+
+		long handle = t.getLong(base + P20);
+		byte[] message0x20 = csm.getMessage0x20();
+		int len = csm.getMessage0x20Len();
+		if (message0x20 == null || len <= 0 || message0x20.length != len) {
+			s.payloads.free(handle);
+			handle = SlabAllocator.NONE;
+		} else {
+			if (s.payloads.fits(handle, len) == false) {
+				s.payloads.free(handle);
+				handle = s.payloads.allocate(len);
+			}
+			s.payloads.write(handle, message0x20, 0, len);
+		}
+		t.putLong(base + P20, handle);
+		t.putInt(base + L20, len);
+		return inserted;
+	}
+
+	private static SocketAddress readAddress(ByteBuffer t, int base) {
+		int family = t.get(base + FAMILY);
+		if (family == 0) {
+			return null;
+		}
+		byte[] ip = new byte[family == 4 ? 4 : 16];
+		for (int k = 0; k < ip.length; k++) {
+			ip[k] = t.get(base + IP + k);
+		}
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(ip), t.getChar(base + PORT));
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	private static void writeAddress(ByteBuffer t, int base, SocketAddress addr) {
+		if (addr instanceof InetSocketAddress == false || ((InetSocketAddress) addr).getAddress() == null) {
+			t.put(base + FAMILY, (byte) 0);
+			return;
+		}
+		InetSocketAddress isa = (InetSocketAddress) addr;
+		byte[] ip = isa.getAddress().getAddress();
+		t.put(base + FAMILY, (byte) (ip.length == 4 ? 4 : 6));
+		t.putChar(base + PORT, (char) isa.getPort());
+		for (int k = 0; k < ip.length; k++) {
+			t.put(base + IP + k, ip[k]);
+		}
+	}
+
+	/**
+	 * 删除槽i，释放其0x20消息，并把其后同一探测链上的记录前移
+	 * 
+	 * @return 释放的字节数
+	 */
+	private static int removeAt(Segment s, int i) {
+		ByteBuffer t = s.table;
+		int freed = RECORD + s.payloads.free(t.getLong(i * RECORD + P20));
+		int mask = s.mask;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (used(t, j) == false) {
+				break;
+			}
+			int home = UuidMap.hash(t.getLong(j * RECORD + MSB), t.getLong(j * RECORD + LSB)) & mask;
+			// home不在(i, j]之间时，j上的记录可以前移到i
+			if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+				copyRecord(t, j, t, i);
+				i = j;
+			}
+		}
+		t.put(i * RECORD + FLAGS, (byte) 0);
+		s.size--;
+		return freed;
+	}
+
+	private static void copyRecord(ByteBuffer from, int i, ByteBuffer to, int j) {
+		int src = i * RECORD;
+		int dst = j * RECORD;
+		for (int k = 0; k < RECORD; k += 8) {
+			to.putLong(dst + k, from.getLong(src + k));
+		}
+	}
+
+	/**
+	 * 段扩容为两倍，调用者持有段锁
+	 */
+	private static void resize(Segment s) {
+		int capacity = (s.mask + 1) << 1;
+		if (capacity > MAX_CAPACITY) {
+			throw new IllegalStateException("off-heap segment is full: " + s.size);
+		}
+		ByteBuffer old = s.table;
+		ByteBuffer table = newTable(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i <= s.mask; i++) {
+			if (used(old, i) == false) {
+				continue;
+			}
+			int j = UuidMap.hash(old.getLong(i * RECORD + MSB), old.getLong(i * RECORD + LSB)) & mask;
+			while (used(table, j)) {
+				j = (j + 1) & mask;
+			}
+			copyRecord(old, i, table, j);
+		}
+		s.table = table;
+		s.mask = mask;
+		s.threshold = (int) (capacity * LOAD_FACTOR);
+	}
+}
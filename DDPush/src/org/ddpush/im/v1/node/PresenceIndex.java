@@ -0,0 +1,282 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 在线索引，按最后心跳时间分桶记录带地址心跳的uuid和appId，心跳时从旧桶移到当前桶，O(1)
+ * 在线即最后心跳在PUSH_IM_AFTER_ACTIVE_SECOND之内；桶内按心跳所在秒和appId计数，跨窗口边界的桶只计边界之后的秒，
+ * 因此在线数与按状态机判断的一致；超出窗口的桶随环形数组覆盖整体丢弃，不逐个删除
+ * 每个uuid只在一个桶内，在线数和按appId的在线数为各在线桶计数之和，不遍历状态机
+ * 索引只由心跳维护，启动时从状态文件读入的客户端在其下一次心跳前不在索引中
+ * 同一uuid的更新由状态机锁串行化
+ */
+public class PresenceIndex {
+
+	/** 是否启用 */
+	public static final boolean ENABLED = "YES".equalsIgnoreCase(PropertyUtil.getProperty("PRESENCE_INDEX_ENABLE"));
+	/** 桶宽毫秒数 */
+	private static final long WIDTH = 1000L * Math.max(1, PropertyUtil.getPropertyInt("PRESENCE_BUCKET_SECONDS"));
+	/** 每桶的秒数 */
+	private static final int SLOTS = (int) (WIDTH / 1000);
+	/** appId取值个数 */
+	private static final int APPS = 256;
+	/** appId对应的字节值缓存，避免装箱分配 */
+	private static final Byte[] APP_VALUES = new Byte[APPS];
+	/** 桶内成员的值，秒槽位*APPS+appId，缓存避免装箱分配 */
+	private static final Integer[] MEMBER_VALUES = new Integer[SLOTS * APPS];
+
+	/** 环形桶数组，桶号对长度取模 */
+	private static final AtomicReferenceArray<Bucket> ring;
+
+	static {
+		for (int i = 0; i < APPS; i++) {
+			APP_VALUES[i] = Byte.valueOf((byte) i);
+		}
+		for (int i = 0; i < MEMBER_VALUES.length; i++) {
+			MEMBER_VALUES[i] = Integer.valueOf(i);
+		}
+		// 在线窗口的桶数加当前桶
+		ring = new AtomicReferenceArray<Bucket>((int) ((1000L * ClientStatMachine.PUSH_IM_AFTER_ACTIVE_SECOND + WIDTH - 1) / WIDTH) + 1);
+	}
+
+	/**
+	 * 一个时间桶
+	 */
+	private static final class Bucket {
+		/** 桶号 */
+		final long no;
+		/** uuid到秒槽位和appId */
+		final UuidMap<Integer> members;
+		/** 按秒槽位和appId的个数，下标同成员的值 */
+		final AtomicIntegerArray counts = new AtomicIntegerArray(SLOTS * APPS);
+
+		Bucket(long no, int initialCapacity) {
+			this.no = no;
+			this.members = new UuidMap<Integer>(16, initialCapacity);
+		}
+
+		/**
+		 * 在线的成员数
+		 * 
+		 * @param first
+		 *            在线的起始秒槽位
+		 * @return
+		 */
+		int count(int first) {
+			if (first == 0) {
+				return members.size();
+			}
+			int n = 0;
+			for (int i = first * APPS; i < counts.length(); i++) {
+				n += counts.get(i);
+			}
+			return n;
+		}
+	}
+
+	private PresenceIndex() {
+
+	}
+
+	private static long bucketOf(long millis) {
+		return millis / WIDTH;
+	}
+
+	/**
+	 * 桶内心跳时间晚于cutoff的起始秒槽位，心跳时间为整秒
+	 * 
+	 * @return 整桶在线返回0，整桶不在线返回SLOTS
+	 */
+	private static int firstOnlineSlot(long no, long cutoff) {
+		long start = no * WIDTH;
+		if (start > cutoff) {
+			return 0;
+		}
+		return (int) Math.min(SLOTS, (cutoff - start) / 1000 + 1);
+	}
+
+	/**
+	 * 在线判断的截止时间，与状态机相同，最后心跳晚于此时间为在线
+	 */
+	private static long onlineCutoff(long now) {
+		return now - 1000L * ClientStatMachine.PUSH_IM_AFTER_ACTIVE_SECOND;
+	}
+
+	/**
+	 * 取得桶，create为true时不存在或已过期的槽位换成新桶
+	 * 
+	 * @return 已被覆盖或不存在返回null
+	 */
+	private static Bucket bucket(long no, boolean create) {
+		int slot = (int) (no % ring.length());
+		while (true) {
+			Bucket b = ring.get(slot);
+			if (b != null && b.no == no) {
+				return b;
+			}
+			if (create == false || (b != null && b.no > no)) {
+				return null;
+			}
+			// 按上一个桶的大小预留容量
+			Bucket prev = ring.get((int) ((no - 1) % ring.length()));
+			Bucket created = new Bucket(no, prev == null || prev.no != no - 1 ? 0 : prev.members.size());
+			if (ring.compareAndSet(slot, b, created)) {
+				return created;
+			}
+		}
+	}
+
+	/**
+	 * 心跳，从旧心跳时间的桶移到新心跳时间的桶
+	 * 
+	 * @param msb
+	 * @param lsb
+	 * @param oldTick
+	 *            更新前的最后心跳时间，没有为-1
+	 * @param newTick
+	 * @param appId
+	 */
+	public static void touch(long msb, long lsb, long oldTick, long newTick, int appId) {
+		long no = bucketOf(newTick);
+		if (oldTick > 0 && bucketOf(oldTick) != no) {
+			Bucket old = bucket(bucketOf(oldTick), false);
+			if (old != null) {
+				Integer prev = old.members.remove(msb, lsb);
+				if (prev != null) {
+					old.counts.decrementAndGet(prev.intValue());
+				}
+			}
+		}
+		Bucket b = bucket(no, true);
+		if (b == null) {
+			return;
+		}
+		int slot = (int) ((newTick - no * WIDTH) / 1000);
+		Integer value = MEMBER_VALUES[slot * APPS + (appId & 0xff)];
+		Integer prev = b.members.put(msb, lsb, value);
+		if (prev != value) {
+			b.counts.incrementAndGet(value.intValue());
+			if (prev != null) {
+				b.counts.decrementAndGet(prev.intValue());
+			}
+		}
+	}
+
+	/**
+	 * 取得在线数
+	 * 
+	 * @return
+	 */
+	public static int getOnlineCount() {
+		long now = System.currentTimeMillis();
+		long cur = bucketOf(now);
+		long cutoff = onlineCutoff(now);
+		int count = 0;
+		for (long no = cur - ring.length() + 1; no <= cur; no++) {
+			Bucket b = bucket(no, false);
+			if (b != null) {
+				count += b.count(firstOnlineSlot(no, cutoff));
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 取得按appId的在线数
+	 * 
+	 * @return 下标为appId
+	 */
+	public static int[] getOnlineCountByApp() {
+		long now = System.currentTimeMillis();
+		long cur = bucketOf(now);
+		long cutoff = onlineCutoff(now);
+		int[] counts = new int[APPS];
+		for (long no = cur - ring.length() + 1; no <= cur; no++) {
+			Bucket b = bucket(no, false);
+			if (b == null) {
+				continue;
+			}
+			for (int i = firstOnlineSlot(no, cutoff) * APPS; i < b.counts.length(); i++) {
+				counts[i % APPS] += b.counts.get(i);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * 遍历在线uuid，值为appId，从最近的桶开始
+	 * 
+	 * @param visitor
+	 */
+	public static void forEachOnline(UuidMap.Visitor<Byte> visitor) {
+		long now = System.currentTimeMillis();
+		long cur = bucketOf(now);
+		long cutoff = onlineCutoff(now);
+		final UuidMap.Visitor<Byte> target = visitor;
+		final boolean[] stopped = new boolean[1];
+		for (long no = cur; no > cur - ring.length() && stopped[0] == false; no--) {
+			Bucket b = bucket(no, false);
+			if (b == null) {
+				continue;
+			}
+			final int first = firstOnlineSlot(no, cutoff);
+			if (first == SLOTS) {
+				continue;
+			}
+			b.members.forEach(new UuidMap.Visitor<Integer>() {
+				public boolean visit(long msb, long lsb, Integer value) {
+					int v = value.intValue();
+					if (v / APPS < first) {
+						// 跨窗口边界的桶中已超出窗口的成员
+						return true;
+					}
+					stopped[0] = target.visit(msb, lsb, APP_VALUES[v % APPS]) == false;
+					return stopped[0] == false;
+				}
+			});
+		}
+	}
+
+	/**
+	 * 取得按appId的在线数描述，只列出不为0的
+	 * 
+	 * @return
+	 */
+	public static String getOnlineByAppString() {
+		int[] counts = getOnlineCountByApp();
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(i).append('=').append(counts[i]);
+		}
+		return sb.length() == 0 ? "none" : sb.toString();
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 客户端消息的回应计划，由状态机在锁内记录需下发的内容，编码在锁外进行，可重复使用
+ */
+public class ReplyPlan {
+
+	/** 一次回应最多的消息数：通用、分类、自定义或心跳 */
+	public static final int MAX_REPLIES = 3;
+
+	/** 回应地址 */
+	private SocketAddress address;
+	/** 回应所在UDP分片 */
+	private int shard = -1;
+	/** app id */
+	private byte appId;
+	/** 是否回应心跳 */
+	private boolean tickBack;
+	/** 是否下发通用信息 */
+	private boolean message0x10;
+	/** 下发的分类信息，0为不下发 */
+	private long message0x11;
+	/** 下发的自定义信息，null为不下发，状态机更新时替换数组而不修改，可在锁外读取 */
+	private byte[] message0x20;
+	/** 自定义信息长度 */
+	private int message0x20Len;
+
+	/**
+	 * 清空，准备复用
+	 */
+	public void reset() {
+		address = null;
+		shard = -1;
+		appId = 0;
+		tickBack = false;
+		message0x10 = false;
+		message0x11 = 0;
+		message0x20 = null;
+		message0x20Len = 0;
+	}
+
+	/**
+	 * 设定回应目标
+	 * 
+	 * @param address
+	 * @param shard
+	 * @param appId
+	 */
+	void setTarget(SocketAddress address, int shard, byte appId) {
+		this.address = address;
+		this.shard = shard;
+		this.appId = appId;
+	}
+
+	void setTickBack(boolean tickBack) {
+		this.tickBack = tickBack;
+	}
+
+	void set0x10(boolean message0x10) {
+		this.message0x10 = message0x10;
+	}
+
+	void set0x11(long message0x11) {
+		this.message0x11 = message0x11;
+	}
+
+	void set0x20(byte[] message0x20, int message0x20Len) {
+		this.message0x20 = message0x20;
+		this.message0x20Len = message0x20Len;
+	}
+
+	/**
+	 * 是否有需下发的消息
+	 * 
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return tickBack == false && message0x10 == false && message0x11 == 0 && (message0x20 == null || message0x20Len <= 0);
+	}
+
+	/**
+	 * 取得回应地址
+	 * 
+	 * @return
+	 */
+	public SocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * 编码为服务端消息，顺序为通用、分类、自定义，无其他消息时才回应心跳
+	 * 
+	 * @param out
+	 *            长度至少为MAX_REPLIES
+	 * @return 消息数
+	 * @throws Exception
+	 */
+	public int encode(ServerMessage[] out) throws Exception {
+		int n = 0;
+		if (message0x10 == true) {
+			out[n++] = newMessage(ClientStatMachine.CMD_0x10, 0);
+		}
+		if (message0x11 != 0) {
+			ServerMessage sm = newMessage(ClientStatMachine.CMD_0x11, 8);
+			ByteBuffer.wrap(sm.getData(), Constant.SERVER_MESSAGE_MIN_LENGTH, 8).putLong(message0x11);
+			out[n++] = sm;
+		}
+		if (message0x20 != null && message0x20Len > 0) {
+			ServerMessage sm = newMessage(ClientStatMachine.CMD_0x20, message0x20Len);
+			System.arraycopy(message0x20, 0, sm.getData(), Constant.SERVER_MESSAGE_MIN_LENGTH, message0x20Len);
+			out[n++] = sm;
+		}
+		if (tickBack == true && n == 0) {
+			out[n++] = newMessage(ClientStatMachine.CMD_0x00, 0);
+		}
+		return n;
+	}
+
+	/**
+	 * 编码并加入列表
+	 * 
+	 * @param smList
+	 * @throws Exception
+	 */
+	public void encode(List<ServerMessage> smList) throws Exception {
+		ServerMessage[] out = new ServerMessage[MAX_REPLIES];
+		int n = encode(out);
+		for (int i = 0; i < n; i++) {
+			smList.add(out[i]);
+		}
+	}
+
+	/**
+	 * 创建消息并写入消息头
+	 * 
+	 * @param cmd
+	 * @param contentLength
+	 * @return
+	 * @throws Exception
+	 */
+	private ServerMessage newMessage(int cmd, int contentLength) throws Exception {
+		byte[] data = new byte[Constant.SERVER_MESSAGE_MIN_LENGTH + contentLength];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.put((byte) 1);// version
+		bb.put(appId);// app id
+		bb.put((byte) cmd);// cmd
+		bb.putShort((short) contentLength);// length
+		ServerMessage sm = new ServerMessage(address, data);
+		sm.setShard(shard);
+		return sm;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+import org.ddpush.im.util.Crc32c;
+
+/**
+ * 状态文件格式
+ * 
+ * <pre>
+ * 文件头 40字节：magic "DDPS"(4) 版本(4) 条目数(8) 创建时间(8) 索引位置(8) 块数(4) 前36字节的crc32c(4)
+ * 块 若干：存储长度(4) 原始长度(4) 条目数(4) 压缩方式(1) 块头前13字节与存储内容的crc32c(4) 存储内容
+ * 索引：每块的位置(8)与条目数(4)，最后为索引的crc32c(4)
+ * </pre>
+ * 
+ * 块的原始内容是若干条旧格式的条目，每条定长file_min_bytes_per_object字节，之后为0x20消息内容
+ * 旧格式文件没有文件头，直接从第一条的32位十六进制uuid开始，以magic区分
+ */
+final class SnapshotFormat {
+
+	/** "DDPS" */
+	static final int MAGIC = 0x44445053;
+	/** 当前版本 */
+	static final int VERSION = 2;
+	/** 文件头字节数 */
+	static final int HEADER_BYTES = 40;
+	/** 块头字节数 */
+	static final int BLOCK_HEADER_BYTES = 17;
+	/** 块头中参与校验的字节数 */
+	static final int BLOCK_HEADER_CHECKED = 13;
+	/** 每块索引字节数 */
+	static final int INDEX_ENTRY_BYTES = 12;
+	/** 不压缩 */
+	static final byte CODEC_NONE = 0;
+	/** deflate压缩 */
+	static final byte CODEC_DEFLATE = 1;
+
+	private SnapshotFormat() {
+
+	}
+
+	/**
+	 * 按配置名取得压缩方式
+	 * 
+	 * @param name
+	 *            none|deflate
+	 * @return
+	 */
+	static byte codecOf(String name) {
+		return "deflate".equalsIgnoreCase(name) ? CODEC_DEFLATE : CODEC_NONE;
+	}
+
+	/**
+	 * 写文件头
+	 * 
+	 * @param bb
+	 *            剩余空间至少HEADER_BYTES
+	 * @param entries
+	 * @param createTime
+	 * @param indexOffset
+	 * @param blocks
+	 */
+	static void writeHeader(ByteBuffer bb, long entries, long createTime, long indexOffset, int blocks) {
+		int start = bb.position();
+		bb.putInt(MAGIC);
+		bb.putInt(VERSION);
+		bb.putLong(entries);
+		bb.putLong(createTime);
+		bb.putLong(indexOffset);
+		bb.putInt(blocks);
+		bb.putInt(crc(bb.array(), bb.arrayOffset() + start, HEADER_BYTES - 4));
+	}
+
+	/**
+	 * 计算crc32c
+	 * 
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	static int crc(byte[] b, int off, int len) {
+		Checksum c = Crc32c.create();
+		c.update(b, off, len);
+		return (int) c.getValue();
+	}
+
+	/**
+	 * 计算块的crc32c，覆盖块头前13字节与存储内容
+	 * 
+	 * @param header
+	 * @param headerOff
+	 * @param data
+	 * @param dataOff
+	 * @param len
+	 * @return
+	 */
+	static int blockCrc(byte[] header, int headerOff, byte[] data, int dataOff, int len) {
+		Checksum c = Crc32c.create();
+		c.update(header, headerOff, BLOCK_HEADER_CHECKED);
+		c.update(data, dataOff, len);
+		return (int) c.getValue();
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 状态文件的并行加载，文件以内存映射读取，在fork-join池中并行解码各块，直接放入节点状态的分片
+ * 当前格式(见SnapshotFormat)按块索引切分，索引或文件头损坏时顺序扫描块头，校验失败的块跳过并报告
+ * 旧格式先顺序扫描各条的定长部分找出块边界，只读每条的0x20消息长度
+ */
+class SnapshotLoader {
+
+	/** 旧格式每块的目标字节数 */
+	private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+	/** 扫描时每次映射的最大字节数 */
+	private static final long WINDOW_BYTES = 1L << 30;
+	/** 0x20消息长度在定长部分中的偏移 */
+	private static final int LEN_OFFSET = 65;
+
+	private final NodeStatus status;
+	/** 解码线程数 */
+	private final int threads;
+	/** 旧格式为各块的起止位置，当前格式为各块的位置与条目数 */
+	private final ArrayList<long[]> chunks = new ArrayList<long[]>();
+	/** 是否为当前格式 */
+	private boolean blocks;
+	/** 文件中完整条目或块的结束位置，之后为截断或损坏的部分 */
+	private long validBytes;
+	/** 文件头中的条目数，旧格式或文件头损坏为-1 */
+	private long expectedEntries = -1;
+	/** 校验失败的块数 */
+	private final AtomicInteger badBlocks = new AtomicInteger();
+
+	/**
+	 * 初始化
+	 * 
+	 * @param status
+	 * @param threads
+	 *            解码线程数，0为cpu核数
+	 */
+	SnapshotLoader(NodeStatus status, int threads) {
+		this.status = status;
+		this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * 读取当前格式文件头中的条目数，用于估计初始容量
+	 * 
+	 * @param f
+	 * @return 旧格式或文件头损坏返回-1
+	 */
+	static long readEntryCount(File f) {
+		ByteBuffer header = readHeader(f);
+		return header == null ? -1 : header.getLong(8);
+	}
+
+	/**
+	 * 读取文件的创建时间
+	 * 
+	 * @param f
+	 * @return 旧格式为0，文件头损坏或无文件为-1
+	 */
+	static long readCreateTime(File f) {
+		ByteBuffer header = readHeader(f);
+		if (header != null) {
+			return header.getLong(16);
+		}
+		try {
+			FileInputStream in = new FileInputStream(f);
+			try {
+				ByteBuffer magic = ByteBuffer.allocate(4);
+				return in.getChannel().read(magic, 0) == 4 && magic.getInt(0) == SnapshotFormat.MAGIC ? -1 : 0;
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static ByteBuffer readHeader(File f) {
+		try {
+			FileInputStream in = new FileInputStream(f);
+			try {
+				return readHeader(in.getChannel());
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 读取并校验文件头
+	 * 
+	 * @param fc
+	 * @return 旧格式或校验失败返回null
+	 * @throws Exception
+	 */
+	private static ByteBuffer readHeader(FileChannel fc) throws Exception {
+		if (fc.size() < SnapshotFormat.HEADER_BYTES) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(SnapshotFormat.HEADER_BYTES);
+		readFully(fc, header, 0);
+		if (header.getInt(0) != SnapshotFormat.MAGIC
+				|| header.getInt(SnapshotFormat.HEADER_BYTES - 4) != SnapshotFormat.crc(header.array(), 0, SnapshotFormat.HEADER_BYTES - 4)) {
+			return null;
+		}
+		return header;
+	}
+
+	/**
+	 * 从指定位置读满缓冲，不改变通道位置，可并发调用
+	 * 
+	 * @param fc
+	 * @param bb
+	 * @param position
+	 * @throws Exception
+	 */
+	private static void readFully(FileChannel fc, ByteBuffer bb, long position) throws Exception {
+		int start = bb.position();
+		while (bb.hasRemaining()) {
+			if (fc.read(bb, position + bb.position() - start) < 0) {
+				throw new EOFException("end of node status file at " + (position + bb.position() - start));
+			}
+		}
+	}
+
+	/**
+	 * 加载状态文件
+	 * 
+	 * @param f
+	 * @param ordered
+	 *            按块在文件中的顺序在当前线程中解码，同一条目出现多次时以后写的为准，用于增量快照
+	 * @return 加载的条目数
+	 * @throws Exception
+	 */
+	int load(File f, boolean ordered) throws Exception {
+		long start = System.currentTimeMillis();
+		FileChannel fc = new FileInputStream(f).getChannel();
+		int loaded = 0;
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			blocks = fc.size() >= 4 && fc.read(magic, 0) == 4 && magic.getInt(0) == SnapshotFormat.MAGIC;
+			if (blocks == true) {
+				indexBlocks(fc);
+			} else {
+				scan(fc);
+			}
+			if (ordered == true) {
+				for (int i = 0; i < chunks.size(); i++) {
+					loaded += new DecodeTask(fc, i, i + 1).compute().intValue();
+				}
+			} else if (chunks.isEmpty() == false) {
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				try {
+					loaded = pool.invoke(new DecodeTask(fc, 0, chunks.size()));
+				} finally {
+					pool.shutdown();
+				}
+			}
+			if (validBytes < fc.size()) {
+				System.out.println("node status file truncated or damaged, " + (fc.size() - validBytes) + " bytes ignored at " + validBytes);
+			}
+			if (badBlocks.get() > 0 || (expectedEntries >= 0 && expectedEntries != loaded)) {
+				System.out.println("node status file damaged, " + badBlocks.get() + " bad blocks, " + loaded + " entries loaded"
+						+ (expectedEntries >= 0 ? " of " + expectedEntries : ""));
+			}
+		} finally {
+			fc.close();
+		}
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println(loaded + " stat machine loaded from " + f.getName() + " in " + millis + " ms, " + (loaded * 1000L / millis) + " entries/sec, "
+				+ (blocks ? "version " + SnapshotFormat.VERSION : "legacy") + " format, " + chunks.size() + " chunks, " + (ordered ? 1 : threads) + " threads");
+		return loaded;
+	}
+
+	/**
+	 * 当前格式按索引取得各块，文件头或索引校验失败时顺序扫描块头
+	 * 
+	 * @param fc
+	 * @throws Exception
+	 */
+	private void indexBlocks(FileChannel fc) throws Exception {
+		long size = fc.size();
+		ByteBuffer header = readHeader(fc);
+		if (header != null) {
+			int version = header.getInt(4);
+			if (version > SnapshotFormat.VERSION) {
+				throw new Exception("unsupported node status file version " + version);
+			}
+			expectedEntries = header.getLong(8);
+			long indexOffset = header.getLong(24);
+			int count = header.getInt(32);
+			long indexBytes = (long) count * SnapshotFormat.INDEX_ENTRY_BYTES + 4;
+			if (count >= 0 && indexOffset >= SnapshotFormat.HEADER_BYTES && indexOffset + indexBytes <= size) {
+				ByteBuffer index = ByteBuffer.allocate((int) indexBytes);
+				readFully(fc, index, indexOffset);
+				if (index.getInt((int) indexBytes - 4) == SnapshotFormat.crc(index.array(), 0, (int) indexBytes - 4)) {
+					for (int i = 0; i < count; i++) {
+						chunks.add(new long[] { index.getLong(i * SnapshotFormat.INDEX_ENTRY_BYTES), index.getInt(i * SnapshotFormat.INDEX_ENTRY_BYTES + 8) });
+					}
+					validBytes = size;
+					return;
+				}
+			}
+			System.out.println("node status file index damaged, scanning blocks");
+		} else {
+			System.out.println("node status file header damaged, scanning blocks");
+		}
+		ByteBuffer blockHeader = ByteBuffer.allocate(SnapshotFormat.BLOCK_HEADER_BYTES);
+		long pos = SnapshotFormat.HEADER_BYTES;
+		while (pos + SnapshotFormat.BLOCK_HEADER_BYTES <= size) {
+			blockHeader.clear();
+			readFully(fc, blockHeader, pos);
+			int stored = blockHeader.getInt(0);
+			// 块不会为空，文件头损坏时以此在索引处停止
+			if (stored <= 0 || pos + SnapshotFormat.BLOCK_HEADER_BYTES + stored > size) {
+				break;
+			}
+			chunks.add(new long[] { pos, blockHeader.getInt(8) });
+			pos += SnapshotFormat.BLOCK_HEADER_BYTES + stored;
+		}
+		validBytes = pos;
+	}
+
+	/**
+	 * 旧格式顺序扫描，按CHUNK_BYTES切分块，截断或长度非法的尾部不加载
+	 * 
+	 * @param fc
+	 * @throws Exception
+	 */
+	private void scan(FileChannel fc) throws Exception {
+		long size = fc.size();
+		MappedByteBuffer window = null;
+		long windowStart = 0;
+		long chunkStart = 0;
+		long pos = 0;
+		while (pos + NodeStatus.file_min_bytes_per_object <= size) {
+			if (window == null || pos + NodeStatus.file_min_bytes_per_object > windowStart + window.limit()) {
+				windowStart = pos;
+				window = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_BYTES, size - pos));
+			}
+			int len = window.getInt((int) (pos - windowStart) + LEN_OFFSET);
+			if (len < 0 || pos + NodeStatus.file_min_bytes_per_object + len > size) {
+				break;
+			}
+			pos += NodeStatus.file_min_bytes_per_object + len;
+			if (pos - chunkStart >= CHUNK_BYTES) {
+				chunks.add(new long[] { chunkStart, pos });
+				chunkStart = pos;
+			}
+		}
+		if (pos > chunkStart) {
+			chunks.add(new long[] { chunkStart, pos });
+		}
+		validBytes = pos;
+	}
+
+	/**
+	 * 解码一段块，多于一块时对半拆分
+	 */
+	private class DecodeTask extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel fc;
+		private final int from;
+		private final int to;
+
+		DecodeTask(FileChannel fc, int from, int to) {
+			this.fc = fc;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				DecodeTask left = new DecodeTask(fc, from, mid);
+				left.fork();
+				int right = new DecodeTask(fc, mid, to).compute().intValue();
+				return Integer.valueOf(left.join().intValue() + right);
+			}
+			try {
+				return Integer.valueOf(decode(chunks.get(from)));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private int decode(long[] chunk) throws Exception {
+			if (blocks == true) {
+				return decodeBlock(chunk[0]);
+			}
+			return decodeEntries(fc.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]));
+		}
+
+		/**
+		 * 解码当前格式的一块，校验失败或块越界时跳过
+		 */
+		private int decodeBlock(long offset) throws Exception {
+			long size = fc.size();
+			if (offset < SnapshotFormat.HEADER_BYTES || offset + SnapshotFormat.BLOCK_HEADER_BYTES > size) {
+				badBlocks.incrementAndGet();
+				return 0;
+			}
+			byte[] header = new byte[SnapshotFormat.BLOCK_HEADER_BYTES];
+			ByteBuffer h = ByteBuffer.wrap(header);
+			readFully(fc, h, offset);
+			int stored = h.getInt(0);
+			int raw = h.getInt(4);
+			int codec = h.get(12);
+			if (stored < 0 || raw < 0 || offset + SnapshotFormat.BLOCK_HEADER_BYTES + stored > size) {
+				badBlocks.incrementAndGet();
+				return 0;
+			}
+			byte[] data = new byte[stored];
+			fc.map(FileChannel.MapMode.READ_ONLY, offset + SnapshotFormat.BLOCK_HEADER_BYTES, stored).get(data);
+			if (h.getInt(SnapshotFormat.BLOCK_HEADER_CHECKED) != SnapshotFormat.blockCrc(header, 0, data, 0, stored)) {
+				badBlocks.incrementAndGet();
+				return 0;
+			}
+			if (codec == SnapshotFormat.CODEC_DEFLATE) {
+				byte[] inflated = new byte[raw];
+				Inflater inflater = new Inflater();
+				try {
+					inflater.setInput(data);
+					int n = 0;
+					while (n < raw && inflater.finished() == false) {
+						int r = inflater.inflate(inflated, n, raw - n);
+						if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+							break;
+						}
+						n += r;
+					}
+					if (n != raw) {
+						badBlocks.incrementAndGet();
+						return 0;
+					}
+				} finally {
+					inflater.end();
+				}
+				data = inflated;
+			} else if (codec != SnapshotFormat.CODEC_NONE || raw != stored) {
+				badBlocks.incrementAndGet();
+				return 0;
+			}
+			return decodeEntries(ByteBuffer.wrap(data));
+		}
+
+		/**
+		 * 解码连续的旧格式条目
+		 */
+		private int decodeEntries(ByteBuffer bb) {
+			byte[] key = new byte[32];
+			int loaded = 0;
+			while (bb.hasRemaining()) {
+				bb.get(key);
+				long msb = UuidMap.parseHexLong(key, 0);
+				long lsb = UuidMap.parseHexLong(key, 16);
+				long lastTick = bb.getLong();
+				boolean hasMessage0x10 = bb.get() == 1;
+				long last0x10Time = bb.getLong();
+				long message0x11 = bb.getLong();
+				long last0x11Time = bb.getLong();
+				int message0x20Len = bb.getInt();
+				long last0x20Time = bb.getLong();
+				byte[] data0x20 = null;
+				if (message0x20Len > 0) {
+					data0x20 = new byte[message0x20Len];
+					bb.get(data0x20);
+				}
+				ClientStatMachine csm = ClientStatMachine.newFromFile(lastTick, hasMessage0x10, last0x10Time, message0x11, last0x11Time, message0x20Len,
+						last0x20Time, data0x20);
+				status.putClientStat(msb, lsb, csm);
+				loaded++;
+			}
+			return loaded;
+		}
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.TokenBucket;
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 后台快照，服务运行中定时把节点状态写入临时文件，刷盘后原子改名为nodeStatus.dat，文件格式见SnapshotFormat
+ * 分片分块遍历，每块只在分片锁内编码到内存，写盘和限速等待都在锁外，处理路径上的停顿只有单块的编码时间
+ * 快照是模糊的：各分片不在同一时刻，遍历期间新建的客户端可能不在本次快照中
+ * 全量之后的快照只写有变化标记的状态机到nodeStatus.dat.delta.N，增量个数或字节数达到上限时再写全量并删除增量，磁盘写入量随变化量而不是客户端数增长
+ * 过期删除不写入增量，全量中已过期的客户端加载后由下一次清理再次删除
+ */
+public class Snapshotter implements Runnable {
+
+	/** 写盘和限速的单位字节数 */
+	private static final int WRITE_BYTES = 64 * 1024;
+
+	/** 每块原始内容的目标字节数 */
+	private final int blockBytes = Math.max(WRITE_BYTES, PropertyUtil.getPropertyInt("SNAPSHOT_BLOCK_KB") * 1024);
+	/** 块的压缩方式 */
+	private final byte codec = SnapshotFormat.codecOf(PropertyUtil.getProperty("SNAPSHOT_COMPRESS"));
+	/** 压缩输出缓冲，快照串行执行 */
+	private byte[] packed = new byte[0];
+	/** 快照间隔毫秒，0为不做定时快照 */
+	private final long intervalMillis = 1000L * PropertyUtil.getPropertyInt("SNAPSHOT_INTERVAL_SECONDS");
+	/** 每块访问的槽位数 */
+	private final int chunkSlots = Math.max(1, PropertyUtil.getPropertyInt("SNAPSHOT_CHUNK_SLOTS"));
+	/** 写盘限速，null为不限 */
+	private final TokenBucket throttle;
+	/** 停止标志位，停止后正在进行的快照不再限速 */
+	private volatile boolean stoped = false;
+	/** 是否有待执行的快照请求 */
+	private boolean requested = false;
+	/** 是否正在写快照 */
+	private volatile boolean running = false;
+	/** 最后完成时间 */
+	private volatile long lastSnapshotTime = 0;
+	/** 最后一次的条目数 */
+	private volatile int lastEntries = 0;
+	/** 最后一次的字节数 */
+	private volatile long lastBytes = 0;
+	/** 最后一次的耗时毫秒 */
+	private volatile long lastMillis = 0;
+	/** 最后一次单块持锁编码的最长微秒数 */
+	private volatile long lastMaxChunkMicros = 0;
+	/** 失败次数 */
+	private volatile int failedCount = 0;
+	/** 全量之后最多的增量个数，0为总是写全量 */
+	private final int maxDeltas = PropertyUtil.getPropertyInt("SNAPSHOT_MAX_DELTAS");
+	/** 增量字节数之和达到全量的该百分比时写全量 */
+	private final int deltaMaxPercent = PropertyUtil.getPropertyInt("SNAPSHOT_DELTA_MAX_PERCENT");
+	/** 最后一次是否为全量 */
+	private volatile boolean lastBase = true;
+
+	/** 以下在Snapshotter.class锁内修改，所有实例共享；最后的增量序号，-1为尚未读取目录 */
+	private static int deltaSeq = -1;
+	/** 全量之后的增量个数 */
+	private static volatile int deltaCount = 0;
+	/** 全量之后的增量字节数 */
+	private static volatile long deltaBytes = 0;
+	/** 全量的字节数 */
+	private static volatile long baseBytes = 0;
+	/** 上次快照失败，已清除的变化标记可能不在任何文件中，须写全量 */
+	private static boolean forceBase = false;
+
+	/**
+	 * 初始化
+	 */
+	public Snapshotter() {
+		int kbPerSecond = PropertyUtil.getPropertyInt("SNAPSHOT_MAX_KB_PER_SEC");
+		if (kbPerSecond > 0) {
+			long rate = kbPerSecond * 1024L;
+			// 桶容量至少能放下一次写盘
+			throttle = new TokenBucket(rate, Math.max(100, WRITE_BYTES * 1000L / rate + 1));
+		} else {
+			throttle = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!stoped) {
+			try {
+				synchronized (this) {
+					if (requested == false) {
+						if (intervalMillis > 0) {
+							this.wait(intervalMillis);
+						} else {
+							this.wait();
+						}
+					}
+					requested = false;
+				}
+				if (stoped == true) {
+					break;
+				}
+				snapshot(true);
+			} catch (InterruptedException e) {
+				if (stoped == false) {
+					e.printStackTrace();
+				}
+			} catch (Exception e) {
+				failedCount++;
+				e.printStackTrace();
+			}
+		}
+		System.out.println("snapshotter quit");
+	}
+
+	/**
+	 * 请求立即快照，正在快照时在本次结束后再执行一次
+	 */
+	public void request() {
+		synchronized (this) {
+			requested = true;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * 设置停止标志位，正在进行的快照不再限速
+	 */
+	public void stop() {
+		stoped = true;
+		synchronized (this) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * 写一次快照，与其他快照和退出时的保存串行执行
+	 * 
+	 * @param throttled
+	 *            是否按配置限速
+	 * @return 写入的条目数
+	 * @throws Exception
+	 */
+	public int snapshot(boolean throttled) throws Exception {
+		synchronized (Snapshotter.class) {
+			running = true;
+			try {
+				return write(throttled == true ? throttle : null);
+			} finally {
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * 读取已有的全量和增量文件大小，调用者持有Snapshotter.class锁
+	 */
+	private static void initDeltas() {
+		if (deltaSeq >= 0) {
+			return;
+		}
+		int[] seqs = NodeStatus.listDeltaFiles();
+		deltaSeq = seqs.length == 0 ? 0 : seqs[seqs.length - 1];
+		deltaCount = seqs.length;
+		deltaBytes = 0;
+		for (int i = 0; i < seqs.length; i++) {
+			deltaBytes += NodeStatus.getDeltaFile(seqs[i]).length();
+		}
+		baseBytes = NodeStatus.getStatusFile().length();
+	}
+
+	/**
+	 * 删除全部增量文件，调用者持有Snapshotter.class锁
+	 */
+	private static void deleteDeltas() {
+		int[] seqs = NodeStatus.listDeltaFiles();
+		for (int i = 0; i < seqs.length; i++) {
+			File f = NodeStatus.getDeltaFile(seqs[i]);
+			if (f.delete() == false) {
+				System.out.println("can not delete " + f);
+			}
+		}
+		deltaSeq = 0;
+		deltaCount = 0;
+		deltaBytes = 0;
+	}
+
+	private int write(TokenBucket bucket) throws Exception {
+		NodeStatus nodeStatus = NodeStatus.getInstance();
+		initDeltas();
+		if (WriteAheadLog.takeDropped() == true) {
+			// 丢弃的预写日志记录不会重放，增量之前的变化标记可能已被清除，写全量
+			forceBase = true;
+		}
+		final boolean base = forceBase == true || maxDeltas <= 0 || deltaCount >= maxDeltas || deltaBytes * 100 >= baseBytes * deltaMaxPercent;
+		File target = base ? NodeStatus.getStatusFile() : NodeStatus.getDeltaFile(deltaSeq + 1);
+		File tmp = new File(target.getPath() + ".tmp");
+		long start = System.currentTimeMillis();
+		final ByteBuffer[] chunk = new ByteBuffer[] { ByteBuffer.allocate(blockBytes + WRITE_BYTES) };
+		final byte[] key = new byte[32];
+		final int[] entries = new int[1];
+		UuidMap.Visitor<ClientStatMachine> encoder = new UuidMap.Visitor<ClientStatMachine>() {
+			public boolean visit(long msb, long lsb, ClientStatMachine csm) {
+				byte[] message0x20 = csm.getMessage0x20();
+				int need = NodeStatus.file_min_bytes_per_object + (message0x20 == null ? 0 : message0x20.length);
+				if (chunk[0].remaining() < need) {
+					ByteBuffer grown = ByteBuffer.allocate(Math.max(chunk[0].capacity() * 2, chunk[0].position() + need));
+					chunk[0].flip();
+					grown.put(chunk[0]);
+					chunk[0] = grown;
+				}
+				NodeStatus.encodeEntry(msb, lsb, csm, chunk[0], key);
+				entries[0]++;
+				return true;
+			}
+		};
+		// 之前的预写日志记录都已反映在内存中，快照完成后可以删除
+		long walSegment = WriteAheadLog.rotate();
+		long bytes = SnapshotFormat.HEADER_BYTES;
+		long maxChunkNanos = 0;
+		// 遍历即清除变化标记，本次未完成时下次须写全量
+		forceBase = true;
+		ArrayList<long[]> index = new ArrayList<long[]>();
+		int sealed = 0;
+		Deflater deflater = codec == SnapshotFormat.CODEC_DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+		FileOutputStream out = new FileOutputStream(tmp, false);
+		try {
+			FileChannel fc = out.getChannel();
+			// 文件头在最后写入
+			fc.position(SnapshotFormat.HEADER_BYTES);
+			for (int shard = 0; shard < nodeStatus.getShardNum(); shard++) {
+				long cursor = 0;
+				do {
+					long chunkStart = System.nanoTime();
+					cursor = nodeStatus.forEachChunk(shard, cursor, chunkSlots, !base, encoder);
+					maxChunkNanos = Math.max(maxChunkNanos, System.nanoTime() - chunkStart);
+					if (chunk[0].position() >= blockBytes) {
+						index.add(new long[] { bytes, entries[0] - sealed });
+						bytes += writeBlock(fc, chunk[0], entries[0] - sealed, deflater, bucket);
+						sealed = entries[0];
+					}
+				} while (cursor >= 0);
+			}
+			if (chunk[0].position() > 0) {
+				index.add(new long[] { bytes, entries[0] - sealed });
+				bytes += writeBlock(fc, chunk[0], entries[0] - sealed, deflater, bucket);
+			}
+			long indexOffset = bytes;
+			ByteBuffer bb = ByteBuffer.allocate(index.size() * SnapshotFormat.INDEX_ENTRY_BYTES + 4);
+			for (long[] block : index) {
+				bb.putLong(block[0]);
+				bb.putInt((int) block[1]);
+			}
+			bb.putInt(SnapshotFormat.crc(bb.array(), 0, bb.position()));
+			bb.flip();
+			bytes += bb.remaining();
+			writeFully(fc, bb, bucket);
+			bb = ByteBuffer.allocate(SnapshotFormat.HEADER_BYTES);
+			SnapshotFormat.writeHeader(bb, entries[0], start, indexOffset, index.size());
+			bb.flip();
+			while (bb.hasRemaining()) {
+				fc.write(bb, bb.position());
+			}
+			fc.force(true);
+		} finally {
+			out.close();
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+		if (base == false && entries[0] == 0) {
+			// 没有变化，不留空的增量
+			tmp.delete();
+		} else {
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (base == true) {
+				// 留下的增量早于新的全量，加载时按创建时间跳过
+				deleteDeltas();
+				baseBytes = bytes;
+			} else {
+				deltaSeq++;
+				deltaCount++;
+				deltaBytes += bytes;
+			}
+		}
+		forceBase = false;
+		WriteAheadLog.deleteUpTo(walSegment);
+		lastSnapshotTime = System.currentTimeMillis();
+		lastMillis = lastSnapshotTime - start;
+		lastEntries = entries[0];
+		lastBytes = bytes;
+		lastBase = base;
+		lastMaxChunkMicros = maxChunkNanos / 1000;
+		return entries[0];
+	}
+
+	/**
+	 * 写出一块，压缩后不更小时不压缩存储，之后清空缓冲
+	 * 
+	 * @param fc
+	 * @param raw
+	 *            已编码的条目，写出后清空
+	 * @param entries
+	 * @param deflater
+	 *            为null不压缩
+	 * @param bucket
+	 * @return 写出的字节数
+	 * @throws Exception
+	 */
+	private long writeBlock(FileChannel fc, ByteBuffer raw, int entries, Deflater deflater, TokenBucket bucket) throws Exception {
+		byte[] data = raw.array();
+		int rawLen = raw.position();
+		int dataLen = rawLen;
+		byte blockCodec = SnapshotFormat.CODEC_NONE;
+		if (deflater != null) {
+			if (packed.length < rawLen) {
+				packed = new byte[rawLen];
+			}
+			deflater.reset();
+			deflater.setInput(data, 0, rawLen);
+			deflater.finish();
+			int n = 0;
+			while (deflater.finished() == false && n < rawLen) {
+				n += deflater.deflate(packed, n, rawLen - n);
+			}
+			if (deflater.finished() == true && n < rawLen) {
+				data = packed;
+				dataLen = n;
+				blockCodec = SnapshotFormat.CODEC_DEFLATE;
+			}
+		}
+		ByteBuffer header = ByteBuffer.allocate(SnapshotFormat.BLOCK_HEADER_BYTES);
+		header.putInt(dataLen);
+		header.putInt(rawLen);
+		header.putInt(entries);
+		header.put(blockCodec);
+		header.putInt(SnapshotFormat.blockCrc(header.array(), 0, data, 0, dataLen));
+		header.flip();
+		writeFully(fc, header, bucket);
+		writeFully(fc, ByteBuffer.wrap(data, 0, dataLen), bucket);
+		raw.clear();
+		return SnapshotFormat.BLOCK_HEADER_BYTES + dataLen;
+	}
+
+	/**
+	 * 按限速分段写出，停止后不再限速
+	 */
+	private void writeFully(FileChannel fc, ByteBuffer bb, TokenBucket bucket) throws Exception {
+		while (bb.hasRemaining()) {
+			int n = Math.min(bb.remaining(), WRITE_BYTES);
+			if (bucket != null) {
+				long wait;
+				while (stoped == false && (wait = bucket.tryAcquire(n)) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			int limit = bb.limit();
+			bb.limit(bb.position() + n);
+			while (bb.hasRemaining()) {
+				fc.write(bb);
+			}
+			bb.limit(limit);
+		}
+	}
+
+	/**
+	 * 取得最后快照完成时间
+	 * 
+	 * @return
+	 */
+	public long getLastSnapshotTime() {
+		return lastSnapshotTime;
+	}
+
+	/**
+	 * 是否正在写快照
+	 * 
+	 * @return
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * 取得快照状态
+	 * 
+	 * @param end
+	 * @return
+	 */
+	public String getStatusString(String end) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("snapshot interval seconds: ").append(intervalMillis / 1000).append(", max kb/s: ")
+				.append(throttle == null ? "unlimited" : String.valueOf(throttle.getRate() / 1024)).append(", block kb: ").append(blockBytes / 1024)
+				.append(", compress: ").append(codec == SnapshotFormat.CODEC_DEFLATE ? "deflate" : "none").append(", running: ").append(running).append(end);
+		sb.append("last snapshot ").append(lastBase ? "base" : "delta").append(" entries/bytes/ms: ").append(lastEntries).append("/").append(lastBytes)
+				.append("/").append(lastMillis).append(", max chunk lock us: ").append(lastMaxChunkMicros).append(", failed: ").append(failedCount).append(end);
+		sb.append("max deltas: ").append(maxDeltas).append(", max delta percent: ").append(deltaMaxPercent).append(", deltas since base: ")
+				.append(deltaCount).append(", delta/base bytes: ").append(deltaBytes).append("/").append(baseBytes);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import org.ddpush.im.util.UuidMap;
+
+/**
+ * 分层状态存储，活跃客户端在热存储(堆内或堆外)，长时间未活跃的由spill移入冷存储，
+ * 心跳或推送acquire时在热存储中找不到的从冷存储取回
+ */
+public class TieredStateStore implements ClientStateStore {
+
+	/** 分块遍历游标中的冷存储阶段标记 */
+	private static final long COLD_PHASE = 1L << 62;
+
+	/** 热存储 */
+	private final ClientStateStore hot;
+	/** 冷存储 */
+	private final ColdStore cold;
+	/** 热存储中客户端的过期索引，取回的客户端放回其中，之后空闲时可再次移出 */
+	private final ExpiryIndex hotExpiry;
+
+	/**
+	 * 初始化
+	 * 
+	 * @param hot
+	 * @param cold
+	 * @param hotExpiry
+	 */
+	public TieredStateStore(ClientStateStore hot, ColdStore cold, ExpiryIndex hotExpiry) {
+		this.hot = hot;
+		this.cold = cold;
+		this.hotExpiry = hotExpiry;
+	}
+
+	public ClientStatMachine acquire(long msb, long lsb) {
+		ClientStatMachine csm = hot.acquire(msb, lsb);
+		if (csm != null) {
+			return csm;
+		}
+		boolean acquired = false;
+		try {
+			// 取回与放入热存储在冷存储锁内完成，并发的acquire在此之后才会确认冷存储中没有
+			synchronized (cold) {
+				ClientStatMachine faulted = cold.take(msb, lsb);
+				if (faulted == null) {
+					// 堆内存储取得时不加锁，并发的acquire可能已先取回放入热存储，再从热存储取得
+					csm = hot.get(msb, lsb) == null ? null : hot.acquire(msb, lsb);
+				} else {
+					csm = hot.create(msb, lsb, faulted);
+					if (csm == faulted) {
+						hotExpiry.add(msb, lsb, faulted.getLastTick());
+					}
+				}
+			}
+			acquired = true;
+			return csm;
+		} finally {
+			// 包括Error在内的任何异常都要归还热存储的持有，否则堆外存储的段锁永远不会释放
+			if (acquired == false) {
+				hot.release(msb, lsb, null);
+			}
+		}
+	}
+
+	public ClientStatMachine create(long msb, long lsb, ClientStatMachine csm) {
+		return hot.create(msb, lsb, csm);
+	}
+
+	public void release(long msb, long lsb, ClientStatMachine csm) {
+		hot.release(msb, lsb, csm);
+	}
+
+	public ClientStatMachine get(long msb, long lsb) {
+		ClientStatMachine csm = hot.get(msb, lsb);
+		return csm != null ? csm : cold.get(msb, lsb);
+	}
+
+	public boolean put(long msb, long lsb, ClientStatMachine csm) {
+		// 与spill和取回相同，先持有热存储中的该客户端(堆外存储为段锁，堆内存储为持有计数，期间不会被移出)，再从冷存储删除；
+		// 冷存储为空时(如启动时加载快照)不取冷存储锁，并行加载互不等待
+		ClientStatMachine exist = hot.acquire(msb, lsb);
+		boolean added = false;
+		try {
+			boolean wasCold = exist == null && cold.isEmpty() == false && cold.remove(msb, lsb) != null;
+			added = hot.put(msb, lsb, csm) == true && wasCold == false;
+		} finally {
+			// 堆外存储release时写回，传入新放入的状态机；堆内存储被替换的状态机已不在map中，无需归还持有
+			hot.release(msb, lsb, exist == null ? null : csm);
+		}
+		return added;
+	}
+
+	public ClientStatMachine remove(long msb, long lsb) {
+		ClientStatMachine csm = hot.remove(msb, lsb);
+		return csm != null ? csm : cold.remove(msb, lsb);
+	}
+
+	public void forEach(final UuidMap.Visitor<ClientStatMachine> visitor) {
+		final boolean[] stopped = new boolean[1];
+		hot.forEach(new UuidMap.Visitor<ClientStatMachine>() {
+			public boolean visit(long msb, long lsb, ClientStatMachine csm) {
+				stopped[0] = visitor.visit(msb, lsb, csm) == false;
+				return stopped[0] == false;
+			}
+		});
+		if (stopped[0] == false) {
+			cold.forEach(visitor);
+		}
+	}
+
+	public int removeIf(UuidMap.Filter<ClientStatMachine> filter) {
+		return hot.removeIf(filter) + cold.removeIf(filter);
+	}
+
+	/**
+	 * 先遍历热存储的分片，再遍历冷存储按分片数平分的对应部分，游标第62位标记冷存储阶段
+	 */
+	public long forEachChunk(int shard, long cursor, int maxSlots, boolean dirtyOnly, UuidMap.Visitor<ClientStatMachine> visitor) {
+		if ((cursor & COLD_PHASE) == 0) {
+			long next = hot.forEachChunk(shard, cursor, maxSlots, dirtyOnly, visitor);
+			if (next >= 0) {
+				return next;
+			}
+			cursor = COLD_PHASE;
+		}
+		long next = cold.forEachChunk(shard, hot.getShardNum(), cursor & ~COLD_PHASE, maxSlots, dirtyOnly, visitor);
+		return next < 0 ? -1 : next | COLD_PHASE;
+	}
+
+	public long expire(long msb, long lsb, long expireBefore) {
+		long lastTick = hot.expire(msb, lsb, expireBefore);
+		return lastTick >= 0 ? lastTick : cold.expire(msb, lsb, expireBefore);
+	}
+
+	public long spill(long msb, long lsb, long idleBefore, ColdStore cold) {
+		long lastTick = hot.spill(msb, lsb, idleBefore, cold);
+		// 已在冷存储的只读索引，由调用者转入冷存储的过期索引
+		return lastTick >= 0 ? lastTick : cold.getLastTick(msb, lsb);
+	}
+
+	public long getReclaimedBytes() {
+		return hot.getReclaimedBytes() + cold.getReclaimedBytes();
+	}
+
+	/**
+	 * 热存储与冷存储的个数之和
+	 */
+	public int size() {
+		return hot.size() + cold.size();
+	}
+
+	public int getShardNum() {
+		return hot.getShardNum();
+	}
+
+	public long getCapacity() {
+		return hot.getCapacity();
+	}
+
+	public String getName() {
+		return hot.getName() + "+cold";
+	}
+
+	public long getOffHeapBytes() {
+		return hot.getOffHeapBytes();
+	}
+
+	/**
+	 * 取得热存储中的个数
+	 * 
+	 * @return
+	 */
+	public int getHotSize() {
+		return hot.size();
+	}
+
+	/**
+	 * 取得冷存储
+	 * 
+	 * @return
+	 */
+	public ColdStore getColdStore() {
+		return cold;
+	}
+}
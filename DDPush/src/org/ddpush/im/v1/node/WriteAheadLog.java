@@ -0,0 +1,624 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.ddpush.im.util.PropertyUtil;
+
+/**
+ * 预写日志，记录推送接受和客户端确认引起的状态变化，启动时在快照之上重放
+ * 确认在状态机锁内、推送在状态存储release之后追加到内存缓冲，后台线程把积累的一批一次写出并按策略刷盘(组提交)；
+ * 快照开始前切换到新段，快照完成后删除旧段，重放的记录都是覆盖或置位清位，重复执行结果不变
+ * 写出或刷盘失败时保留这一批，稍后换到新段整批重写，失败期间等待刷盘的推送立即返回失败；
+ * 追加者持有状态锁，不能无限等待：失败期间或记录超过缓冲时直接丢弃，缓冲满时最多等待WAL_APPEND_WAIT_MS后丢弃，丢弃后下次快照写全量；
+ * 旧段尾部不完整的记录只结束该段的重放，之后的段照常重放
+ * 记录格式：长度(4) crc32(4) 类型(1) msb(8) lsb(8) 时间(8) 内容
+ */
+public class WriteAheadLog implements Runnable {
+
+	/** 是否启用 */
+	public static final boolean ENABLED = "YES".equalsIgnoreCase(PropertyUtil.getProperty("WAL_ENABLE"));
+
+	/** 推送通用消息 */
+	static final int PUSH_0X10 = 1;
+	/** 推送分类消息，内容为8字节分类 */
+	static final int PUSH_0X11 = 2;
+	/** 推送自定义消息，内容为消息 */
+	static final int PUSH_0X20 = 3;
+	/** 确认通用消息 */
+	static final int ACK_0X10 = 4;
+	/** 确认分类消息，内容为8字节确认的分类 */
+	static final int ACK_0X11 = 5;
+	/** 确认自定义消息 */
+	static final int ACK_0X20 = 6;
+
+	/** 刷盘策略：每批写出后刷盘，推送在刷盘后才回应 */
+	private static final int FSYNC_ALWAYS = 0;
+	/** 刷盘策略：按间隔刷盘，推送不等待 */
+	private static final int FSYNC_INTERVAL = 1;
+	/** 刷盘策略：只写入操作系统 */
+	private static final int FSYNC_NONE = 2;
+
+	/** 记录头长度 */
+	private static final int HEADER = 4 + 4 + 1 + 8 + 8 + 8;
+	/** 段文件名前缀 */
+	private static final String PREFIX = "wal-";
+	/** 段文件名后缀 */
+	private static final String SUFFIX = ".log";
+	/** 写盘失败后重试的间隔，毫秒 */
+	private static final long RETRY_MILLIS = 1000;
+
+	/** 单例 */
+	private static WriteAheadLog wal;
+	/** 写线程 */
+	private static Thread writer;
+
+	/** 段文件目录 */
+	private final File dir;
+	/** 刷盘策略 */
+	private final int fsyncPolicy;
+	/** 按间隔刷盘的毫秒数 */
+	private final long fsyncIntervalMillis;
+	/** 缓冲满时追加者最多等待的毫秒数 */
+	private final long appendWaitMillis;
+	/** 追加中的缓冲 */
+	private ByteBuffer active;
+	/** 写出中的缓冲 */
+	private ByteBuffer flushing;
+	/** 当前段 */
+	private FileChannel channel;
+	/** 当前段号 */
+	private long segment;
+	/** 已追加的字节数 */
+	private long appended = 0;
+	/** 已写出的字节数 */
+	private long written = 0;
+	/** 已刷盘的字节数 */
+	private long durable = 0;
+	/** 是否有待执行的换段 */
+	private boolean rotateRequested = false;
+	/** 最后一次换段关闭的段号 */
+	private long rotatedSegment = -1;
+	/** 停止标志位 */
+	private boolean stoped = false;
+	/** 最近一次写出或刷盘失败，尚未重写成功 */
+	private boolean failing = false;
+	/** 上次快照之后有丢弃的记录，下次快照须写全量 */
+	private boolean dropped = false;
+	private final CRC32 crc = new CRC32();
+	/** 写出的批数 */
+	private volatile long batchCount = 0;
+	/** 刷盘次数 */
+	private volatile long fsyncCount = 0;
+	/** 写盘失败次数 */
+	private volatile long failedCount = 0;
+	/** 丢弃的记录数 */
+	private volatile long droppedCount = 0;
+
+	private WriteAheadLog(File dir, long segment) throws Exception {
+		this.dir = dir;
+		String policy = PropertyUtil.getProperty("WAL_FSYNC");
+		if ("interval".equalsIgnoreCase(policy)) {
+			fsyncPolicy = FSYNC_INTERVAL;
+		} else if ("none".equalsIgnoreCase(policy)) {
+			fsyncPolicy = FSYNC_NONE;
+		} else {
+			fsyncPolicy = FSYNC_ALWAYS;
+		}
+		fsyncIntervalMillis = Math.max(1, PropertyUtil.getPropertyInt("WAL_FSYNC_INTERVAL_MS"));
+		appendWaitMillis = Math.max(0, PropertyUtil.getPropertyInt("WAL_APPEND_WAIT_MS"));
+		int bufferBytes = Math.max(64, PropertyUtil.getPropertyInt("WAL_BUFFER_KB")) * 1024;
+		active = ByteBuffer.allocate(bufferBytes);
+		flushing = ByteBuffer.allocate(bufferBytes);
+		this.segment = segment;
+		channel = openSegment(segment);
+	}
+
+	private static File getDir() {
+		String dir = PropertyUtil.getProperty("WAL_DIR");
+		File f = new File(dir);
+		if (f.isAbsolute() == false) {
+			f = new File(System.getProperty("user.dir"), dir);
+		}
+		return f;
+	}
+
+	private FileChannel openSegment(long seg) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, PREFIX + seg + SUFFIX), "rw");
+		raf.setLength(0);
+		return raf.getChannel();
+	}
+
+	/**
+	 * 列出段号，升序
+	 */
+	private static long[] listSegments(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return new long[0];
+		}
+		long[] segs = new long[files.length];
+		int n = 0;
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+				try {
+					segs[n++] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					;
+				}
+			}
+		}
+		segs = Arrays.copyOf(segs, n);
+		Arrays.sort(segs);
+		return segs;
+	}
+
+	/**
+	 * 重放目录中已有的段，之后开始记录，由NodeStatus在读入快照后调用
+	 * 
+	 * @param nodeStatus
+	 */
+	static synchronized void replayAndOpen(NodeStatus nodeStatus) {
+		if (ENABLED == false || wal != null) {
+			return;
+		}
+		File dir = getDir();
+		if (dir.exists() == false && dir.mkdirs() == false) {
+			throw new IllegalArgumentException("can not create wal dir " + dir);
+		}
+		long[] segs = listSegments(dir);
+		long start = System.currentTimeMillis();
+		int replayed = 0;
+		for (int i = 0; i < segs.length; i++) {
+			replayed += replaySegment(new File(dir, PREFIX + segs[i] + SUFFIX), nodeStatus);
+		}
+		if (segs.length > 0) {
+			System.out.println("wal replayed " + replayed + " records of " + segs.length + " segments in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		try {
+			wal = new WriteAheadLog(dir, segs.length == 0 ? 0 : segs[segs.length - 1] + 1);
+		} catch (Exception e) {
+			throw new IllegalStateException("can not open wal in " + dir, e);
+		}
+		writer = new Thread(wal, "IMServer-wal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * 重放一个段，遇到不完整或校验失败的记录时停止，即崩溃时未写完的尾部
+	 */
+	private static int replaySegment(File f, NodeStatus nodeStatus) {
+		int replayed = 0;
+		FileChannel fc = null;
+		try {
+			fc = new FileInputStream(f).getChannel();
+			ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			CRC32 crc = new CRC32();
+			byte[] record = new byte[256];
+			while (bb.remaining() >= HEADER) {
+				int len = bb.getInt(bb.position());
+				if (len < HEADER || len > bb.remaining()) {
+					break;
+				}
+				if (record.length < len) {
+					record = new byte[len];
+				}
+				bb.get(record, 0, len);
+				crc.reset();
+				crc.update(record, 8, len - 8);
+				ByteBuffer r = ByteBuffer.wrap(record, 0, len);
+				r.getInt();
+				if (r.getInt() != (int) crc.getValue()) {
+					break;
+				}
+				int type = r.get();
+				long msb = r.getLong();
+				long lsb = r.getLong();
+				long time = r.getLong();
+				long value = 0;
+				byte[] data = null;
+				if (type == PUSH_0X11 || type == ACK_0X11) {
+					value = r.getLong();
+				} else if (type == PUSH_0X20) {
+					data = new byte[r.remaining()];
+					r.get(data);
+				}
+				nodeStatus.replay(msb, lsb, type, time, value, data);
+				replayed++;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (fc != null) {
+				try {
+					fc.close();
+				} catch (Exception e) {
+					;
+				}
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * 追加一条记录，确认应在状态机锁内调用以保证同一客户端的记录顺序；推送在锁外追加，与确认颠倒时重放后只会多下发一次
+	 * 
+	 * @param type
+	 * @param msb
+	 * @param lsb
+	 * @param time
+	 * @param value
+	 *            分类消息的类型使用
+	 * @param data
+	 *            自定义消息的内容
+	 * @return 未启用返回true，记录被丢弃或已停止返回false
+	 */
+	static boolean append(int type, long msb, long lsb, long time, long value, byte[] data) {
+		WriteAheadLog w = wal;
+		if (w != null) {
+			return w.doAppend(type, msb, lsb, time, value, data);
+		}
+		return true;
+	}
+
+	private synchronized boolean doAppend(int type, long msb, long lsb, long time, long value, byte[] data) {
+		int len = HEADER;
+		if (type == PUSH_0X11 || type == ACK_0X11) {
+			len += 8;
+		} else if (data != null) {
+			len += data.length;
+		}
+		if (failing == true || len > active.capacity()) {
+			return drop();
+		}
+		long deadline = System.currentTimeMillis() + appendWaitMillis;
+		while (active.remaining() < len && stoped == false) {
+			// 缓冲已满，限时等待写出，写线程失败重试期间不会交换缓冲
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0 || failing == true) {
+				return drop();
+			}
+			try {
+				this.wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return drop();
+			}
+		}
+		if (stoped == true) {
+			return false;
+		}
+		int start = active.position();
+		active.putInt(len);
+		active.putInt(0);
+		active.put((byte) type);
+		active.putLong(msb);
+		active.putLong(lsb);
+		active.putLong(time);
+		if (type == PUSH_0X11 || type == ACK_0X11) {
+			active.putLong(value);
+		} else if (data != null) {
+			active.put(data);
+		}
+		crc.reset();
+		crc.update(active.array(), start + 8, len - 8);
+		active.putInt(start + 4, (int) crc.getValue());
+		appended += len;
+		if (start == 0) {
+			this.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * 丢弃一条记录，内存中的变化由下次全量快照保存
+	 * 
+	 * @return false
+	 */
+	private boolean drop() {
+		droppedCount++;
+		if (dropped == false) {
+			dropped = true;
+			System.out.println("wal dropped records, the next snapshot will be a full one");
+		}
+		return false;
+	}
+
+	/**
+	 * 取得并清除丢弃标记，由快照在选择全量或增量前调用
+	 * 
+	 * @return 上次调用之后有丢弃的记录返回true
+	 */
+	static boolean takeDropped() {
+		WriteAheadLog w = wal;
+		if (w == null) {
+			return false;
+		}
+		synchronized (w) {
+			boolean d = w.dropped;
+			w.dropped = false;
+			return d;
+		}
+	}
+
+	/**
+	 * 取得丢弃的记录数
+	 * 
+	 * @return
+	 */
+	static long getDroppedCount() {
+		WriteAheadLog w = wal;
+		return w == null ? 0 : w.droppedCount;
+	}
+
+	/**
+	 * 等待之前追加的记录按策略持久化，ALWAYS策略下等待刷盘，其他策略立即返回
+	 * 
+	 * @return 写盘失败、停止或被中断而未能持久化时返回false
+	 */
+	public static boolean sync() {
+		WriteAheadLog w = wal;
+		if (w != null && w.fsyncPolicy == FSYNC_ALWAYS) {
+			return w.awaitDurable();
+		}
+		return true;
+	}
+
+	private synchronized boolean awaitDurable() {
+		long target = appended;
+		while (durable < target) {
+			if (failing == true || stoped == true) {
+				return false;
+			}
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 换到新段，由快照在遍历前调用，之前追加的记录都在返回的段及更早的段中
+	 * 
+	 * @return 关闭的段号，未启用返回-1
+	 */
+	static long rotate() {
+		WriteAheadLog w = wal;
+		return w == null ? -1 : w.doRotate();
+	}
+
+	private synchronized long doRotate() {
+		rotateRequested = true;
+		this.notifyAll();
+		while (rotateRequested == true && stoped == false) {
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+		return rotatedSegment;
+	}
+
+	/**
+	 * 删除不晚于指定段号的段，由快照完成后调用
+	 * 
+	 * @param seg
+	 */
+	static void deleteUpTo(long seg) {
+		WriteAheadLog w = wal;
+		if (w == null || seg < 0) {
+			return;
+		}
+		long[] segs = listSegments(w.dir);
+		for (int i = 0; i < segs.length && segs[i] <= seg; i++) {
+			new File(w.dir, PREFIX + segs[i] + SUFFIX).delete();
+		}
+	}
+
+	/**
+	 * 写出剩余记录后停止
+	 */
+	public static void close() {
+		WriteAheadLog w = wal;
+		if (w != null) {
+			w.doClose();
+		}
+	}
+
+	private void doClose() {
+		synchronized (this) {
+			// 写线程写完剩余记录、刷盘并关闭段后退出
+			stoped = true;
+			this.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastFsync = System.currentTimeMillis();
+		// flushing中保留着写盘失败的一批
+		boolean retry = false;
+		long batchEnd = 0;
+		while (true) {
+			boolean rotate;
+			boolean stopping;
+			synchronized (this) {
+				if (retry == true && stoped == false) {
+					try {
+						this.wait(RETRY_MILLIS);
+					} catch (InterruptedException e) {
+						;
+					}
+				}
+				while (retry == false && active.position() == 0 && rotateRequested == false && stoped == false) {
+					try {
+						if (fsyncPolicy == FSYNC_INTERVAL && written > durable) {
+							long wait = lastFsync + fsyncIntervalMillis - System.currentTimeMillis();
+							if (wait <= 0) {
+								break;
+							}
+							this.wait(wait);
+						} else {
+							this.wait();
+						}
+					} catch (InterruptedException e) {
+						;
+					}
+				}
+				stopping = stoped;
+				rotate = rotateRequested;
+				if (retry == false) {
+					ByteBuffer t = flushing;
+					flushing = active;
+					active = t;
+					active.clear();
+					flushing.flip();
+					batchEnd = appended;
+					// 缓冲已交换，唤醒等待空间的追加者
+					this.notifyAll();
+				}
+			}
+			boolean synced = false;
+			long closed = -1;
+			try {
+				if (retry == true) {
+					// 失败段的尾部可能不完整，换到新段从头重写这一批，已写出的记录重放两次结果不变
+					try {
+						// 尽量让失败前写出的批次落盘
+						channel.force(false);
+					} catch (Exception e) {
+						;
+					}
+					reopenSegment();
+					flushing.rewind();
+				}
+				if (flushing.hasRemaining()) {
+					batchCount++;
+				}
+				while (flushing.hasRemaining()) {
+					channel.write(flushing);
+				}
+				long now = System.currentTimeMillis();
+				if (fsyncPolicy == FSYNC_ALWAYS || rotate == true || stopping == true || retry == true
+						|| (fsyncPolicy == FSYNC_INTERVAL && now - lastFsync >= fsyncIntervalMillis)) {
+					channel.force(false);
+					fsyncCount++;
+					lastFsync = now;
+					synced = true;
+				}
+				if (stopping == true) {
+					channel.close();
+				} else if (rotate == true) {
+					closed = segment;
+					reopenSegment();
+				}
+				flushing.clear();
+				retry = false;
+			} catch (Exception e) {
+				failedCount++;
+				e.printStackTrace();
+				retry = true;
+			}
+			synchronized (this) {
+				failing = retry;
+				if (retry == false) {
+					written = batchEnd;
+					if (synced == true || fsyncPolicy == FSYNC_NONE) {
+						durable = batchEnd;
+					}
+					if (rotate == true) {
+						rotatedSegment = closed;
+						rotateRequested = false;
+					}
+				}
+				// 失败时written和durable都不前进，等待刷盘的推送返回失败
+				this.notifyAll();
+			}
+			if (stopping == true) {
+				if (retry == true) {
+					System.out.println("wal stopped with " + (appended - written) + " bytes not written");
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 关闭当前段，打开下一个段
+	 * 
+	 * @throws Exception
+	 */
+	private void reopenSegment() throws Exception {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (Exception e) {
+				;
+			}
+			channel = null;
+		}
+		FileChannel fc = openSegment(segment + 1);
+		synchronized (this) {
+			segment++;
+		}
+		channel = fc;
+	}
+
+	/**
+	 * 取得状态
+	 * 
+	 * @param end
+	 * @return 未启用返回null
+	 */
+	static String getStatusString(String end) {
+		WriteAheadLog w = wal;
+		if (w == null) {
+			return null;
+		}
+		StringBuffer sb = new StringBuffer();
+		synchronized (w) {
+			sb.append("wal segment: ").append(w.segment).append(", fsync: ")
+					.append(w.fsyncPolicy == FSYNC_ALWAYS ? "always" : (w.fsyncPolicy == FSYNC_INTERVAL ? "interval" : "none")).append(end);
+			sb.append("wal appended/written/durable bytes: ").append(w.appended).append("/").append(w.written).append("/").append(w.durable).append(end);
+		}
+		sb.append("wal batches/fsyncs/failed: ").append(w.batchCount).append("/").append(w.fsyncCount).append("/").append(w.failedCount).append(end);
+		sb.append("wal dropped records: ").append(w.droppedCount);
+		return sb.toString();
+	}
+}
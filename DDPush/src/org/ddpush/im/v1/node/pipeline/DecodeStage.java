@@ -0,0 +1,59 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node.pipeline;
+
+import org.ddpush.im.v1.node.ClientMessage;
+
+/**
+ * 解码阶段：从UDP接收队列取消息，解析uuid，按uuid分派到状态阶段
+ */
+public class DecodeStage extends Stage {
+
+	public DecodeStage(UdpPipeline pipeline, int index) {
+		super(pipeline, index);
+	}
+
+	@Override
+	protected void register() {
+		pipeline.connector.registerWorker(index, Thread.currentThread());
+	}
+
+	@Override
+	protected boolean processEvent() throws Exception {
+		ClientMessage m = pipeline.connector.receive(index);
+		if (m == null) {
+			return false;
+		}
+		long start = System.nanoTime();
+		PipelineEvent e = pipeline.obtainEvent();
+		e.message = m;
+		e.uuidMsb = m.getUuidMsb();
+		e.uuidLsb = m.getUuidLsb();
+		e.uuidHash = m.getUuidHash();
+		pipeline.decodeMetrics.record(System.nanoTime() - start);
+		pipeline.toState(e);
+		return true;
+	}
+
+	@Override
+	protected void await() {
+		pipeline.connector.awaitMessage(index);
+	}
+}
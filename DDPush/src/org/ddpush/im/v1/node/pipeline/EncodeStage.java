@@ -0,0 +1,72 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node.pipeline;
+
+import org.ddpush.im.v1.node.ReplyPlan;
+import org.ddpush.im.v1.node.ServerMessage;
+import org.ddpush.im.v1.node.udpconnector.MessageQueue;
+
+/**
+ * 编码阶段：按回应计划生成服务端消息，交给UDP发送队列
+ */
+public class EncodeStage extends Stage {
+
+	/** 本线程的输入队列 */
+	protected MessageQueue<PipelineEvent> queue;
+	/** 等待时检查的队列 */
+	protected MessageQueue<?>[] waitQueues;
+	/** 编码结果，本线程复用 */
+	protected ServerMessage[] replies = new ServerMessage[ReplyPlan.MAX_REPLIES];
+
+	public EncodeStage(UdpPipeline pipeline, int index, MessageQueue<PipelineEvent> queue) {
+		super(pipeline, index);
+		this.queue = queue;
+		this.waitQueues = new MessageQueue<?>[] { queue };
+	}
+
+	@Override
+	protected void register() {
+		pipeline.encodeSignal.register(index, Thread.currentThread());
+	}
+
+	@Override
+	protected boolean processEvent() throws Exception {
+		PipelineEvent e = queue.poll();
+		if (e == null) {
+			return false;
+		}
+		try {
+			int n = e.plan.encode(replies);
+			for (int i = 0; i < n; i++) {
+				pipeline.connector.send(replies[i]);
+				replies[i] = null;
+			}
+		} finally {
+			pipeline.encodeMetrics.record(System.nanoTime() - e.enqueueTime);
+			pipeline.recycle(e);
+		}
+		return true;
+	}
+
+	@Override
+	protected void await() {
+		pipeline.encodeSignal.await(index, waitQueues);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node.pipeline;
+
+import org.ddpush.im.v1.node.ClientMessage;
+import org.ddpush.im.v1.node.ReplyPlan;
+
+/**
+ * 流水线事件，预分配并在各阶段间传递，处理完毕后回收复用
+ */
+public class PipelineEvent {
+
+	/** 客户端消息，状态阶段处理后归还消息池 */
+	ClientMessage message;
+	/** 解码出的uuid高8字节 */
+	long uuidMsb;
+	/** 解码出的uuid低8字节 */
+	long uuidLsb;
+	/** uuid散列，用于选择状态阶段线程 */
+	int uuidHash;
+	/** 状态机记录的回应计划 */
+	final ReplyPlan plan = new ReplyPlan();
+	/** 进入当前阶段队列的时间，纳秒 */
+	long enqueueTime;
+
+	/**
+	 * 清空，准备复用
+	 */
+	void reset() {
+		message = null;
+		uuidMsb = 0;
+		uuidLsb = 0;
+		uuidHash = 0;
+		plan.reset();
+		enqueueTime = 0;
+	}
+}
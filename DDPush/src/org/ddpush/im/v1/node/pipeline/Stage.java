@@ -0,0 +1,76 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node.pipeline;
+
+/**
+ * 流水线阶段线程，反复处理一个事件，无事件时自旋后park等待上游唤醒
+ */
+public abstract class Stage implements Runnable {
+
+	/** 所属流水线 */
+	protected UdpPipeline pipeline;
+	/** 本阶段内的线程序号 */
+	protected int index;
+	/** 停止状态位 */
+	protected volatile boolean stoped = false;
+
+	public Stage(UdpPipeline pipeline, int index) {
+		this.pipeline = pipeline;
+		this.index = index;
+	}
+
+	@Override
+	public void run() {
+		register();
+		while (stoped == false) {
+			try {
+				if (processEvent() == false) {
+					await();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	public void stop() {
+		this.stoped = true;
+	}
+
+	/**
+	 * 登记本线程，以便上游唤醒
+	 */
+	protected abstract void register();
+
+	/**
+	 * 处理一个事件
+	 * 
+	 * @return 没有事件时返回false
+	 * @throws Exception
+	 */
+	protected abstract boolean processEvent() throws Exception;
+
+	/**
+	 * 无事件时等待
+	 */
+	protected abstract void await();
+}
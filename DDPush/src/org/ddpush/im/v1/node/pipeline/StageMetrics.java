@@ -0,0 +1,83 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流水线阶段统计：处理数、排队加处理的延迟
+ */
+public class StageMetrics {
+
+	/** 阶段名 */
+	private String name;
+	/** 处理数 */
+	private AtomicLong processed = new AtomicLong(0);
+	/** 延迟合计，纳秒 */
+	private AtomicLong latencyTotal = new AtomicLong(0);
+	/** 最大延迟，纳秒 */
+	private AtomicLong latencyMax = new AtomicLong(0);
+
+	public StageMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * 记录一个事件的延迟
+	 * 
+	 * @param latency
+	 *            纳秒
+	 */
+	public void record(long latency) {
+		processed.addAndGet(1);
+		latencyTotal.addAndGet(latency);
+		long max = latencyMax.get();
+		while (latency > max && latencyMax.compareAndSet(max, latency) == false) {
+			max = latencyMax.get();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getProcessed() {
+		return processed.longValue();
+	}
+
+	/**
+	 * 取得平均延迟，微秒
+	 * 
+	 * @return
+	 */
+	public long getAvgLatencyMicros() {
+		long n = processed.longValue();
+		return n == 0 ? 0 : latencyTotal.longValue() / n / 1000;
+	}
+
+	/**
+	 * 取得最大延迟，微秒
+	 * 
+	 * @return
+	 */
+	public long getMaxLatencyMicros() {
+		return latencyMax.longValue() / 1000;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node.pipeline;
+
+import org.ddpush.im.v1.node.ClientMessage;
+import org.ddpush.im.v1.node.ClientStatMachine;
+import org.ddpush.im.v1.node.udpconnector.MessageQueue;
+
+/**
+ * 状态阶段：查找或创建状态机，处理客户端消息并记录回应计划，同一uuid总是由同一线程处理
+ */
+public class StateStage extends Stage {
+
+	/** 本线程的输入队列 */
+	protected MessageQueue<PipelineEvent> queue;
+	/** 等待时检查的队列 */
+	protected MessageQueue<?>[] waitQueues;
+
+	public StateStage(UdpPipeline pipeline, int index, MessageQueue<PipelineEvent> queue) {
+		super(pipeline, index);
+		this.queue = queue;
+		this.waitQueues = new MessageQueue<?>[] { queue };
+	}
+
+	@Override
+	protected void register() {
+		pipeline.stateSignal.register(index, Thread.currentThread());
+	}
+
+	@Override
+	protected boolean processEvent() throws Exception {
+		PipelineEvent e = queue.poll();
+		if (e == null) {
+			return false;
+		}
+		ClientMessage m = e.message;
+		boolean reply = false;
+		try {
+			ClientStatMachine csm = pipeline.nodeStat.acquire(e.uuidMsb, e.uuidLsb);
+			try {
+				if (csm == null) {
+					// 如果状态机不存在，创建新的状态机
+					csm = ClientStatMachine.newByClientTick(m);
+					if (csm != null) {
+						csm = pipeline.nodeStat.createClientStat(e.uuidMsb, e.uuidLsb, csm);
+					}
+				}
+				if (csm != null) {
+					reply = csm.onClientMessage(m, e.plan) && e.plan.getAddress() != null;
+				}
+			} finally {
+				pipeline.nodeStat.release(e.uuidMsb, e.uuidLsb, csm);
+			}
+		} finally {
+			// 回应计划已复制所需内容，消息可以归还
+			e.message = null;
+			pipeline.connector.release(m);
+			pipeline.stateMetrics.record(System.nanoTime() - e.enqueueTime);
+			if (reply == false) {
+				pipeline.recycle(e);
+			}
+		}
+		if (reply == true) {
+			pipeline.toEncode(e, index);
+		}
+		return true;
+	}
+
+	@Override
+	protected void await() {
+		pipeline.stateSignal.await(index, waitQueues);
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ *Copyright 2014 DDPush
+ *Author: AndyKwok(in English) GuoZhengzhu(in Chinese)
+ *Email: ddpush@126.com
+ *
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.ddpush.im.v1.node.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.RingQueue;
+import org.ddpush.im.util.ThreadUtil;
+import org.ddpush.im.v1.node.NodeStatus;
+import org.ddpush.im.v1.node.udpconnector.MessageQueue;
+import org.ddpush.im.v1.node.udpconnector.UdpConnector;
+import org.ddpush.im.v1.node.udpconnector.WorkerSignal;
+
+/**
+ * UDP分阶段流水线：解码 → 状态 → 编码 → 发送，阶段间用预分配的定长环形队列连接，各阶段线程数独立配置，
+ * 发送阶段即UdpConnector的发送线程
+ */
+public class UdpPipeline {
+
+	/** UDP处理者 */
+	UdpConnector connector;
+	/** 节点状态机 */
+	NodeStatus nodeStat;
+	/** 解码线程数，与接收队列的处理线程数一致 */
+	protected int decodeNum = PropertyUtil.getPropertyInt("CLIENT_UDP_WORKER_THREAD");
+	/** 状态线程数 */
+	protected int stateNum = PropertyUtil.getPropertyInt("PIPELINE_STATE_THREAD");
+	/** 编码线程数 */
+	protected int encodeNum = PropertyUtil.getPropertyInt("PIPELINE_ENCODE_THREAD");
+	/** 阶段间每个队列的长度 */
+	protected int ringSize = PropertyUtil.getPropertyInt("PIPELINE_RING_SIZE");
+	/** 空闲事件 */
+	protected RingQueue<PipelineEvent> freeEvents;
+	/** 空闲事件不足时新分配的事件数 */
+	protected AtomicLong allocated = new AtomicLong(0);
+	/** 状态阶段输入队列，每线程一个 */
+	protected MessageQueue<PipelineEvent>[] stateQueues;
+	/** 编码阶段输入队列，每线程一个 */
+	protected MessageQueue<PipelineEvent>[] encodeQueues;
+	/** 状态线程唤醒器 */
+	WorkerSignal stateSignal;
+	/** 编码线程唤醒器 */
+	WorkerSignal encodeSignal;
+	/** 解码阶段统计 */
+	StageMetrics decodeMetrics = new StageMetrics("decode");
+	/** 状态阶段统计 */
+	StageMetrics stateMetrics = new StageMetrics("state");
+	/** 编码阶段统计 */
+	StageMetrics encodeMetrics = new StageMetrics("encode");
+	/** 全部阶段 */
+	protected Stage[] stages;
+	/** 全部阶段线程 */
+	protected Thread[] threads;
+
+	public UdpPipeline(UdpConnector connector, NodeStatus nodeStat) {
+		this.connector = connector;
+		this.nodeStat = nodeStat;
+	}
+
+	/**
+	 * 是否按配置启用流水线
+	 * 
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return "YES".equalsIgnoreCase(PropertyUtil.getProperty("CLIENT_UDP_PIPELINE"));
+	}
+
+	/**
+	 * 创建队列并启动各阶段线程
+	 */
+	public void start() {
+		if (stateNum < 1) {
+			stateNum = 1;
+		}
+		if (encodeNum < 1) {
+			encodeNum = 1;
+		}
+		int spin = PropertyUtil.getPropertyInt("CLIENT_UDP_WORKER_SPIN");
+		stateQueues = newQueues(stateNum);
+		encodeQueues = newQueues(encodeNum);
+		stateSignal = new WorkerSignal(stateNum, spin);
+		encodeSignal = new WorkerSignal(encodeNum, spin);
+		// 阶段间队列满时阻塞上游，而不是丢弃已解码的消息
+		for (int i = 0; i < stateNum; i++) {
+			stateQueues[i] = new MessageQueue<PipelineEvent>(ringSize, MessageQueue.OVERFLOW_BLOCK);
+		}
+		for (int i = 0; i < encodeNum; i++) {
+			encodeQueues[i] = new MessageQueue<PipelineEvent>(ringSize, MessageQueue.OVERFLOW_BLOCK);
+		}
+		freeEvents = new RingQueue<PipelineEvent>(ringSize * (stateNum + encodeNum));
+		for (int i = 0; i < freeEvents.capacity(); i++) {
+			freeEvents.offer(new PipelineEvent());
+		}
+		stages = new Stage[decodeNum + stateNum + encodeNum];
+		threads = new Thread[stages.length];
+		int k = 0;
+		for (int i = 0; i < decodeNum; i++) {
+			stages[k] = new DecodeStage(this, i);
+			threads[k++] = ThreadUtil.newThread(stages[k - 1], "IMServer-decode-" + i);
+		}
+		for (int i = 0; i < stateNum; i++) {
+			stages[k] = new StateStage(this, i, stateQueues[i]);
+			threads[k++] = ThreadUtil.newThread(stages[k - 1], "IMServer-state-" + i);
+		}
+		for (int i = 0; i < encodeNum; i++) {
+			stages[k] = new EncodeStage(this, i, encodeQueues[i]);
+			threads[k++] = ThreadUtil.newThread(stages[k - 1], "IMServer-encode-" + i);
+		}
+		System.out.println("start udp pipeline, decode:" + decodeNum + " state:" + stateNum + " encode:" + encodeNum + " ring:"
+				+ stateQueues[0].capacity());
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * 停止各阶段线程
+	 */
+	public void stop() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i].stop();
+		}
+		for (int i = 0; i < stateQueues.length; i++) {
+			stateQueues[i].close();
+		}
+		for (int i = 0; i < encodeQueues.length; i++) {
+			encodeQueues[i].close();
+		}
+		stateSignal.signalAll();
+		encodeSignal.signalAll();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected MessageQueue<PipelineEvent>[] newQueues(int num) {
+		return new MessageQueue[num];
+	}
+
+	/**
+	 * 取得空闲事件，不足时新分配
+	 * 
+	 * @return
+	 */
+	PipelineEvent obtainEvent() {
+		PipelineEvent e = freeEvents.poll();
+		if (e == null) {
+			allocated.addAndGet(1);
+			e = new PipelineEvent();
+		}
+		return e;
+	}
+
+	/**
+	 * 回收事件
+	 * 
+	 * @param e
+	 */
+	void recycle(PipelineEvent e) {
+		e.reset();
+		freeEvents.offer(e);
+	}
+
+	/**
+	 * 按uuid交给状态阶段，保证同一uuid的消息顺序处理
+	 * 
+	 * @param e
+	 */
+	void toState(PipelineEvent e) {
+		int i = (e.uuidHash & 0x7fffffff) % stateQueues.length;
+		e.enqueueTime = System.nanoTime();
+		if (stateQueues[i].offer(e, false) == false) {
+			// 已停止
+			connector.release(e.message);
+			recycle(e);
+			return;
+		}
+		stateSignal.signal(i);
+	}
+
+	/**
+	 * 交给编码阶段
+	 * 
+	 * @param e
+	 * @param stateIndex
+	 */
+	void toEncode(PipelineEvent e, int stateIndex) {
+		int i = stateIndex % encodeQueues.length;
+		e.enqueueTime = System.nanoTime();
+		if (encodeQueues[i].offer(e, false) == false) {
+			recycle(e);
+			return;
+		}
+		encodeSignal.signal(i);
+	}
+
+	/**
+	 * 取得各阶段状态：处理数、队列占用和延迟
+	 * 
+	 * @param end
+	 * @return
+	 */
+	public String getStatusString(String end) {
+		StringBuffer sb = new StringBuffer();
+		long inPending = connector.getInqueueIn() - connector.getInqueueOut();
+		sb.append(stageLine(decodeMetrics, decodeNum, inPending, connector.getInqueueCapacity())).append(end);
+		sb.append(stageLine(stateMetrics, stateNum, pending(stateQueues), capacity(stateQueues))).append(end);
+		sb.append(stageLine(encodeMetrics, encodeNum, pending(encodeQueues), capacity(encodeQueues))).append(end);
+		long outPending = connector.getOutqueueIn() - connector.getOutqueueOut();
+		sb.append("pipeline send x").append(connector.getShardNum() * connector.getSenderNum()).append(": processed ")
+				.append(connector.getOutqueueOut()).append(", pending ").append(outPending).append('/').append(connector.getOutqueueCapacity())
+				.append(" (").append(percent(outPending, connector.getOutqueueCapacity())).append("%)").append(end);
+		sb.append("pipeline events free/allocated: ").append(freeEvents.size()).append('/').append(allocated.longValue());
+		return sb.toString();
+	}
+
+	private String stageLine(StageMetrics m, int threads, long pending, long capacity) {
+		return "pipeline " + m.getName() + " x" + threads + ": processed " + m.getProcessed() + ", pending " + pending + "/" + capacity + " ("
+				+ percent(pending, capacity) + "%), latency avg/max " + m.getAvgLatencyMicros() + "/" + m.getMaxLatencyMicros() + " us";
+	}
+
+	private long percent(long pending, long capacity) {
+		return capacity == 0 ? 0 : pending * 100 / capacity;
+	}
+
+	private long pending(MessageQueue<PipelineEvent>[] queues) {
+		long sum = 0;
+		for (int i = 0; i < queues.length; i++) {
+			sum += queues[i].size();
+		}
+		return sum;
+	}
+
+	private long capacity(MessageQueue<PipelineEvent>[] queues) {
+		long sum = 0;
+		for (int i = 0; i < queues.length; i++) {
+			sum += queues[i].capacity();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,112 @@
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ddpush.im.util.RingQueue;
+import org.ddpush.im.v1.node.ClientMessage;
+import org.ddpush.im.v1.node.Constant;
+
+/**
+ * 客户端消息池，接收线程租用，处理线程用完归还，稳定运行时不产生新的消息对象
+ */
+public class ClientMessagePool {
+
+	/** 空闲消息 */
+	protected RingQueue<ClientMessage> free;
+	/** 预分配的消息数 */
+	protected int poolSize;
+	/** 池中无空闲时新分配的消息数 */
+	protected AtomicLong allocated = new AtomicLong(0);
+	/** 归还时池已满被丢弃的消息数 */
+	protected AtomicLong discarded = new AtomicLong(0);
+
+	/**
+	 * 初始化并预分配消息
+	 * 
+	 * @param poolSize
+	 */
+	public ClientMessagePool(int poolSize) {
+		if (poolSize < 1) {
+			poolSize = 1;
+		}
+		this.free = new RingQueue<ClientMessage>(poolSize);
+		this.poolSize = free.capacity();
+		for (int i = 0; i < this.poolSize; i++) {
+			free.offer(newMessage());
+		}
+	}
+
+	/**
+	 * 新建定长的池化消息
+	 * 
+	 * @return
+	 */
+	protected ClientMessage newMessage() {
+		return new ClientMessage(Constant.CLIENT_MESSAGE_MAX_LENGTH);
+	}
+
+	/**
+	 * 租用消息，池空时新分配并计数
+	 * 
+	 * @return
+	 */
+	public ClientMessage lease() {
+		ClientMessage m = free.poll();
+		if (m == null) {
+			allocated.addAndGet(1);
+			m = newMessage();
+		}
+		return m;
+	}
+
+	/**
+	 * 归还消息，非池化消息直接忽略
+	 * 
+	 * @param m
+	 */
+	public void release(ClientMessage m) {
+		if (m == null || m.isPooled() == false) {
+			return;
+		}
+		m.reset();
+		if (free.offer(m) == false) {
+			discarded.addAndGet(1);
+		}
+	}
+
+	/**
+	 * 取得预分配消息数
+	 * 
+	 * @return
+	 */
+	public int getPoolSize() {
+		return this.poolSize;
+	}
+
+	/**
+	 * 取得当前空闲消息数
+	 * 
+	 * @return
+	 */
+	public int getFreeCount() {
+		return free.size();
+	}
+
+	/**
+	 * 取得池外新分配的消息数，稳定运行时应保持为0
+	 * 
+	 * @return
+	 */
+	public long getAllocatedCount() {
+		return allocated.longValue();
+	}
+
+	/**
+	 * 取得归还时被丢弃的消息数
+	 * 
+	 * @return
+	 */
+	public long getDiscardedCount() {
+		return discarded.longValue();
+	}
+}
@@ -0,0 +1,187 @@
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.RingQueue;
+
+/**
+ * 定长消息队列，队列满时按溢出策略丢弃或阻塞，并按原因统计丢弃数
+ */
+public class MessageQueue<T> {
+
+	/** 溢出策略：丢弃新消息 */
+	public static final int OVERFLOW_DROP_NEWEST = 0;
+	/** 溢出策略：队列达到高水位后先丢弃心跳，满后丢弃新消息 */
+	public static final int OVERFLOW_DROP_HEARTBEAT = 1;
+	/** 溢出策略：阻塞入队者直到有空位 */
+	public static final int OVERFLOW_BLOCK = 2;
+	/** 阻塞策略下每次等待的纳秒数 */
+	protected static final long BLOCK_PARK_NANOS = 50 * 1000;
+	/** 配置的溢出策略 */
+	protected static int defaultPolicy;
+	/** 读取溢出策略 */
+	static {
+		String strPolicy = PropertyUtil.getProperty("CLIENT_UDP_QUEUE_OVERFLOW");
+		if ("block".equalsIgnoreCase(strPolicy)) {
+			defaultPolicy = OVERFLOW_BLOCK;
+		} else if ("drop_heartbeat".equalsIgnoreCase(strPolicy)) {
+			defaultPolicy = OVERFLOW_DROP_HEARTBEAT;
+		} else {
+			defaultPolicy = OVERFLOW_DROP_NEWEST;
+		}
+	}
+
+	/** 环形队列 */
+	protected RingQueue<T> ring;
+	/** 溢出策略 */
+	protected int policy;
+	/** 心跳高水位，超过后心跳不再入队 */
+	protected int heartbeatLimit;
+	/** 关闭状态位，关闭后阻塞的入队者立即返回 */
+	protected volatile boolean closed = false;
+	/** 入队计数器 */
+	protected AtomicLong queueIn = new AtomicLong(0);
+	/** 出队计数器 */
+	protected AtomicLong queueOut = new AtomicLong(0);
+	/** 队列满丢弃数 */
+	protected AtomicLong droppedFull = new AtomicLong(0);
+	/** 高水位丢弃的心跳数 */
+	protected AtomicLong droppedHeartbeat = new AtomicLong(0);
+	/** 因队列满而阻塞的入队次数 */
+	protected AtomicLong blocked = new AtomicLong(0);
+
+	/**
+	 * 按配置的溢出策略初始化
+	 * 
+	 * @param capacity
+	 */
+	public MessageQueue(int capacity) {
+		this(capacity, defaultPolicy);
+	}
+
+	/**
+	 * 初始化
+	 * 
+	 * @param capacity
+	 * @param policy
+	 */
+	public MessageQueue(int capacity, int policy) {
+		this.ring = new RingQueue<T>(capacity);
+		this.policy = policy;
+		this.heartbeatLimit = ring.capacity() - ring.capacity() / 4;
+	}
+
+	/**
+	 * 入队
+	 * 
+	 * @param m
+	 * @param heartbeat
+	 *            是否为可优先丢弃的心跳消息
+	 * @return 被丢弃时返回false
+	 */
+	public boolean offer(T m, boolean heartbeat) {
+		if (heartbeat == true && policy == OVERFLOW_DROP_HEARTBEAT && ring.size() >= heartbeatLimit) {
+			droppedHeartbeat.addAndGet(1);
+			return false;
+		}
+		if (ring.offer(m) == false) {
+			if (policy != OVERFLOW_BLOCK) {
+				droppedFull.addAndGet(1);
+				return false;
+			}
+			blocked.addAndGet(1);
+			while (ring.offer(m) == false) {
+				if (closed == true) {
+					droppedFull.addAndGet(1);
+					return false;
+				}
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			}
+		}
+		queueIn.addAndGet(1);
+		return true;
+	}
+
+	/**
+	 * 出队
+	 * 
+	 * @return
+	 */
+	public T poll() {
+		T m = ring.poll();
+		if (m != null) {
+			queueOut.addAndGet(1);
+		}
+		return m;
+	}
+
+	/**
+	 * 关闭，不再阻塞入队者
+	 */
+	public void close() {
+		this.closed = true;
+	}
+
+	/**
+	 * 是否为空
+	 * 
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return ring.isEmpty();
+	}
+
+	/**
+	 * 取得当前长度
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return ring.size();
+	}
+
+	/**
+	 * 取得容量
+	 * 
+	 * @return
+	 */
+	public int capacity() {
+		return ring.capacity();
+	}
+
+	/**
+	 * 取得溢出策略名称
+	 * 
+	 * @return
+	 */
+	public String getPolicyName() {
+		if (policy == OVERFLOW_BLOCK) {
+			return "block";
+		} else if (policy == OVERFLOW_DROP_HEARTBEAT) {
+			return "drop_heartbeat";
+		}
+		return "drop_newest";
+	}
+
+	public long getQueueIn() {
+		return queueIn.longValue();
+	}
+
+	public long getQueueOut() {
+		return queueOut.longValue();
+	}
+
+	public long getDroppedFull() {
+		return droppedFull.longValue();
+	}
+
+	public long getDroppedHeartbeat() {
+		return droppedHeartbeat.longValue();
+	}
+
+	public long getBlocked() {
+		return blocked.longValue();
+	}
+}
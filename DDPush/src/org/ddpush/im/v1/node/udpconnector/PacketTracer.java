@@ -0,0 +1,276 @@
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.ddpush.im.util.DateTimeUtil;
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.RingQueue;
+import org.ddpush.im.util.StringUtil;
+
+/**
+ * UDP数据包跟踪，收发线程只把抽样的数据包复制进预分配的记录并放入无锁队列，由后台线程格式化输出
+ */
+public class PacketTracer implements Runnable {
+
+	/** 是否开启跟踪，关闭时收发线程只做一次常量判断 */
+	public static final boolean ENABLED = "YES".equalsIgnoreCase(PropertyUtil.getProperty("TRACE_ENABLE"));
+	/** 方向：接收 */
+	public static final int DIRECTION_IN = 0;
+	/** 方向：发送 */
+	public static final int DIRECTION_OUT = 1;
+	/** 每条记录保存的最大字节数 */
+	protected static final int MAX_TRACE_BYTES = 64;
+	/** 单例 */
+	private static PacketTracer tracer;
+
+	/** 抽样率，每N个数据包跟踪一个，0为不抽样 */
+	protected int sampleRate;
+	/** 始终跟踪的uuid */
+	protected byte[][] uuidFilters;
+	/** 过滤uuid最后出现的地址，用于跟踪发往该终端的数据包 */
+	protected AtomicReferenceArray<SocketAddress> filterAddrs;
+	/** 空闲记录 */
+	protected RingQueue<TraceRecord> free;
+	/** 待输出记录 */
+	protected RingQueue<TraceRecord> pending;
+	/** 已跟踪数 */
+	protected AtomicLong traced = new AtomicLong(0);
+	/** 记录耗尽而放弃的跟踪数 */
+	protected AtomicLong dropped = new AtomicLong(0);
+
+	static {
+		if (ENABLED == true) {
+			tracer = new PacketTracer();
+			Thread t = new Thread(tracer, "AsynUdpConnector-tracer");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * 跟踪记录
+	 */
+	protected static class TraceRecord {
+		int direction;
+		long time;
+		SocketAddress address;
+		int length;
+		byte[] data = new byte[MAX_TRACE_BYTES];
+	}
+
+	/**
+	 * 初始化，读取抽样率和uuid过滤
+	 */
+	protected PacketTracer() {
+		sampleRate = PropertyUtil.getPropertyInt("TRACE_SAMPLE_RATE");
+		String filter = PropertyUtil.getProperty("TRACE_UUID_FILTER");
+		if (filter == null || filter.trim().length() == 0) {
+			uuidFilters = new byte[0][];
+		} else {
+			String[] uuids = filter.split(",");
+			byte[][] parsed = new byte[uuids.length][];
+			int n = 0;
+			for (int i = 0; i < uuids.length; i++) {
+				String uuid = uuids[i].trim();
+				if (uuid.length() == 0) {
+					continue;
+				}
+				if (isHexUuid(uuid) == false) {
+					// 不是32位十六进制的项无法与16字节uuid比较，跳过
+					System.out.println("udp packet trace ignores invalid uuid filter: " + uuid);
+					continue;
+				}
+				parsed[n++] = StringUtil.hexStringToByteArray(uuid);
+			}
+			uuidFilters = Arrays.copyOf(parsed, n);
+		}
+		filterAddrs = new AtomicReferenceArray<SocketAddress>(uuidFilters.length);
+		int records = PropertyUtil.getPropertyInt("TRACE_BUFFER_RECORDS");
+		free = new RingQueue<TraceRecord>(records);
+		pending = new RingQueue<TraceRecord>(records);
+		for (int i = 0; i < free.capacity(); i++) {
+			free.offer(new TraceRecord());
+		}
+		System.out.println("udp packet trace enabled, sample rate 1/" + sampleRate + ", uuid filters: " + uuidFilters.length);
+	}
+
+	/**
+	 * 跟踪接收到的数据包，调用前应先判断ENABLED
+	 * 
+	 * @param data
+	 * @param length
+	 * @param address
+	 */
+	public static void traceIn(byte[] data, int length, SocketAddress address) {
+		if (tracer == null) {
+			return;
+		}
+		int filter = tracer.matchUuid(data, length);
+		if (filter >= 0) {
+			tracer.filterAddrs.set(filter, address);
+		}
+		if (filter >= 0 || tracer.sample()) {
+			tracer.record(DIRECTION_IN, data, length, address);
+		}
+	}
+
+	/**
+	 * 跟踪发送的数据包，调用前应先判断ENABLED
+	 * 
+	 * @param data
+	 * @param length
+	 * @param address
+	 */
+	public static void traceOut(byte[] data, int length, SocketAddress address) {
+		if (tracer == null) {
+			return;
+		}
+		if (tracer.matchAddress(address) || tracer.sample()) {
+			tracer.record(DIRECTION_OUT, data, length, address);
+		}
+	}
+
+	/**
+	 * 取得已跟踪数
+	 * 
+	 * @return
+	 */
+	public static long getTracedCount() {
+		return tracer == null ? 0 : tracer.traced.longValue();
+	}
+
+	/**
+	 * 取得放弃的跟踪数
+	 * 
+	 * @return
+	 */
+	public static long getDroppedCount() {
+		return tracer == null ? 0 : tracer.dropped.longValue();
+	}
+
+	/**
+	 * 是否抽中
+	 * 
+	 * @return
+	 */
+	protected boolean sample() {
+		if (sampleRate <= 0) {
+			return false;
+		}
+		return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+	}
+
+	/**
+	 * 是否为32位十六进制的uuid
+	 * 
+	 * @param uuid
+	 * @return
+	 */
+	protected static boolean isHexUuid(String uuid) {
+		if (uuid.length() != 32) {
+			return false;
+		}
+		for (int i = 0; i < uuid.length(); i++) {
+			if (Character.digit(uuid.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 匹配过滤uuid，uuid位于客户端消息第3到18字节
+	 * 
+	 * @param data
+	 * @param length
+	 * @return 匹配的过滤序号，未匹配返回-1
+	 */
+	protected int matchUuid(byte[] data, int length) {
+		if (length < 19) {
+			return -1;
+		}
+		for (int i = 0; i < uuidFilters.length; i++) {
+			byte[] uuid = uuidFilters[i];
+			int j = 0;
+			while (j < 16 && uuid[j] == data[3 + j]) {
+				j++;
+			}
+			if (j == 16) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 是否为过滤uuid的最后地址
+	 * 
+	 * @param address
+	 * @return
+	 */
+	protected boolean matchAddress(SocketAddress address) {
+		for (int i = 0; i < uuidFilters.length; i++) {
+			SocketAddress addr = filterAddrs.get(i);
+			if (addr != null && addr.equals(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 复制数据包到空闲记录，无空闲记录时放弃
+	 * 
+	 * @param direction
+	 * @param data
+	 * @param length
+	 * @param address
+	 */
+	protected void record(int direction, byte[] data, int length, SocketAddress address) {
+		TraceRecord r = free.poll();
+		if (r == null) {
+			dropped.addAndGet(1);
+			return;
+		}
+		r.direction = direction;
+		r.time = System.currentTimeMillis();
+		r.address = address;
+		r.length = Math.min(length, MAX_TRACE_BYTES);
+		System.arraycopy(data, 0, r.data, 0, r.length);
+		pending.offer(r);
+		traced.addAndGet(1);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			TraceRecord r = pending.poll();
+			if (r == null) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			try {
+				String time = DateTimeUtil.formatDate(new Date(r.time));
+				String hex = StringUtil.convert(r.data, 0, r.length);
+				if (r.direction == DIRECTION_IN) {
+					System.out.println(time + " r:" + hex + " from:" + r.address);
+				} else {
+					System.out.println(time + " s:" + hex + " to  :" + r.address);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			r.address = null;
+			free.offer(r);
+		}
+	}
+}
@@ -1,157 +1,315 @@
-package org.ddpush.im.v1.node.udpconnector;
-
-import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
-
-import org.ddpush.im.util.DateTimeUtil;
-import org.ddpush.im.util.StringUtil;
-import org.ddpush.im.v1.node.ClientMessage;
-
-/**
- * 客户端UDP协议接收者
- */
-public class Receiver implements Runnable {
-
-	/** UDP天线 */
-	protected DatagramChannel channel;
-	/** 缓存分组大小 */
-	protected int bufferSize = 1024;
-	/** 停止状态位 */
-	protected boolean stoped = false;
-	/** 缓存buffer */
-	protected ByteBuffer buffer;
-	/** 套接字地址 */
-	private SocketAddress address;
-	/** 接收事务计数器 */
-	protected AtomicLong queueIn = new AtomicLong(0);
-	/** 处理事务计数器 */
-	protected AtomicLong queueOut = new AtomicLong(0);
-	/** 客户端消息队列 */
-	protected ConcurrentLinkedQueue<ClientMessage> mq = new ConcurrentLinkedQueue<ClientMessage>();
-
-	/**
-	 * 初始化
-	 * 
-	 * @param channel
-	 */
-	public Receiver(DatagramChannel channel) {
-		this.channel = channel;
-	}
-
-	/**
-	 * 初始化频道缓存
-	 */
-	public void init() {
-		buffer = ByteBuffer.allocate(this.bufferSize);
-	}
-
-	/**
-	 * 变更停止位
-	 */
-	public void stop() {
-		this.stoped = true;
-	}
-
-	/**
-	 * 启动处理消息
-	 */
-	public void run() {
-		while (!this.stoped) {
-			try {
-				// synchronized(enQueSignal){
-				processMessage();
-				// if(mq.isEmpty() == true){
-				// enQueSignal.wait();
-				// }
-				// }
-			} catch (Exception e) {
-				e.printStackTrace();
-			} catch (Throwable t) {
-				t.printStackTrace();
-			}
-		}
-	}
-
-	/**
-	 * 处理接收消息
-	 * 
-	 * @throws Exception
-	 */
-	protected void processMessage() throws Exception {
-		address = null;
-		buffer.clear();
-		try {
-			address = this.channel.receive(buffer);
-		} catch (SocketTimeoutException timeout) {
-
-		}
-		if (address == null) {
-			try {
-				Thread.sleep(1);
-			} catch (Exception e) {
-
-			}
-			return;
-		}
-
-		buffer.flip();
-		byte[] swap = new byte[buffer.limit() - buffer.position()];
-		System.arraycopy(buffer.array(), buffer.position(), swap, 0, swap.length);
-
-		ClientMessage m = new ClientMessage(address, swap);
-
-		enqueue(m);
-		System.out.println(DateTimeUtil.getCurDateTime()+" r:"+StringUtil.convert(m.getData())+" from:"+m.getSocketAddress().toString());
-
-	}
-
-	/**
-	 * 接收消息事务入队
-	 * 
-	 * @param message
-	 * @return
-	 */
-	protected boolean enqueue(ClientMessage message) {
-		boolean result = mq.add(message);
-		if (result == true) {
-			queueIn.addAndGet(1);
-		}
-		return result;
-	}
-
-	/**
-	 * 分发消息出队
-	 * 
-	 * @return
-	 */
-	protected ClientMessage dequeue() {
-		ClientMessage m = mq.poll();
-		if (m != null) {
-			queueOut.addAndGet(1);
-		}
-		return m;
-	}
-
-	/**
-	 * 取出消息处理
-	 * 
-	 * @return
-	 */
-	public ClientMessage receive() {
-
-		ClientMessage m = null;
-		while (true) {
-			m = dequeue();
-			if (m == null) {
-				return null;
-			}
-			if (m.checkFormat() == true) {// 检查包格式是否合法，为了网络快速响应，在这里检查，不在接收线程检查
-				return m;
-			}
-		}
-	}
-}
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.v1.node.ClientMessage;
+import org.ddpush.im.v1.node.ClientStatMachine;
+
+/**
+ * 客户端UDP协议接收者
+ */
+public class Receiver implements Runnable {
+
+	/** 接收模式：非阻塞轮询，无数据时休眠1毫秒 */
+	public static final int MODE_POLL = 0;
+	/** 接收模式：阻塞在selector上，就绪后一次取完所有数据报 */
+	public static final int MODE_SELECT = 1;
+	/** 当前接收模式 */
+	protected static int mode;
+	/** selector等待超时，毫秒 */
+	protected static final int SELECT_TIMEOUT = 1000;
+	/** 读取接收模式配置 */
+	static {
+		if ("select".equalsIgnoreCase(PropertyUtil.getProperty("CLIENT_UDP_RECEIVE_MODE"))) {
+			mode = MODE_SELECT;
+		} else {
+			mode = MODE_POLL;
+		}
+	}
+
+	/** UDP天线 */
+	protected DatagramChannel channel;
+	/** 所属分片序号 */
+	protected int shard = 0;
+	/** 缓存分组大小 */
+	protected int bufferSize = 1024;
+	/** 停止状态位 */
+	protected boolean stoped = false;
+	/** 缓存buffer */
+	protected ByteBuffer buffer;
+	/** 套接字地址 */
+	private SocketAddress address;
+	/** 客户端消息队列，定长，入队出队计数；uuid分派模式下不使用，为null */
+	protected MessageQueue<ClientMessage> mq;
+	/** 读就绪监听者，仅select模式使用 */
+	protected Selector selector;
+	/** 消息池 */
+	protected ClientMessagePool pool;
+	/** uuid分派模式下各处理线程的队列，为null时放入本接收者队列 */
+	protected MessageQueue<ClientMessage>[] dispatchQueues;
+	/** 超长被丢弃的数据报数 */
+	protected AtomicLong oversized = new AtomicLong(0);
+	/** 处理线程唤醒器，入队后唤醒等待的处理线程 */
+	protected WorkerSignal signal;
+
+	/**
+	 * 初始化
+	 * 
+	 * @param channel
+	 */
+	public Receiver(DatagramChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * 初始化，指定所属分片
+	 * 
+	 * @param channel
+	 * @param shard
+	 */
+	public Receiver(DatagramChannel channel, int shard) {
+		this.channel = channel;
+		this.shard = shard;
+	}
+
+	/**
+	 * 初始化，指定所属分片和共享的消息池
+	 * 
+	 * @param channel
+	 * @param shard
+	 * @param pool
+	 */
+	public Receiver(DatagramChannel channel, int shard, ClientMessagePool pool) {
+		this.channel = channel;
+		this.shard = shard;
+		this.pool = pool;
+	}
+
+	/**
+	 * 初始化频道缓存，select模式下注册读就绪事件；uuid分派队列须在此之前设定，否则创建本接收者队列
+	 * 
+	 * @throws Exception
+	 */
+	public void init() throws Exception {
+		buffer = ByteBuffer.allocateDirect(this.bufferSize);
+		if (pool == null) {
+			pool = new ClientMessagePool(PropertyUtil.getPropertyInt("CLIENT_UDP_MESSAGE_POOL_SIZE"));
+		}
+		if (dispatchQueues == null) {
+			mq = new MessageQueue<ClientMessage>(PropertyUtil.getPropertyInt("CLIENT_UDP_RECEIVE_QUEUE_SIZE"));
+		}
+		if (mode == MODE_SELECT) {
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * 变更停止位
+	 */
+	public void stop() {
+		this.stoped = true;
+		if (mq != null) {
+			mq.close();
+		}
+		if (selector != null) {
+			try {
+				selector.wakeup();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 设定uuid分派队列，同一uuid的消息总是进入同一队列
+	 * 
+	 * @param queues
+	 */
+	public void setDispatchQueues(MessageQueue<ClientMessage>[] queues) {
+		this.dispatchQueues = queues;
+	}
+
+	/**
+	 * 设定处理线程唤醒器
+	 * 
+	 * @param signal
+	 */
+	public void setWorkerSignal(WorkerSignal signal) {
+		this.signal = signal;
+	}
+
+	/**
+	 * 取得接收模式名称
+	 * 
+	 * @return
+	 */
+	public static String getModeName() {
+		return mode == MODE_SELECT ? "select" : "poll";
+	}
+
+	/**
+	 * 启动处理消息
+	 */
+	public void run() {
+		while (!this.stoped) {
+			try {
+				// synchronized(enQueSignal){
+				processMessage();
+				// if(mq.isEmpty() == true){
+				// enQueSignal.wait();
+				// }
+				// }
+			} catch (Exception e) {
+				e.printStackTrace();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 处理接收消息
+	 * 
+	 * @throws Exception
+	 */
+	protected void processMessage() throws Exception {
+		if (mode == MODE_SELECT) {
+			processReadyMessages();
+			return;
+		}
+		if (receiveMessage() == false) {
+			try {
+				Thread.sleep(1);
+			} catch (Exception e) {
+
+			}
+		}
+	}
+
+	/**
+	 * 阻塞等待读就绪，然后一次性取完所有已到达的数据报
+	 * 
+	 * @throws Exception
+	 */
+	protected void processReadyMessages() throws Exception {
+		if (selector.select(SELECT_TIMEOUT) == 0) {
+			return;
+		}
+		selector.selectedKeys().clear();
+		while (this.stoped == false && receiveMessage() == true) {
+			// drain all ready datagrams
+		}
+	}
+
+	/**
+	 * 接收一个数据报并入队
+	 * 
+	 * @return 没有可读数据时返回false
+	 * @throws Exception
+	 */
+	protected boolean receiveMessage() throws Exception {
+		address = null;
+		buffer.clear();
+		try {
+			address = this.channel.receive(buffer);
+		} catch (SocketTimeoutException timeout) {
+
+		}
+		if (address == null) {
+			return false;
+		}
+
+		buffer.flip();
+		ClientMessage m = pool.lease();
+		if (m.fill(address, buffer) == false) {
+			// 超过协议最大长度，不可能是合法消息
+			pool.release(m);
+			oversized.addAndGet(1);
+			return true;
+		}
+		m.setShard(shard);
+
+		if (PacketTracer.ENABLED) {
+			PacketTracer.traceIn(m.getData(), m.getLength(), address);
+		}
+		enqueue(m);
+		return true;
+	}
+
+	/**
+	 * 接收消息事务入队
+	 * 
+	 * @param message
+	 * @return
+	 */
+	protected boolean enqueue(ClientMessage message) {
+		boolean heartbeat = message.getLength() > 2 && message.getCmd() == ClientStatMachine.CMD_0x00;
+		MessageQueue<ClientMessage> queue = mq;
+		int index = -1;
+		if (dispatchQueues != null) {
+			index = (message.getUuidHash() & 0x7fffffff) % dispatchQueues.length;
+			queue = dispatchQueues[index];
+		}
+		boolean result = queue.offer(message, heartbeat);
+		if (result == false) {
+			pool.release(message);
+			return false;
+		}
+		if (signal != null) {
+			// uuid分派时只有队列的所属线程能处理，否则唤醒任意一个等待的线程
+			if (index >= 0) {
+				signal.signal(index);
+			} else {
+				signal.signalAny();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 处理完毕，归还消息
+	 * 
+	 * @param m
+	 */
+	public void release(ClientMessage m) {
+		pool.release(m);
+	}
+
+	/**
+	 * 取出消息处理
+	 * 
+	 * @return
+	 */
+	public ClientMessage receive() {
+
+		ClientMessage m = null;
+		if (mq == null) {
+			return null;
+		}
+		while (true) {
+			m = mq.poll();
+			if (m == null) {
+				return null;
+			}
+			if (m.checkFormat() == true) {// 检查包格式是否合法，为了网络快速响应，在这里检查，不在接收线程检查
+				return m;
+			}
+			pool.release(m);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.util.TokenBucket;
+
+/**
+ * 发送限速，全局每秒包数和字节数上限，以及可选的按目标网段(IPv4 /24)每秒包数上限，所有分片的发送者共享
+ */
+public class SendPacer {
+
+	/** 全局包数令牌桶，null为不限 */
+	protected TokenBucket packets;
+	/** 全局字节数令牌桶，null为不限 */
+	protected TokenBucket bytes;
+	/** 网段令牌桶，按网段散列，冲突的网段共享上限，null为不限 */
+	protected TokenBucket[] subnets;
+	/** 被延后发送的消息数 */
+	protected AtomicLong paced = new AtomicLong(0);
+	/** 因网段上限被延后的消息数 */
+	protected AtomicLong subnetPaced = new AtomicLong(0);
+
+	/**
+	 * 按配置创建，未配置任何上限时返回null
+	 * 
+	 * @return
+	 */
+	public static SendPacer fromConfig() {
+		long pps = PropertyUtil.getPropertyInt("CLIENT_UDP_PACING_PPS");
+		long bps = PropertyUtil.getPropertyInt("CLIENT_UDP_PACING_BPS");
+		long subnetPps = PropertyUtil.getPropertyInt("CLIENT_UDP_PACING_SUBNET_PPS");
+		if (pps <= 0 && bps <= 0 && subnetPps <= 0) {
+			return null;
+		}
+		return new SendPacer(pps, bps, subnetPps, PropertyUtil.getPropertyInt("CLIENT_UDP_PACING_SUBNET_BUCKETS"),
+				PropertyUtil.getPropertyInt("CLIENT_UDP_PACING_BURST_MS"));
+	}
+
+	/**
+	 * 初始化，上限小于等于0为不限
+	 * 
+	 * @param pps
+	 *            全局每秒包数
+	 * @param bps
+	 *            全局每秒字节数
+	 * @param subnetPps
+	 *            每网段每秒包数
+	 * @param subnetBuckets
+	 *            网段令牌桶数，向上取整为2的幂
+	 * @param burstMillis
+	 *            允许的突发时长，毫秒
+	 */
+	public SendPacer(long pps, long bps, long subnetPps, int subnetBuckets, long burstMillis) {
+		if (pps > 0) {
+			packets = new TokenBucket(pps, burstMillis);
+		}
+		if (bps > 0) {
+			bytes = new TokenBucket(bps, burstMillis);
+		}
+		if (subnetPps > 0) {
+			int size = 1;
+			while (size < subnetBuckets) {
+				size <<= 1;
+			}
+			subnets = new TokenBucket[size];
+			for (int i = 0; i < size; i++) {
+				subnets[i] = new TokenBucket(subnetPps, burstMillis);
+			}
+		}
+	}
+
+	/**
+	 * 申请目标网段的令牌，超限时只影响该网段，发送者可先发其他消息
+	 * 
+	 * @param address
+	 * @param retry
+	 *            是否为已被延后的消息再次申请，再次申请不重复计数
+	 * @return 可以发送或不限网段返回0并扣除令牌，否则返回建议等待的纳秒数
+	 */
+	public long acquireSubnet(SocketAddress address, boolean retry) {
+		if (subnets == null) {
+			return 0;
+		}
+		long wait = subnets[subnetIndex(address)].tryAcquire(1);
+		if (wait > 0 && retry == false) {
+			subnetPaced.addAndGet(1);
+			paced.addAndGet(1);
+		}
+		return wait;
+	}
+
+	/**
+	 * 退还已取得的网段令牌，全局超限时调用
+	 * 
+	 * @param address
+	 */
+	public void refundSubnet(SocketAddress address) {
+		if (subnets != null) {
+			subnets[subnetIndex(address)].refund(1);
+		}
+	}
+
+	/**
+	 * 申请全局的包数和字节数令牌，超限时所有发送都应等待
+	 * 
+	 * @param length
+	 * @param retry
+	 *            是否为已被延后的消息再次申请，再次申请不重复计数
+	 * @return 可以发送返回0并扣除令牌，否则返回建议等待的纳秒数
+	 */
+	public long acquireGlobal(int length, boolean retry) {
+		if (packets != null) {
+			long wait = packets.tryAcquire(1);
+			if (wait > 0) {
+				if (retry == false) {
+					paced.addAndGet(1);
+				}
+				return wait;
+			}
+		}
+		if (bytes != null) {
+			long wait = bytes.tryAcquire(length);
+			if (wait > 0) {
+				if (packets != null) {
+					packets.refund(1);
+				}
+				if (retry == false) {
+					paced.addAndGet(1);
+				}
+				return wait;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * 取得网段令牌桶下标，IPv4取/24网段，其他地址按主机
+	 * 
+	 * @param address
+	 * @return
+	 */
+	protected int subnetIndex(SocketAddress address) {
+		int h = 0;
+		if (address instanceof InetSocketAddress) {
+			InetAddress ip = ((InetSocketAddress) address).getAddress();
+			if (ip instanceof Inet4Address) {
+				// Inet4Address的hashCode即为地址本身
+				h = ip.hashCode() >>> 8;
+			} else if (ip != null) {
+				h = ip.hashCode();
+			}
+		}
+		h *= 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (subnets.length - 1);
+	}
+
+	/**
+	 * 取得被延后发送的消息数
+	 * 
+	 * @return
+	 */
+	public long getPacedCount() {
+		return paced.longValue();
+	}
+
+	/**
+	 * 取得因网段上限被延后的消息数
+	 * 
+	 * @return
+	 */
+	public long getSubnetPacedCount() {
+		return subnetPaced.longValue();
+	}
+
+	/**
+	 * 取得配置描述
+	 * 
+	 * @return
+	 */
+	public String getDescription() {
+		return "pps:" + (packets == null ? "unlimited" : String.valueOf(packets.getRate())) + ", bps:"
+				+ (bytes == null ? "unlimited" : String.valueOf(bytes.getRate())) + ", subnet pps:"
+				+ (subnets == null ? "unlimited" : String.valueOf(subnets[0].getRate()));
+	}
+}
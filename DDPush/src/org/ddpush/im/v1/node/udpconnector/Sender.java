@@ -1,103 +1,368 @@
-package org.ddpush.im.v1.node.udpconnector;
-
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
-
-import org.ddpush.im.util.DateTimeUtil;
-import org.ddpush.im.util.PropertyUtil;
-import org.ddpush.im.util.StringUtil;
-import org.ddpush.im.v1.node.Constant;
-import org.ddpush.im.v1.node.ServerMessage;
-
-/**
- * 服务器端发送服务
- */
-public class Sender implements Runnable {
-
-	/** UDP通道 */
-	protected DatagramChannel channel;
-	/** 接收消息数量 */
-	protected AtomicLong queueIn = new AtomicLong(0);
-	/** 发送消息数量 */
-	protected AtomicLong queueOut = new AtomicLong(0);
-	/** 消息体最大长度 */
-	protected int bufferSize = Constant.PUSH_MSG_HEADER_LEN + PropertyUtil.getPropertyInt("PUSH_MSG_MAX_CONTENT_LEN");
-	/** 服务停止状态位 */
-	protected boolean stoped = false;
-	/** 通道缓存流 */
-	protected ByteBuffer buffer;
-
-	protected Object enQueSignal = new Object();
-
-	protected ConcurrentLinkedQueue<ServerMessage> mq = new ConcurrentLinkedQueue<ServerMessage>();
-
-	public Sender(DatagramChannel channel) {
-		this.channel = channel;
-	}
-
-	public void init() {
-		buffer = ByteBuffer.allocate(bufferSize);
-	}
-
-	public void stop() {
-		this.stoped = true;
-	}
-
-	public void run() {
-		while (!this.stoped) {
-			try {
-				synchronized (enQueSignal) {
-					while (mq.isEmpty() == true && stoped == false) {
-						try {
-							enQueSignal.wait(1);
-						} catch (InterruptedException e) {
-
-						}
-						// System.out.println("sender wake up");
-					}
-					processMessage();
-
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			} catch (Throwable t) {
-				t.printStackTrace();
-			}
-		}
-	}
-
-	protected void processMessage() throws Exception {
-		buffer.clear();
-		ServerMessage pendingMessage = dequeue();
-		if (pendingMessage == null) {
-			// Thread.yield();
-			return;
-		}
-		buffer.put(pendingMessage.getData());
-		buffer.flip();
-		channel.send(buffer, pendingMessage.getSocketAddress());
-		System.out.println(DateTimeUtil.getCurDateTime()+" s:"+StringUtil.convert(pendingMessage.getData())+" to  :"+pendingMessage.getSocketAddress().toString());
-	}
-
-	protected boolean enqueue(ServerMessage message) {
-		boolean result = mq.add(message);
-		if (result == true) {
-			queueIn.addAndGet(1);
-		}
-		return result;
-	}
-
-	protected ServerMessage dequeue() {
-		ServerMessage m = mq.poll();
-		if (m != null) {
-			queueOut.addAndGet(1);
-		}
-		return m;
-	}
-
-	public boolean send(ServerMessage message) {
-		return enqueue(message);
-	}
-}
\ No newline at end of file
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.v1.node.ClientStatMachine;
+import org.ddpush.im.v1.node.Constant;
+import org.ddpush.im.v1.node.ServerMessage;
+
+/**
+ * 服务器端发送服务，同一分片的多个发送者共享通道和无锁发送队列，每次唤醒后成批发送
+ */
+public class Sender implements Runnable {
+
+	/** 每次唤醒最多连续发送的消息数 */
+	protected static final int BURST = PropertyUtil.getPropertyInt("CLIENT_UDP_SEND_BURST");
+	/** 网段限速暂存消息数上限，满时按全局限速暂缓 */
+	protected static final int PARKED_SIZE = PropertyUtil.getPropertyInt("CLIENT_UDP_PACING_PARK_SIZE");
+	/** 等待通道可写的超时，毫秒 */
+	protected static final int WRITABLE_TIMEOUT = 10;
+	/** 限速等待时单次park的最长纳秒数 */
+	protected static final long PACING_PARK_MAX_NANOS = 1000000L;
+
+	/** UDP通道 */
+	protected DatagramChannel channel;
+	/** 消息体最大长度 */
+	protected int bufferSize = Constant.PUSH_MSG_HEADER_LEN + PropertyUtil.getPropertyInt("PUSH_MSG_MAX_CONTENT_LEN");
+	/** 服务停止状态位 */
+	protected volatile boolean stoped = false;
+	/** 通道缓存流，每个发送者独占 */
+	protected ByteBuffer buffer;
+	/** 在同一分片发送者中的序号 */
+	protected int index = 0;
+	/** 发送者空闲等待与唤醒，同一分片的发送者共享 */
+	protected WorkerSignal signal;
+	/** 等待时检查的队列 */
+	protected MessageQueue<?>[] waitQueues;
+
+	/** 待发送消息队列，定长，入队出队计数，同一分片的发送者共享 */
+	protected MessageQueue<ServerMessage> mq;
+	/** 内核发送缓冲区满时未发出的一个消息，发出前不取新消息以保持顺序，本发送线程写入 */
+	protected volatile ServerMessage retry;
+	/** 等待可写事件的selector */
+	protected Selector selector;
+	/** 通道在selector上的注册 */
+	protected SelectionKey writeKey;
+	/** 发送限速，所有发送者共享，null为不限速 */
+	protected SendPacer pacer;
+	/** 因全局限速暂缓发送的消息，有它时不取新消息 */
+	protected ServerMessage deferred;
+	/** 暂缓消息的建议等待纳秒数 */
+	protected long deferredWait;
+	/** 因网段限速暂存的消息，到期后再申请，期间照常发送其他网段的消息，仅本发送线程访问 */
+	protected ArrayDeque<Parked> parked = new ArrayDeque<Parked>();
+	/** 暂存和暂缓的消息数，本发送线程写入，供统计线程读取 */
+	protected volatile int pacingPending = 0;
+	/** 内核发送缓冲区满(发送0字节)次数 */
+	protected AtomicLong backpressure = new AtomicLong(0);
+	/** 重发成功数 */
+	protected AtomicLong retried = new AtomicLong(0);
+	/** 停止时丢弃的消息数 */
+	protected AtomicLong dropped = new AtomicLong(0);
+
+	/**
+	 * 网段限速暂存的消息
+	 */
+	protected static final class Parked {
+		final ServerMessage message;
+		/** 可再次申请的时间，纳秒 */
+		final long until;
+
+		Parked(ServerMessage message, long until) {
+			this.message = message;
+			this.until = until;
+		}
+	}
+
+	/**
+	 * 初始化，独占发送队列
+	 * 
+	 * @param channel
+	 */
+	public Sender(DatagramChannel channel) {
+		this(channel, new MessageQueue<ServerMessage>(PropertyUtil.getPropertyInt("CLIENT_UDP_SEND_QUEUE_SIZE")), new WorkerSignal(1,
+				PropertyUtil.getPropertyInt("CLIENT_UDP_WORKER_SPIN")), 0);
+	}
+
+	/**
+	 * 初始化，与同一分片的其他发送者共享发送队列和唤醒器
+	 * 
+	 * @param channel
+	 * @param mq
+	 * @param signal
+	 * @param index
+	 */
+	public Sender(DatagramChannel channel, MessageQueue<ServerMessage> mq, WorkerSignal signal, int index) {
+		this.channel = channel;
+		this.mq = mq;
+		this.signal = signal;
+		this.index = index;
+		this.waitQueues = new MessageQueue<?>[] { mq };
+	}
+
+	/**
+	 * 设定发送限速
+	 * 
+	 * @param pacer
+	 */
+	public void setPacer(SendPacer pacer) {
+		this.pacer = pacer;
+	}
+
+	public void init() throws Exception {
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+		selector = Selector.open();
+		writeKey = channel.register(selector, 0);
+	}
+
+	public void stop() {
+		this.stoped = true;
+		mq.close();
+		signal.signalAll();
+		if (selector != null) {
+			try {
+				selector.wakeup();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void run() {
+		signal.register(index, Thread.currentThread());
+		while (!this.stoped) {
+			try {
+				if (retry != null && processRetry() == false) {
+					// 内核缓冲区仍满，等待可写后再重发，期间不取新消息以保持顺序
+					awaitWritable();
+					continue;
+				}
+				int sent = processMessage();
+				pacingPending = parked.size() + (deferred == null ? 0 : 1);
+				if (deferred != null) {
+					// 超过限速，等到有令牌再发，把突发摊平到时间上
+					LockSupport.parkNanos(this, Math.min(deferredWait, PACING_PARK_MAX_NANOS));
+				} else if (sent == 0 && retry == null) {
+					if (parked.isEmpty() == true) {
+						// 队列为空，等待入队唤醒
+						signal.await(index, waitQueues);
+					} else {
+						// 还有网段限速暂存的消息，短暂等待后再检查
+						LockSupport.parkNanos(this, PACING_PARK_MAX_NANOS);
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+		dropped.addAndGet((retry == null ? 0 : 1) + parked.size() + (deferred == null ? 0 : 1));
+		retry = null;
+		parked.clear();
+		deferred = null;
+		pacingPending = 0;
+		try {
+			selector.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 重发因内核缓冲区满未发出的消息
+	 * 
+	 * @return 已发出返回true
+	 * @throws Exception
+	 */
+	protected boolean processRetry() throws Exception {
+		if (sendData(retry) == false) {
+			backpressure.addAndGet(1);
+			return false;
+		}
+		retry = null;
+		retried.addAndGet(1);
+		return true;
+	}
+
+	/**
+	 * 等待通道可写或超时
+	 * 
+	 * @throws Exception
+	 */
+	protected void awaitWritable() throws Exception {
+		writeKey.interestOps(SelectionKey.OP_WRITE);
+		try {
+			selector.select(WRITABLE_TIMEOUT);
+			selector.selectedKeys().clear();
+		} finally {
+			writeKey.interestOps(0);
+		}
+	}
+
+	/**
+	 * 成批发送到期的暂存消息和队列中的消息
+	 * 
+	 * @return 本次发送的消息数
+	 * @throws Exception
+	 */
+	protected int processMessage() throws Exception {
+		int sent = 0;
+		if (deferred != null) {
+			// 全局限速暂缓的消息先发，仍超限时本次不发送
+			ServerMessage pendingMessage = deferred;
+			deferred = null;
+			if (pace(pendingMessage, true) == false) {
+				return 0;
+			}
+			sent++;
+			if (sendMessage(pendingMessage) == false) {
+				return sent;
+			}
+		}
+		// 暂存的消息每次最多检查一遍，未到期或仍超限的放回队尾
+		long now = System.nanoTime();
+		for (int n = parked.size(); n > 0 && sent < BURST && deferred == null && stoped == false; n--) {
+			Parked p = parked.pollFirst();
+			if (p.until - now > 0) {
+				parked.addLast(p);
+				continue;
+			}
+			if (pace(p.message, true) == false) {
+				continue;
+			}
+			sent++;
+			if (sendMessage(p.message) == false) {
+				return sent;
+			}
+		}
+		while (sent < BURST && deferred == null && stoped == false) {
+			ServerMessage pendingMessage = dequeue();
+			if (pendingMessage == null) {
+				break;
+			}
+			if (pace(pendingMessage, false) == false) {
+				continue;
+			}
+			sent++;
+			if (sendMessage(pendingMessage) == false) {
+				// 内核缓冲区已满，本批次结束
+				break;
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * 申请限速令牌，网段超限时暂存到parked，暂存已满或全局超限时记为deferred
+	 * 
+	 * @param pendingMessage
+	 * @param retry
+	 *            是否为已被延后的消息再次申请
+	 * @return 可以发送返回true
+	 */
+	protected boolean pace(ServerMessage pendingMessage, boolean retry) {
+		if (pacer == null) {
+			return true;
+		}
+		long wait = pacer.acquireSubnet(pendingMessage.getSocketAddress(), retry);
+		if (wait > 0) {
+			if (parked.size() < PARKED_SIZE) {
+				parked.addLast(new Parked(pendingMessage, System.nanoTime() + wait));
+			} else {
+				deferred = pendingMessage;
+				deferredWait = wait;
+			}
+			return false;
+		}
+		wait = pacer.acquireGlobal(pendingMessage.getData().length, retry);
+		if (wait > 0) {
+			pacer.refundSubnet(pendingMessage.getSocketAddress());
+			deferred = pendingMessage;
+			deferredWait = wait;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 发送一个消息，内核缓冲区满时留待重发
+	 * 
+	 * @param pendingMessage
+	 * @return 已发出返回true
+	 * @throws Exception
+	 */
+	protected boolean sendMessage(ServerMessage pendingMessage) throws Exception {
+		if (sendData(pendingMessage) == true) {
+			return true;
+		}
+		backpressure.addAndGet(1);
+		retry = pendingMessage;
+		return false;
+	}
+
+	/**
+	 * 写入通道
+	 * 
+	 * @param pendingMessage
+	 * @return 发送0字节时返回false
+	 * @throws Exception
+	 */
+	protected boolean sendData(ServerMessage pendingMessage) throws Exception {
+		buffer.clear();
+		buffer.put(pendingMessage.getData());
+		buffer.flip();
+		if (channel.send(buffer, pendingMessage.getSocketAddress()) == 0) {
+			return false;
+		}
+		if (PacketTracer.ENABLED) {
+			PacketTracer.traceOut(pendingMessage.getData(), pendingMessage.getData().length, pendingMessage.getSocketAddress());
+		}
+		return true;
+	}
+
+	protected boolean enqueue(ServerMessage message) {
+		byte[] data = message.getData();
+		boolean heartbeat = data.length > 2 && (data[2] & 0xff) == ClientStatMachine.CMD_0x00;
+		if (mq.offer(message, heartbeat) == false) {
+			return false;
+		}
+		signal.signalAny();
+		return true;
+	}
+
+	protected ServerMessage dequeue() {
+		return mq.poll();
+	}
+
+	public boolean send(ServerMessage message) {
+		return enqueue(message);
+	}
+
+	public long getBackpressure() {
+		return backpressure.longValue();
+	}
+
+	public long getRetried() {
+		return retried.longValue();
+	}
+
+	public long getDropped() {
+		return dropped.longValue();
+	}
+
+	public int getRetryPending() {
+		return retry == null ? 0 : 1;
+	}
+
+	public int getPacingPending() {
+		return pacingPending;
+	}
+}
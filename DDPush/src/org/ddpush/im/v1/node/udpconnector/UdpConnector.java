@@ -1,169 +1,757 @@
-package org.ddpush.im.v1.node.udpconnector;
-
-import java.net.InetSocketAddress;
-import java.nio.channels.DatagramChannel;
-
-import org.ddpush.im.util.PropertyUtil;
-import org.ddpush.im.v1.node.ClientMessage;
-import org.ddpush.im.v1.node.ServerMessage;
-
-/**
- * UDP服务端
- */
-public class UdpConnector {
-
-	/** UDP通道 */
-	protected DatagramChannel antenna;// 天线
-	/** 接收器 */
-	protected Receiver receiver;
-	/** 发送器 */
-	protected Sender sender;
-	/** 接收线程 */
-	protected Thread receiverThread;
-	/** 发送线程 */
-	protected Thread senderThread;
-
-	// boolean started = false;
-	// boolean stoped = false;
-
-	/** 从配置文件读取端口号 */
-	protected int port = PropertyUtil.getPropertyInt("CLIENT_UDP_PORT");
-
-	/**
-	 * 设定号
-	 * 
-	 * @param port
-	 */
-	public void setPort(int port) {
-		this.port = port;
-	}
-
-	/**
-	 * 取得端口号
-	 * 
-	 * @return
-	 */
-	public int getPort() {
-		return this.port;
-	}
-
-	public void init() {
-
-	}
-
-	/**
-	 * 服务开始，初始化
-	 * 
-	 * @throws Exception
-	 */
-	public void start() throws Exception {
-		if (antenna != null) {
-			throw new Exception("antenna is not null, may have run before");
-		}
-		antenna = DatagramChannel.open();
-		antenna.socket().bind(new InetSocketAddress(port));
-		System.out.println("udp connector port:" + port);
-		// non-blocking
-		antenna.configureBlocking(false);
-		antenna.socket().setReceiveBufferSize(1024 * 1024 * PropertyUtil.getPropertyInt("CLIENT_UDP_BUFFER_RECEIVE"));
-		antenna.socket().setSendBufferSize(1024 * 1024 * PropertyUtil.getPropertyInt("CLIENT_UDP_BUFFER_SEND"));
-		System.out.println("udp connector recv buffer size:" + antenna.socket().getReceiveBufferSize());
-		System.out.println("udp connector send buffer size:" + antenna.socket().getSendBufferSize());
-		// 初始化接收和发送服务
-		this.receiver = new Receiver(antenna);
-		this.receiver.init();
-		this.sender = new Sender(antenna);
-		this.sender.init();
-		// 启动接收和发送线程
-		this.senderThread = new Thread(sender, "AsynUdpConnector-sender");
-		this.receiverThread = new Thread(receiver, "AsynUdpConnector-receiver");
-		this.receiverThread.start();
-		this.senderThread.start();
-	}
-
-	/**
-	 * 停止服务
-	 * 
-	 * @throws Exception
-	 */
-	public void stop() throws Exception {
-		receiver.stop();
-		sender.stop();
-		try {
-			receiverThread.join();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		try {
-			senderThread.join();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		try {
-			antenna.socket().close();
-		} catch (Exception e) {
-		}
-		try {
-			antenna.close();
-		} catch (Exception e) {
-		}
-	}
-
-	/**
-	 * 取得接收者接待事件数
-	 * 
-	 * @return
-	 */
-	public long getInqueueIn() {
-		return this.receiver.queueIn.longValue();
-	}
-
-	/**
-	 * 取得接收者处理事件数
-	 * 
-	 * @return
-	 */
-	public long getInqueueOut() {
-		return this.receiver.queueOut.longValue();
-	}
-
-	/**
-	 * 取得发送者接待事件数
-	 * 
-	 * @return
-	 */
-	public long getOutqueueIn() {
-		return this.sender.queueIn.longValue();
-	}
-
-	/**
-	 * 取得发送者处理事件数
-	 * 
-	 * @return
-	 */
-	public long getOutqueueOut() {
-		return this.sender.queueOut.longValue();
-	}
-
-	/**
-	 * 取得未处理消息
-	 * 
-	 * @return
-	 * @throws Exception
-	 */
-	public ClientMessage receive() throws Exception {
-		return receiver.receive();
-	}
-
-	/**
-	 * 发送服务端消息
-	 * 
-	 * @param message
-	 * @return
-	 * @throws Exception
-	 */
-	public boolean send(ServerMessage message) throws Exception {
-		return sender.send(message);
-	}
-
-}
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.ddpush.im.util.PropertyUtil;
+import org.ddpush.im.v1.node.ClientMessage;
+import org.ddpush.im.v1.node.ServerMessage;
+
+/**
+ * UDP服务端
+ */
+public class UdpConnector {
+
+	/** StandardSocketOptions.SO_REUSEPORT，Java 9以上才有，通过反射取得以兼容旧版本编译和运行，不支持为null */
+	protected static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+	/** UDP通道，每个分片一个 */
+	protected DatagramChannel[] antennas;// 天线
+	/** 接收器 */
+	protected Receiver[] receivers;
+	/** 发送器，每分片senderNum个 */
+	protected Sender[] senders;
+	/** 发送队列，每分片一个，由该分片的发送器共享 */
+	protected MessageQueue<ServerMessage>[] sendQueues;
+	/** 发送器空闲等待与唤醒，每分片一个 */
+	protected WorkerSignal[] sendSignals;
+	/** 发送限速，所有分片共享，未配置时为null */
+	protected SendPacer pacer;
+	/** 接收线程 */
+	protected Thread[] receiverThreads;
+	/** 发送线程 */
+	protected Thread[] senderThreads;
+	/** 各分片共享的接收消息池 */
+	protected ClientMessagePool messagePool;
+	/** 接收消息队列，共享分派时每分片一个，uuid分派时每处理线程一个 */
+	protected MessageQueue<ClientMessage>[] inQueues;
+	/** 各处理线程消费的队列 */
+	protected MessageQueue<ClientMessage>[][] workerQueues;
+	/** 处理线程空闲等待与唤醒 */
+	protected WorkerSignal workerSignal;
+
+	// boolean started = false;
+	// boolean stoped = false;
+
+	/** 从配置文件读取端口号 */
+	protected int port = PropertyUtil.getPropertyInt("CLIENT_UDP_PORT");
+	/** 分片数，每个分片独占一个通道和一对收发线程 */
+	protected int shardNum = PropertyUtil.getPropertyInt("CLIENT_UDP_SHARDS");
+	/** 分片是否共享端口(SO_REUSEPORT)，否则使用端口段port ~ port+shardNum-1 */
+	protected boolean reusePort = !"NO".equalsIgnoreCase(PropertyUtil.getProperty("CLIENT_UDP_SHARD_REUSEPORT"));
+	/** 是否按uuid把消息固定分派给处理线程 */
+	protected boolean uuidDispatch = "uuid".equalsIgnoreCase(PropertyUtil.getProperty("CLIENT_UDP_DISPATCH"));
+	/** 处理线程数 */
+	protected int workerNum = PropertyUtil.getPropertyInt("CLIENT_UDP_WORKER_THREAD");
+	/** 处理线程park前的自旋次数 */
+	protected int workerSpin = PropertyUtil.getPropertyInt("CLIENT_UDP_WORKER_SPIN");
+	/** 每分片发送线程数 */
+	protected int senderNum = PropertyUtil.getPropertyInt("CLIENT_UDP_SENDER_THREAD");
+
+	/**
+	 * 设定号
+	 * 
+	 * @param port
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * 取得端口号
+	 * 
+	 * @return
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	public void init() {
+
+	}
+
+	/**
+	 * 服务开始，初始化
+	 * 
+	 * @throws Exception
+	 */
+	public void start() throws Exception {
+		if (antennas != null) {
+			throw new Exception("antenna is not null, may have run before");
+		}
+		if (shardNum < 1) {
+			shardNum = 1;
+		}
+		if (shardNum > 1 && reusePort == true && isReusePortSupported() == false) {
+			System.out.println("udp connector SO_REUSEPORT not supported, use port range instead");
+			reusePort = false;
+		}
+		if (senderNum < 1) {
+			senderNum = 1;
+		}
+		antennas = new DatagramChannel[shardNum];
+		receivers = new Receiver[shardNum];
+		senders = new Sender[shardNum * senderNum];
+		sendQueues = newSendQueues(shardNum);
+		sendSignals = new WorkerSignal[shardNum];
+		receiverThreads = new Thread[shardNum];
+		senderThreads = new Thread[shardNum * senderNum];
+		for (int i = 0; i < shardNum; i++) {
+			antennas[i] = openAntenna(i);
+		}
+		System.out.println("udp connector shards:" + shardNum + (shardNum > 1 ? (reusePort ? " (SO_REUSEPORT)" : " (port range)") : ""));
+		System.out.println("udp connector recv buffer size:" + antennas[0].socket().getReceiveBufferSize());
+		System.out.println("udp connector send buffer size:" + antennas[0].socket().getSendBufferSize());
+		System.out.println("udp connector receive mode:" + Receiver.getModeName());
+		System.out.println("udp connector dispatch:" + (uuidDispatch ? "uuid" : "shared"));
+		System.out.println("udp connector sender threads per shard:" + senderNum);
+		pacer = SendPacer.fromConfig();
+		System.out.println("udp connector send pacing:" + (pacer == null ? "off" : pacer.getDescription()));
+		messagePool = new ClientMessagePool(PropertyUtil.getPropertyInt("CLIENT_UDP_MESSAGE_POOL_SIZE"));
+		if (uuidDispatch == true) {
+			inQueues = newQueues(workerNum);
+			for (int i = 0; i < workerNum; i++) {
+				inQueues[i] = new MessageQueue<ClientMessage>(PropertyUtil.getPropertyInt("CLIENT_UDP_RECEIVE_QUEUE_SIZE"));
+			}
+		} else {
+			inQueues = newQueues(shardNum);
+		}
+		workerSignal = new WorkerSignal(workerNum, workerSpin);
+		for (int i = 0; i < shardNum; i++) {
+			// 初始化接收和发送服务
+			receivers[i] = new Receiver(antennas[i], i, messagePool);
+			if (uuidDispatch == true) {
+				receivers[i].setDispatchQueues(inQueues);
+			}
+			receivers[i].init();
+			if (uuidDispatch == false) {
+				inQueues[i] = receivers[i].mq;
+			}
+			receivers[i].setWorkerSignal(workerSignal);
+			sendQueues[i] = new MessageQueue<ServerMessage>(PropertyUtil.getPropertyInt("CLIENT_UDP_SEND_QUEUE_SIZE"));
+			sendSignals[i] = new WorkerSignal(senderNum, workerSpin);
+			// 启动接收和发送线程
+			String suffix = shardNum > 1 ? "-" + i : "";
+			receiverThreads[i] = new Thread(receivers[i], "AsynUdpConnector-receiver" + suffix);
+			receiverThreads[i].start();
+			for (int j = 0; j < senderNum; j++) {
+				int k = i * senderNum + j;
+				senders[k] = new Sender(antennas[i], sendQueues[i], sendSignals[i], j);
+				senders[k].setPacer(pacer);
+				senders[k].init();
+				senderThreads[k] = new Thread(senders[k], "AsynUdpConnector-sender" + suffix + (senderNum > 1 ? "-" + j : ""));
+				senderThreads[k].start();
+			}
+		}
+		workerQueues = newWorkerQueues(workerNum);
+		for (int i = 0; i < workerNum; i++) {
+			workerQueues[i] = uuidDispatch ? newQueues(1) : inQueues;
+			if (uuidDispatch == true) {
+				workerQueues[i][0] = inQueues[i];
+			}
+		}
+	}
+
+	/**
+	 * 创建队列数组
+	 * 
+	 * @param num
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected MessageQueue<ClientMessage>[] newQueues(int num) {
+		return new MessageQueue[num];
+	}
+
+	/**
+	 * 创建各处理线程消费的队列数组
+	 * 
+	 * @param num
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected MessageQueue<ClientMessage>[][] newWorkerQueues(int num) {
+		return new MessageQueue[num][];
+	}
+
+	/**
+	 * 创建发送队列数组
+	 * 
+	 * @param num
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected MessageQueue<ServerMessage>[] newSendQueues(int num) {
+		return new MessageQueue[num];
+	}
+
+	/**
+	 * 打开并绑定一个分片的通道
+	 * 
+	 * @param shard
+	 * @return
+	 * @throws Exception
+	 */
+	protected DatagramChannel openAntenna(int shard) throws Exception {
+		DatagramChannel antenna = DatagramChannel.open();
+		int bindPort = port;
+		if (shardNum > 1) {
+			if (reusePort == true) {
+				antenna.setOption(SO_REUSEPORT, true);
+			} else {
+				bindPort = port + shard;
+			}
+		}
+		antenna.socket().bind(new InetSocketAddress(bindPort));
+		System.out.println("udp connector port:" + bindPort);
+		// non-blocking
+		antenna.configureBlocking(false);
+		antenna.socket().setReceiveBufferSize(1024 * 1024 * PropertyUtil.getPropertyInt("CLIENT_UDP_BUFFER_RECEIVE"));
+		antenna.socket().setSendBufferSize(1024 * 1024 * PropertyUtil.getPropertyInt("CLIENT_UDP_BUFFER_SEND"));
+		return antenna;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Throwable t) {
+			// Java 9以下只能使用端口段
+			return null;
+		}
+	}
+
+	/**
+	 * 当前平台是否支持SO_REUSEPORT
+	 * 
+	 * @return
+	 */
+	protected boolean isReusePortSupported() {
+		if (SO_REUSEPORT == null) {
+			return false;
+		}
+		DatagramChannel test = null;
+		try {
+			test = DatagramChannel.open();
+			return test.supportedOptions().contains(SO_REUSEPORT);
+		} catch (Throwable t) {
+			return false;
+		} finally {
+			if (test != null) {
+				try {
+					test.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 停止服务
+	 * 
+	 * @throws Exception
+	 */
+	public void stop() throws Exception {
+		for (int i = 0; i < shardNum; i++) {
+			receivers[i].stop();
+		}
+		for (int i = 0; i < senders.length; i++) {
+			senders[i].stop();
+		}
+		for (int i = 0; i < inQueues.length; i++) {
+			inQueues[i].close();
+		}
+		workerSignal.signalAll();
+		for (int i = 0; i < shardNum; i++) {
+			try {
+				receiverThreads[i].join();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			for (int j = 0; j < senderNum; j++) {
+				try {
+					senderThreads[i * senderNum + j].join();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			try {
+				antennas[i].socket().close();
+			} catch (Exception e) {
+			}
+			try {
+				antennas[i].close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	/**
+	 * 取得分片数
+	 * 
+	 * @return
+	 */
+	public int getShardNum() {
+		return this.shardNum;
+	}
+
+	/**
+	 * 取得每分片发送线程数
+	 * 
+	 * @return
+	 */
+	public int getSenderNum() {
+		return this.senderNum;
+	}
+
+	/**
+	 * 取得接收者接待事件数
+	 * 
+	 * @return
+	 */
+	public long getInqueueIn() {
+		long sum = 0;
+		for (int i = 0; i < inQueues.length; i++) {
+			sum += getInqueueIn(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得指定接收队列接待事件数
+	 * 
+	 * @param queue
+	 * @return
+	 */
+	public long getInqueueIn(int queue) {
+		return this.inQueues[queue].getQueueIn();
+	}
+
+	/**
+	 * 取得接收者处理事件数
+	 * 
+	 * @return
+	 */
+	public long getInqueueOut() {
+		long sum = 0;
+		for (int i = 0; i < inQueues.length; i++) {
+			sum += getInqueueOut(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得指定接收队列处理事件数
+	 * 
+	 * @param queue
+	 * @return
+	 */
+	public long getInqueueOut(int queue) {
+		return this.inQueues[queue].getQueueOut();
+	}
+
+	/**
+	 * 取得接收队列数，共享分派时等于分片数，uuid分派时等于处理线程数
+	 * 
+	 * @return
+	 */
+	public int getInqueueNum() {
+		return this.inQueues.length;
+	}
+
+	/**
+	 * 是否按uuid分派
+	 * 
+	 * @return
+	 */
+	public boolean isUuidDispatch() {
+		return this.uuidDispatch;
+	}
+
+	/**
+	 * 取得发送者接待事件数
+	 * 
+	 * @return
+	 */
+	public long getOutqueueIn() {
+		long sum = 0;
+		for (int i = 0; i < shardNum; i++) {
+			sum += getOutqueueIn(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得指定分片发送者接待事件数
+	 * 
+	 * @param shard
+	 * @return
+	 */
+	public long getOutqueueIn(int shard) {
+		return this.sendQueues[shard].getQueueIn();
+	}
+
+	/**
+	 * 取得发送者处理事件数
+	 * 
+	 * @return
+	 */
+	public long getOutqueueOut() {
+		long sum = 0;
+		for (int i = 0; i < shardNum; i++) {
+			sum += getOutqueueOut(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得指定分片发送者处理事件数
+	 * 
+	 * @param shard
+	 * @return
+	 */
+	public long getOutqueueOut(int shard) {
+		return this.sendQueues[shard].getQueueOut();
+	}
+
+	/**
+	 * 取得全部接收队列的容量
+	 * 
+	 * @return
+	 */
+	public long getInqueueCapacity() {
+		long sum = 0;
+		for (int i = 0; i < inQueues.length; i++) {
+			sum += inQueues[i].capacity();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得全部发送队列的容量
+	 * 
+	 * @return
+	 */
+	public long getOutqueueCapacity() {
+		long sum = 0;
+		for (int i = 0; i < shardNum; i++) {
+			sum += sendQueues[i].capacity();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得超长被丢弃的数据报数
+	 * 
+	 * @return
+	 */
+	public long getOversizedCount() {
+		long sum = 0;
+		for (int i = 0; i < shardNum; i++) {
+			sum += receivers[i].oversized.longValue();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得接收队列满丢弃数
+	 * 
+	 * @return
+	 */
+	public long getInqueueDroppedFull() {
+		long sum = 0;
+		for (int i = 0; i < inQueues.length; i++) {
+			sum += inQueues[i].getDroppedFull();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得接收队列高水位丢弃的心跳数
+	 * 
+	 * @return
+	 */
+	public long getInqueueDroppedHeartbeat() {
+		long sum = 0;
+		for (int i = 0; i < inQueues.length; i++) {
+			sum += inQueues[i].getDroppedHeartbeat();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得接收队列阻塞次数
+	 * 
+	 * @return
+	 */
+	public long getInqueueBlocked() {
+		long sum = 0;
+		for (int i = 0; i < inQueues.length; i++) {
+			sum += inQueues[i].getBlocked();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得发送队列满丢弃数
+	 * 
+	 * @return
+	 */
+	public long getOutqueueDroppedFull() {
+		long sum = 0;
+		for (int i = 0; i < shardNum; i++) {
+			sum += sendQueues[i].getDroppedFull();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得发送队列高水位丢弃的心跳回应数
+	 * 
+	 * @return
+	 */
+	public long getOutqueueDroppedHeartbeat() {
+		long sum = 0;
+		for (int i = 0; i < shardNum; i++) {
+			sum += sendQueues[i].getDroppedHeartbeat();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得发送队列阻塞次数
+	 * 
+	 * @return
+	 */
+	public long getOutqueueBlocked() {
+		long sum = 0;
+		for (int i = 0; i < shardNum; i++) {
+			sum += sendQueues[i].getBlocked();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得内核发送缓冲区满次数
+	 * 
+	 * @return
+	 */
+	public long getSendBackpressure() {
+		long sum = 0;
+		for (int i = 0; i < senders.length; i++) {
+			sum += senders[i].getBackpressure();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得重发成功数
+	 * 
+	 * @return
+	 */
+	public long getSendRetried() {
+		long sum = 0;
+		for (int i = 0; i < senders.length; i++) {
+			sum += senders[i].getRetried();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得停止时丢弃的未发消息数
+	 * 
+	 * @return
+	 */
+	public long getSendRetryDropped() {
+		long sum = 0;
+		for (int i = 0; i < senders.length; i++) {
+			sum += senders[i].getDropped();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得待重发消息数，近似值
+	 * 
+	 * @return
+	 */
+	public long getSendRetryPending() {
+		long sum = 0;
+		for (int i = 0; i < senders.length; i++) {
+			sum += senders[i].getRetryPending();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得因限速暂缓或暂存的消息数，近似值
+	 * 
+	 * @return
+	 */
+	public long getSendPacingPending() {
+		long sum = 0;
+		for (int i = 0; i < senders.length; i++) {
+			sum += senders[i].getPacingPending();
+		}
+		return sum;
+	}
+
+	/**
+	 * 取得发送限速，未配置时为null
+	 * 
+	 * @return
+	 */
+	public SendPacer getPacer() {
+		return this.pacer;
+	}
+
+	/**
+	 * 取得队列溢出策略名称
+	 * 
+	 * @return
+	 */
+	public String getQueueOverflowPolicy() {
+		return inQueues[0].getPolicyName();
+	}
+
+	/**
+	 * 取得消息池
+	 * 
+	 * @return
+	 */
+	public ClientMessagePool getMessagePool() {
+		return this.messagePool;
+	}
+
+	/**
+	 * 归还处理完毕的消息
+	 * 
+	 * @param m
+	 */
+	public void release(ClientMessage m) {
+		messagePool.release(m);
+	}
+
+	/**
+	 * 取得未处理消息，多分片时从随机分片开始依次查找
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public ClientMessage receive() throws Exception {
+		if (inQueues.length == 1) {
+			return receive(inQueues[0]);
+		}
+		int start = ThreadLocalRandom.current().nextInt(inQueues.length);
+		for (int i = 0; i < inQueues.length; i++) {
+			ClientMessage m = receive(inQueues[(start + i) % inQueues.length]);
+			if (m != null) {
+				return m;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 从指定队列取出格式合法的消息，非法消息直接归还
+	 * 
+	 * @param queue
+	 * @return
+	 */
+	protected ClientMessage receive(MessageQueue<ClientMessage> queue) {
+		while (true) {
+			ClientMessage m = queue.poll();
+			if (m == null) {
+				return null;
+			}
+			if (m.checkFormat() == true) {// 检查包格式是否合法，为了网络快速响应，在这里检查，不在接收线程检查
+				return m;
+			}
+			messagePool.release(m);
+		}
+	}
+
+	/**
+	 * 取得指定处理线程的未处理消息，uuid分派时只取该线程自己的队列
+	 * 
+	 * @param worker
+	 * @return
+	 * @throws Exception
+	 */
+	public ClientMessage receive(int worker) throws Exception {
+		if (uuidDispatch == false) {
+			return receive();
+		}
+		return receive(inQueues[worker % inQueues.length]);
+	}
+
+	/**
+	 * 登记处理线程，以便有新消息时唤醒
+	 * 
+	 * @param worker
+	 * @param t
+	 */
+	public void registerWorker(int worker, Thread t) {
+		workerSignal.register(worker, t);
+	}
+
+	/**
+	 * 处理线程无消息时调用，先自旋再park，直到所消费的队列有消息、被唤醒或超时
+	 * 
+	 * @param worker
+	 */
+	public void awaitMessage(int worker) {
+		workerSignal.await(worker, workerQueues[worker % workerQueues.length]);
+	}
+
+	/**
+	 * 取得处理线程唤醒器
+	 * 
+	 * @return
+	 */
+	public WorkerSignal getWorkerSignal() {
+		return this.workerSignal;
+	}
+
+	/**
+	 * 发送服务端消息，未指定分片时按目标地址固定选择分片
+	 * 
+	 * @param message
+	 * @return
+	 * @throws Exception
+	 */
+	public boolean send(ServerMessage message) throws Exception {
+		return senders[selectShard(message) * senderNum].send(message);
+	}
+
+	/**
+	 * 选择发送分片
+	 * 
+	 * @param message
+	 * @return
+	 */
+	protected int selectShard(ServerMessage message) {
+		if (shardNum == 1) {
+			return 0;
+		}
+		int shard = message.getShard();
+		if (shard >= 0 && shard < shardNum) {
+			return shard;
+		}
+		return (message.getSocketAddress().hashCode() & 0x7fffffff) % shardNum;
+	}
+
+}
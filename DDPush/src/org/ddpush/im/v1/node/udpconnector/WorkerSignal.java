@@ -0,0 +1,197 @@
+package org.ddpush.im.v1.node.udpconnector;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 消费线程空闲等待与唤醒，消费者先自旋再park，生产者入队后只唤醒一个正在等待的线程
+ */
+public class WorkerSignal {
+
+	/** park最长时间，防止意外丢失唤醒时永久等待 */
+	protected static final long PARK_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/** Thread.onSpinWait()，Java 9以上才有，通过MethodHandle调用以兼容旧版本编译和运行，不支持为null */
+	private static final MethodHandle ON_SPIN_WAIT;
+
+	static {
+		MethodHandle mh = null;
+		try {
+			mh = MethodHandles.publicLookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+		} catch (Throwable t) {
+			// Java 9以下自旋时不作提示
+		}
+		ON_SPIN_WAIT = mh;
+	}
+
+	/** 已注册的消费线程 */
+	protected AtomicReferenceArray<Thread> threads;
+	/** 各线程是否处于park等待 */
+	protected AtomicIntegerArray waiting;
+	/** 正在等待的线程数 */
+	protected AtomicInteger waitingNum = new AtomicInteger(0);
+	/** park前自旋次数 */
+	protected int spin;
+	/** park次数 */
+	protected AtomicLong parks = new AtomicLong(0);
+	/** 唤醒次数 */
+	protected AtomicLong wakeups = new AtomicLong(0);
+
+	/**
+	 * 初始化
+	 * 
+	 * @param num
+	 *            消费线程数
+	 * @param spin
+	 *            park前自旋次数
+	 */
+	public WorkerSignal(int num, int spin) {
+		this.threads = new AtomicReferenceArray<Thread>(num);
+		this.waiting = new AtomicIntegerArray(num);
+		this.spin = spin;
+	}
+
+	/**
+	 * 注册消费线程
+	 * 
+	 * @param index
+	 * @param t
+	 */
+	public void register(int index, Thread t) {
+		threads.set(index % threads.length(), t);
+	}
+
+	/**
+	 * 等待直到有消息、被唤醒或超时
+	 * 
+	 * @param index
+	 *            消费线程序号
+	 * @param queues
+	 *            该线程消费的队列，任一不为空即返回
+	 */
+	public void await(int index, MessageQueue<?>[] queues) {
+		index = index % threads.length();
+		for (int i = 0; i < spin; i++) {
+			if (hasMessage(queues) == true) {
+				return;
+			}
+			onSpinWait();
+		}
+		waiting.set(index, 1);
+		waitingNum.incrementAndGet();
+		try {
+			// 置等待标志后再检查一次，避免与生产者的唤醒交错而丢失
+			if (hasMessage(queues) == true) {
+				return;
+			}
+			parks.addAndGet(1);
+			LockSupport.parkNanos(this, PARK_TIMEOUT_NANOS);
+		} finally {
+			waiting.set(index, 0);
+			waitingNum.decrementAndGet();
+		}
+	}
+
+	/**
+	 * 提示处理器正在自旋等待，不支持时为空操作
+	 */
+	protected static void onSpinWait() {
+		if (ON_SPIN_WAIT != null) {
+			try {
+				ON_SPIN_WAIT.invokeExact();
+			} catch (Throwable t) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * 唤醒指定的消费线程
+	 * 
+	 * @param index
+	 */
+	public void signal(int index) {
+		index = index % threads.length();
+		if (waiting.get(index) == 1 && waiting.compareAndSet(index, 1, 0) == true) {
+			unpark(index);
+		}
+	}
+
+	/**
+	 * 唤醒任意一个正在等待的消费线程
+	 */
+	public void signalAny() {
+		if (waitingNum.get() == 0) {
+			return;
+		}
+		int num = threads.length();
+		int start = num == 1 ? 0 : ThreadLocalRandom.current().nextInt(num);
+		for (int i = 0; i < num; i++) {
+			int index = (start + i) % num;
+			if (waiting.get(index) == 1 && waiting.compareAndSet(index, 1, 0) == true) {
+				unpark(index);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 唤醒全部线程，停止服务时使用
+	 */
+	public void signalAll() {
+		for (int i = 0; i < threads.length(); i++) {
+			unpark(i);
+		}
+	}
+
+	/**
+	 * 取得park次数
+	 * 
+	 * @return
+	 */
+	public long getParks() {
+		return parks.longValue();
+	}
+
+	/**
+	 * 取得唤醒次数
+	 * 
+	 * @return
+	 */
+	public long getWakeups() {
+		return wakeups.longValue();
+	}
+
+	/**
+	 * 取得当前正在等待的线程数
+	 * 
+	 * @return
+	 */
+	public int getWaitingNum() {
+		return waitingNum.get();
+	}
+
+	private void unpark(int index) {
+		Thread t = threads.get(index);
+		if (t != null) {
+			wakeups.addAndGet(1);
+			LockSupport.unpark(t);
+		}
+	}
+
+	private boolean hasMessage(MessageQueue<?>[] queues) {
+		for (int i = 0; i < queues.length; i++) {
+			if (queues[i].isEmpty() == false) {
+				return true;
+			}
+		}
+		return false;
+	}
+}